@@ -0,0 +1,380 @@
+package graphiceditormvc;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Programma a riga di comando, senza interfaccia grafica, che misura le prestazioni
+ * delle operazioni piu' frequenti su documenti di tipo Model con un numero crescente di forme.
+ * Fa parte della cartella bench e non viene incluso nel jar del programma:
+ * si esegue con il target <code>ant benchmark</code>.
+ * <p>
+ * Uso: <code>java graphiceditormvc.Prestazioni [-n forme,...] [-m misura,...] [-w riscaldamento] [-i iterazioni] [-t millisecondi]</code>
+ * <ul>
+ * <li>-n: il numero di forme dei documenti da misurare (per default 1000,100000,1000000);
+ * <li>-m: le misure da eseguire (per default tutte, vedi MISURE);
+ * <li>-w: le iterazioni di riscaldamento, non conteggiate (per default 3);
+ * <li>-i: le iterazioni misurate (per default 5);
+ * <li>-t: la durata minima di ogni iterazione, in millisecondi (per default 1000).
+ * </ul>
+ * Ogni iterazione ripete l'operazione finche' non e' trascorsa la durata minima (almeno una volta);
+ * per ogni misura e ogni documento viene scritto il tempo medio per operazione con la sua deviazione
+ * standard tra le iterazioni misurate e i byte allocati per operazione dal thread che esegue le misure
+ * (com.sun.management.ThreadMXBean; "-" se la JVM non li misura). Le tessere disegnate dai thread del pool
+ * non sono comprese nelle allocazioni. I risultati delle operazioni vengono accumulati in un campo
+ * volatile, in modo che il compilatore JIT non possa eliminare il lavoro misurato.
+ * <p>
+ * I documenti sono generati con forme casuali (con seme fisso, quindi uguali a ogni esecuzione)
+ * in un'area di LATO x LATO pixel.
+ *
+ * @author mauropamiro
+ */
+public class Prestazioni {
+    /** Il lato dei documenti generati, in pixel. */
+    static final int LATO = 2000;
+    /** Il numero di punti cercati in ogni operazione delle misure di selezione. */
+    static final int PUNTI = 1024;
+    /** I nomi delle misure disponibili, nell'ordine in cui vengono eseguite. */
+    static final String[] MISURE = {"contiene", "cercaForma", "scansione", "copia", "toString", "serializzazione", "formatoDrw", "disegno", "tessere"};
+
+    /** Accumula i risultati delle operazioni misurate (vedi la descrizione della classe). */
+    static volatile long consumato;
+    /** Misura i byte allocati dai thread (null se la JVM non li misura). */
+    private static final com.sun.management.ThreadMXBean ALLOCAZIONI = allocazioni();
+
+    private Prestazioni() {
+    }
+
+    /**
+     * Esegue le misure indicate sulla riga di comando.
+     *
+     * @param args le opzioni
+     */
+    public static void main(String[] args) {
+        // Nessuna finestra: le misure possono girare senza schermo
+        System.setProperty("java.awt.headless", "true");
+        int[] dimensioni = {1000, 100000, 1000000};
+        List<String> misure = Arrays.asList(MISURE);
+        int riscaldamento = 3, iterazioni = 5;
+        long durata = 1000;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-n".equals(args[i]) && i + 1 < args.length) {
+                    String[] valori = args[++i].split(",");
+                    dimensioni = new int[valori.length];
+                    for (int k = 0; k < valori.length; k++) dimensioni[k] = Integer.parseInt(valori[k].trim());
+                } else if ("-m".equals(args[i]) && i + 1 < args.length) {
+                    misure = Arrays.asList(args[++i].split(","));
+                } else if ("-w".equals(args[i]) && i + 1 < args.length) {
+                    riscaldamento = Math.max(0, Integer.parseInt(args[++i]));
+                } else if ("-i".equals(args[i]) && i + 1 < args.length) {
+                    iterazioni = Math.max(1, Integer.parseInt(args[++i]));
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    durata = Math.max(1, Long.parseLong(args[++i]));
+                } else {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+            for (String m : misure) {
+                if (!Arrays.asList(MISURE).contains(m)) throw new IllegalArgumentException(m);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Uso: java graphiceditormvc.Prestazioni [-n forme,...] [-m misura,...] [-w riscaldamento] [-i iterazioni] [-t millisecondi]");
+            System.err.println("Misure disponibili: " + Arrays.toString(MISURE));
+            System.exit(2);
+        }
+        System.out.printf("%-16s %9s %16s %14s %12s %14s%n", "Misura", "Forme", "ns/op", "+-", "op/s", "byte/op");
+        try {
+            for (int n : dimensioni) {
+                Model documento = genera(n, new Random(42));
+                for (String m : MISURE) {
+                    if (!misure.contains(m)) continue;
+                    Misura misura = crea(m, documento);
+                    try {
+                        esegui(misura, n, riscaldamento, iterazioni, durata);
+                    } finally {
+                        misura.chiudi();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Errore: " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Genera un documento di LATO x LATO pixel con n forme di tipo, posizione, dimensioni e colore casuali.
+     *
+     * @param n il numero di forme
+     * @param r il generatore di numeri casuali
+     *
+     * @return il documento generato
+     */
+    static Model genera(int n, Random r) {
+        Color[] colori = {Color.red, Color.green, Color.blue, Color.yellow, Color.orange, Color.magenta, new Color(0, 0, 0, 128)};
+        TipoForma[] tipi = TipoForma.values();
+        Model documento = new Model(LATO, LATO);
+        List<Forma> blocco = new ArrayList<Forma>();
+        for (int i = 0; i < n; i++) {
+            int w = 10 + r.nextInt(50), h = 10 + r.nextInt(50);
+            blocco.add(new Forma(tipi[r.nextInt(tipi.length)], r.nextInt(LATO - w), r.nextInt(LATO - h), w, h, colori[r.nextInt(colori.length)]));
+            if (blocco.size() == 10000 || i == n - 1) {
+                documento.addAll(blocco);
+                blocco.clear();
+            }
+        }
+        return documento;
+    }
+
+    /**
+     * Esegue le iterazioni di riscaldamento e quelle misurate, e scrive il risultato.
+     *
+     * @param misura la misura da eseguire
+     * @param n il numero di forme del documento
+     * @param riscaldamento il numero di iterazioni di riscaldamento
+     * @param iterazioni il numero di iterazioni misurate
+     * @param durata la durata minima di ogni iterazione, in millisecondi
+     *
+     * @throws IOException in caso di errore nelle misure che leggono o scrivono file
+     */
+    static void esegui(Misura misura, int n, int riscaldamento, int iterazioni, long durata) throws IOException {
+        double[] risultato = new double[2];
+        for (int i = 0; i < riscaldamento; i++) iterazione(misura, durata, risultato);
+        double[] tempi = new double[iterazioni];
+        double somma = 0, allocati = 0;
+        for (int i = 0; i < iterazioni; i++) {
+            iterazione(misura, durata, risultato);
+            tempi[i] = risultato[0];
+            somma += tempi[i];
+            allocati += risultato[1];
+        }
+        double media = somma / iterazioni, scarti = 0;
+        for (double t : tempi) scarti += (t - media) * (t - media);
+        double deviazione = iterazioni > 1 ? Math.sqrt(scarti / (iterazioni - 1)) : 0;
+        String byteOp = ALLOCAZIONI != null ? String.format("%.1f", allocati / iterazioni) : "-";
+        System.out.printf("%-16s %9d %16.1f %14.1f %12.1f %14s%n", misura.nome, n, media, deviazione, 1e9 / media, byteOp);
+    }
+
+    /**
+     * Ripete l'operazione per almeno la durata specificata e scrive in risultato il tempo medio
+     * per operazione, in nanosecondi, e i byte allocati per operazione (0 se la JVM non li misura).
+     */
+    private static void iterazione(Misura misura, long durata, double[] risultato) throws IOException {
+        long limite = durata * 1000000L;
+        long operazioni = 0, valore = 0;
+        long thread = Thread.currentThread().getId();
+        long allocatiPrima = ALLOCAZIONI != null ? ALLOCAZIONI.getThreadAllocatedBytes(thread) : 0;
+        long inizio = System.nanoTime(), trascorso;
+        do {
+            valore += misura.esegui();
+            operazioni += misura.operazioni;
+            trascorso = System.nanoTime() - inizio;
+        } while (trascorso < limite);
+        long allocati = ALLOCAZIONI != null ? ALLOCAZIONI.getThreadAllocatedBytes(thread) - allocatiPrima : 0;
+        consumato += valore;
+        risultato[0] = (double) trascorso / operazioni;
+        risultato[1] = (double) allocati / operazioni;
+    }
+
+    /** Restituisce l'oggetto che misura i byte allocati dai thread, abilitando la misura, o null se la JVM non la offre. */
+    private static com.sun.management.ThreadMXBean allocazioni() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean allocazioni = (com.sun.management.ThreadMXBean) bean;
+        if (!allocazioni.isThreadAllocatedMemorySupported()) return null;
+        allocazioni.setThreadAllocatedMemoryEnabled(true);
+        return allocazioni;
+    }
+
+    /** Restituisce i punti, uguali a ogni esecuzione, cercati dalle misure di selezione. */
+    private static int[] punti() {
+        Random r = new Random(7);
+        int[] punti = new int[2 * PUNTI];
+        for (int i = 0; i < punti.length; i++) punti[i] = r.nextInt(LATO);
+        return punti;
+    }
+
+    /**
+     * Crea la misura con il nome specificato sul documento.
+     *
+     * @param nome il nome della misura (uno di MISURE)
+     * @param documento il documento su cui eseguire la misura
+     *
+     * @return la misura
+     *
+     * @throws IOException in caso di errore nella preparazione della misura
+     */
+    static Misura crea(String nome, final Model documento) throws IOException {
+        final int n = documento.nForme();
+        if ("contiene".equals(nome)) {
+            // Un punto controllato su tutte le forme (un'operazione per forma)
+            final Forma[] forme = new Forma[n];
+            for (int i = 0; i < n; i++) forme[i] = documento.getForma(i);
+            final int[] punti = punti();
+            return new Misura(nome, n) {
+                private int k;
+                @Override
+                long esegui() {
+                    int x = punti[k], y = punti[k + 1];
+                    k = (k + 2) % punti.length;
+                    long trovate = 0;
+                    for (Forma f : forme) {
+                        if (f.contiene(x, y)) trovate++;
+                    }
+                    return trovate;
+                }
+            };
+        } else if ("cercaForma".equals(nome)) {
+            // La forma in primo piano in PUNTI punti, con l'indice spaziale (come Controller)
+            final int[] punti = punti();
+            return new Misura(nome, PUNTI) {
+                @Override
+                long esegui() {
+                    long somma = 0;
+                    for (int k = 0; k < punti.length; k += 2) somma += documento.cercaForma(punti[k], punti[k + 1]);
+                    return somma;
+                }
+            };
+        } else if ("scansione".equals(nome)) {
+            // La forma in primo piano in PUNTI punti, controllando le forme dall'ultima alla prima
+            final int[] punti = punti();
+            return new Misura(nome, PUNTI) {
+                @Override
+                long esegui() {
+                    long somma = 0;
+                    for (int k = 0; k < punti.length; k += 2) {
+                        int i = n - 1;
+                        while (i >= 0 && !documento.getForma(i).contiene(punti[k], punti[k + 1])) i--;
+                        somma += i;
+                    }
+                    return somma;
+                }
+            };
+        } else if ("copia".equals(nome)) {
+            return new Misura(nome, 1) {
+                @Override
+                long esegui() {
+                    return new Model(documento).nForme();
+                }
+            };
+        } else if ("toString".equals(nome)) {
+            return new Misura(nome, 1) {
+                @Override
+                long esegui() {
+                    return documento.toString().length();
+                }
+            };
+        } else if ("serializzazione".equals(nome)) {
+            // Scrittura e rilettura con ObjectOutputStream, in memoria
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            return new Misura(nome, 1) {
+                @Override
+                long esegui() throws IOException {
+                    buffer.reset();
+                    ObjectOutputStream out = new ObjectOutputStream(buffer);
+                    out.writeObject(documento);
+                    out.close();
+                    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+                    try {
+                        return ((Model) in.readObject()).nForme();
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException(e);
+                    } finally {
+                        in.close();
+                    }
+                }
+            };
+        } else if ("formatoDrw".equals(nome)) {
+            // Salvataggio e apertura di un file .drw temporaneo
+            final File file = File.createTempFile("prestazioni", ".drw");
+            return new Misura(nome, 1) {
+                @Override
+                long esegui() throws IOException {
+                    FormatoDrw.scrivi(documento, file);
+                    return FormatoDrw.apri(file).nForme();
+                }
+
+                @Override
+                void chiudi() {
+                    file.delete();
+                }
+            };
+        } else if ("disegno".equals(nome)) {
+            // Tutte le forme disegnate in un'immagine grande come il documento
+            final BufferedImage img = new BufferedImage(LATO, LATO, BufferedImage.TYPE_INT_RGB);
+            return new Misura(nome, 1) {
+                @Override
+                long esegui() {
+                    Graphics2D g = img.createGraphics();
+                    try {
+                        g.setColor(Color.white);
+                        g.fillRect(0, 0, LATO, LATO);
+                        for (int i = 0; i < n; i++) GraphicView.disegnaForma(g, documento.getForma(i), false);
+                    } finally {
+                        g.dispose();
+                    }
+                    return img.getRGB(LATO / 2, LATO / 2);
+                }
+            };
+        } else {
+            // Una finestra di 1024x768 pixel disegnata a tessere, con tutte le tessere da ridisegnare
+            final BufferedImage img = new BufferedImage(1024, 768, BufferedImage.TYPE_INT_RGB);
+            final Rectangle finestra = new Rectangle((LATO - 1024) / 2, (LATO - 768) / 2, 1024, 768);
+            return new Misura("tessere", 1) {
+                @Override
+                long esegui() {
+                    Graphics2D g = img.createGraphics();
+                    try {
+                        g.translate(-finestra.x, -finestra.y);
+                        new DisegnatoreTessere().disegna(g, documento, new BitSet(), finestra);
+                    } finally {
+                        g.dispose();
+                    }
+                    return img.getRGB(512, 384);
+                }
+            };
+        }
+    }
+
+
+    /** Un'operazione da misurare, preparata su un documento. */
+    abstract static class Misura {
+        /** Il nome della misura. */
+        final String nome;
+        /** Il numero di operazioni eseguite da ogni chiamata di esegui. */
+        final int operazioni;
+
+        Misura(String nome, int operazioni) {
+            this.nome = nome;
+            this.operazioni = Math.max(1, operazioni);
+        }
+
+        /**
+         * Esegue l'operazione misurata.
+         *
+         * @return un valore che dipende dal risultato dell'operazione
+         *
+         * @throws IOException in caso di errore di lettura o di scrittura
+         */
+        abstract long esegui() throws IOException;
+
+        /** Libera le risorse usate dalla misura. */
+        void chiudi() {
+        }
+    }
+}
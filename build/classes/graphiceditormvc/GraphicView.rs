@@ -1,2 +0,0 @@
-graphiceditormvc.ViewPanel
-graphiceditormvc.GraphicView
@@ -0,0 +1,22 @@
+package graphiceditormvc;
+
+/**
+ * Riceve l'avanzamento di un'operazione lunga su un documento,
+ * ad esempio la scrittura delle forme in un file (vedi FormatoDrw.scrivi).
+ * Il metodo viene chiamato dal thread che esegue l'operazione, che puo' non essere
+ * il thread grafico.
+ *
+ * @see FormatoDrw
+ *
+ * @author mauropamiro
+ */
+interface Avanzamento {
+
+    /**
+     * Comunica il numero di forme elaborate finora.
+     *
+     * @param eseguite il numero di forme elaborate
+     * @param totale il numero totale di forme da elaborare
+     */
+    void avanzamento(int eseguite, int totale);
+}
@@ -3,24 +3,36 @@ package graphiceditormvc;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Font;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import javax.swing.JColorChooser;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 /**
@@ -47,36 +59,70 @@ import javax.swing.filechooser.FileNameExtensionFilter;
  * 
  * @author mauropamiro
   */
-public class Controller extends JFrame implements MouseListener, MouseMotionListener, WindowListener{
+public class Controller extends JFrame implements MouseListener, MouseMotionListener, WindowListener, ListSelectionListener{
     /** Il documento aperto all'interno del programma */
     private Model documento; 
     /**  File in cui è salvato il documento */
     private File file;
     /** Indica se il documento è stato salvato dopo l'ultima modifica */
     private boolean saved; 
+    /** Il salvataggio in corso in background (null se non c'è nessun salvataggio in corso) */
+    private Salvataggio salvataggio;
+    /** Indica se è stato chiesto un nuovo salvataggio mentre era in corso il precedente */
+    private boolean salvataggioInAttesa;
+    /** La lettura in corso in background del documento aperto (null se non c'è nessuna lettura in corso) */
+    private Caricamento caricamento;
+    /** Il giornale delle modifiche del documento, per recuperarle dopo un arresto anomalo (null se il documento non ha un file) */
+    private Giornale giornale;
+    /** Intervallo (in millisecondi) tra due controlli della lunghezza del giornale delle modifiche */
+    private static final int INTERVALLO_COMPATTAZIONE = 10000;
+    /** Timer che compatta periodicamente il giornale delle modifiche */
+    private Timer timerCompattazione;
     
     /** Vista grafica del documento (sottoclasse di JPanel) */
     private GraphicView vistaGrafica; 
     /** Finestra di dialogo con una vista testuale del documento (sottoclasse di JDialog) */
     private WndTextView vistaTesto; 
 
-    /** Lista dei documenti per gli annullamenti */
-    private ArrayList<UndoItem> undoList; 
-    /** Lista dei documenti per il ripristino degli annullamenti */
-    private ArrayList<UndoItem> redoList; 
+    /** Numero massimo di operazioni memorizzate nelle liste di annullamento e ripristino */
+    private static final int MAX_UNDO = 5000;
+    /** Lista delle operazioni da annullare (l'ultima eseguita e' in testa) */
+    private ArrayDeque<UndoItem> undoList; 
+    /** Lista delle operazioni annullate da ripristinare (l'ultima annullata e' in testa) */
+    private ArrayDeque<UndoItem> redoList; 
     
-    /** Indice della forma selezionata nel documento (-1 se nessuna forma è selezionata) */
+    /** Indice della forma selezionata nel documento (-1 se nessuna forma è selezionata); con più forme selezionate è la forma principale */
     private int selezionata; 
+    /** Indici di tutte le forme selezionate (Shift o Ctrl + click, riquadro di selezione); contiene sempre la forma selezionata */
+    private final BitSet selezione = new BitSet();
     /** Indica se la forma selezionata è stata appena spostata */
     private boolean moved; 
     
-    /** Copia del documento per gestire l'undo del trascinamento */
-    private Model copia; 
-    /** Oggetto dove memorizzare le forme copiate con il comando Copia o Taglia */
-    private Forma appunti; 
+    /** Posizione della forma selezionata all'inizio del trascinamento, per gestirne l'undo */
+    private Point posizioneIniziale; 
+    /** Punto in cui è iniziato il trascinamento di più forme selezionate (null se non è in corso) */
+    private Point inizioGruppo;
+    /** Spostamento già applicato alle forme selezionate durante il trascinamento */
+    private Point spostamentoGruppo;
+    /** Punto in cui è iniziato il riquadro di selezione (null se non è in corso) */
+    private Point inizioRiquadro;
+    /** Il riquadro di selezione disegnato trascinando il mouse (null se non c'è) */
+    private Rectangle riquadro;
+    /** Indica se le forme contenute nel riquadro vanno aggiunte alla selezione (tasto Shift premuto) */
+    private boolean riquadroAggiunge;
+    /** Intervallo minimo (in millisecondi) tra due spostamenti durante il trascinamento: circa un fotogramma a 60 Hz */
+    private static final int INTERVALLO_TRASCINAMENTO = 16;
+    /** Timer che applica al documento l'ultima posizione ricevuta durante il trascinamento */
+    private Timer timerTrascinamento;
+    /** Ultima posizione del mouse ricevuta durante il trascinamento e non ancora applicata (null se non c'e') */
+    private Point posizioneInAttesa;
+    /** Elenco dove memorizzare le forme copiate con il comando Copia o Taglia */
+    private List<Forma> appunti = new ArrayList<Forma>(); 
 
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JProgressBar barCaricamento;
+    private javax.swing.JButton btnAnnullaCaricamento;
     private javax.swing.JButton btnColor;
     private javax.swing.JToggleButton btn_circle;
     private javax.swing.JToggleButton btn_delete;
@@ -99,14 +145,19 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
     private javax.swing.JMenuItem menuCopy;
     private javax.swing.JMenuItem menuCut;
     private javax.swing.JMenuItem menuElenco;
+    private javax.swing.JMenuItem menuElimina;
+    private javax.swing.JMenuItem menuEsportaPdf;
+    private javax.swing.JMenuItem menuEsportaSvg;
     private javax.swing.JMenuItem menuNew;
     private javax.swing.JMenuItem menuOpen;
     private javax.swing.JMenuItem menuPaste;
     private javax.swing.JMenuItem menuPortaAvanti;
     private javax.swing.JMenuItem menuPortaInFondo;
+    private javax.swing.JMenuItem menuPrestazioni;
     private javax.swing.JMenuItem menuRedo;
     private javax.swing.JMenuItem menuSave;
     private javax.swing.JMenuItem menuSaveAs;
+    private javax.swing.JMenuItem menuSelezionaTutto;
     private javax.swing.JMenuItem menuUndo;
     private javax.swing.JPanel statusPanel;
     private javax.swing.ButtonGroup tools_group;
@@ -117,6 +168,24 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
      */
     public Controller() {
         initComponents();
+        // Durante il trascinamento il documento viene aggiornato al massimo una volta per fotogramma
+        timerTrascinamento = new Timer(INTERVALLO_TRASCINAMENTO, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                applicaTrascinamento();
+            }
+        });
+        timerTrascinamento.setRepeats(false);
+        // Controllo periodicamente se il giornale delle modifiche va compattato
+        timerCompattazione = new Timer(INTERVALLO_COMPATTAZIONE, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                compatta();
+            }
+        });
+        timerCompattazione.start();
+        // Le misure delle prestazioni sono consultabili anche via JMX (vedi Metriche)
+        Metriche.registraJmx();
     }
 
     /**
@@ -130,6 +199,8 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
         tools_group = new javax.swing.ButtonGroup();
         statusPanel = new javax.swing.JPanel();
         lbl_status = new javax.swing.JLabel();
+        barCaricamento = new javax.swing.JProgressBar();
+        btnAnnullaCaricamento = new javax.swing.JButton();
         jToolBar1 = new javax.swing.JToolBar();
         jPanel1 = new javax.swing.JPanel();
         btn_select = new javax.swing.JToggleButton();
@@ -148,6 +219,8 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
         jSeparator1 = new javax.swing.JPopupMenu.Separator();
         menuSave = new javax.swing.JMenuItem();
         menuSaveAs = new javax.swing.JMenuItem();
+        menuEsportaPdf = new javax.swing.JMenuItem();
+        menuEsportaSvg = new javax.swing.JMenuItem();
         jMenu2 = new javax.swing.JMenu();
         menuUndo = new javax.swing.JMenuItem();
         menuRedo = new javax.swing.JMenuItem();
@@ -155,11 +228,14 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
         menuCut = new javax.swing.JMenuItem();
         menuCopy = new javax.swing.JMenuItem();
         menuPaste = new javax.swing.JMenuItem();
+        menuElimina = new javax.swing.JMenuItem();
+        menuSelezionaTutto = new javax.swing.JMenuItem();
         jSeparator5 = new javax.swing.JPopupMenu.Separator();
         menuPortaAvanti = new javax.swing.JMenuItem();
         menuPortaInFondo = new javax.swing.JMenuItem();
         jMenu3 = new javax.swing.JMenu();
         menuElenco = new javax.swing.JMenuItem();
+        menuPrestazioni = new javax.swing.JMenuItem();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle("Drawing");
@@ -180,6 +256,21 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
         lbl_status.setText("Status");
         statusPanel.add(lbl_status);
 
+        barCaricamento.setMaximumSize(new java.awt.Dimension(200, 20));
+        barCaricamento.setStringPainted(true);
+        barCaricamento.setVisible(false);
+        statusPanel.add(barCaricamento);
+
+        btnAnnullaCaricamento.setText("Annulla");
+        btnAnnullaCaricamento.setToolTipText("Annulla l'apertura del documento");
+        btnAnnullaCaricamento.setVisible(false);
+        btnAnnullaCaricamento.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                btnAnnullaCaricamentoActionPerformed(evt);
+            }
+        });
+        statusPanel.add(btnAnnullaCaricamento);
+
         getContentPane().add(statusPanel, java.awt.BorderLayout.SOUTH);
 
         jToolBar1.setRollover(true);
@@ -293,6 +384,24 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
         });
         jMenu1.add(menuSaveAs);
 
+        menuEsportaPdf.setText("Esporta PDF ...");
+        menuEsportaPdf.setEnabled(false);
+        menuEsportaPdf.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                menuEsportaPdfActionPerformed(evt);
+            }
+        });
+        jMenu1.add(menuEsportaPdf);
+
+        menuEsportaSvg.setText("Esporta SVG ...");
+        menuEsportaSvg.setEnabled(false);
+        menuEsportaSvg.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                menuEsportaSvgActionPerformed(evt);
+            }
+        });
+        jMenu1.add(menuEsportaSvg);
+
         jMenuBar1.add(jMenu1);
 
         jMenu2.setText("Modifica");
@@ -347,6 +456,26 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
             }
         });
         jMenu2.add(menuPaste);
+
+        menuElimina.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_DELETE, 0));
+        menuElimina.setText("Elimina");
+        menuElimina.setEnabled(false);
+        menuElimina.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                menuEliminaActionPerformed(evt);
+            }
+        });
+        jMenu2.add(menuElimina);
+
+        menuSelezionaTutto.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_A, java.awt.event.InputEvent.CTRL_MASK));
+        menuSelezionaTutto.setText("Seleziona tutto");
+        menuSelezionaTutto.setEnabled(false);
+        menuSelezionaTutto.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                menuSelezionaTuttoActionPerformed(evt);
+            }
+        });
+        jMenu2.add(menuSelezionaTutto);
         jMenu2.add(jSeparator5);
 
         menuPortaAvanti.setText("Porta avanti");
@@ -380,6 +509,14 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
         });
         jMenu3.add(menuElenco);
 
+        menuPrestazioni.setText("Prestazioni ...");
+        menuPrestazioni.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                menuPrestazioniActionPerformed(evt);
+            }
+        });
+        jMenu3.add(menuPrestazioni);
+
         jMenuBar1.add(jMenu3);
 
         setJMenuBar(jMenuBar1);
@@ -413,43 +550,290 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
         salvaConNome();
     }//GEN-LAST:event_menuSaveAsActionPerformed
 
+    /** Metodo eseguito alla pressione della voce di menu File -> Esporta PDF.
+     * Esporta in background il documento aperto in un file PDF (vedi EsportaPdf e la classe Esportazione).
+     * 
+     * @param evt evento generato dal click sulla voce di menu
+     */
+    private void menuEsportaPdfActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuEsportaPdfActionPerformed
+        // Se c'è un documento aperto e letto completamente
+        if (documento != null && caricamento == null) {
+            // Faccio scegliere il file PDF con la finestra di dialogo predefinita JFileChooser
+            JFileChooser fc = new JFileChooser(System.getProperty("user.dir"));
+            fc.setFileFilter(new FileNameExtensionFilter("PDF", "pdf"));
+            if (fc.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                // Aggiungo eventualmente l'estensione .pdf
+                File pdf = fc.getSelectedFile();
+                if (!pdf.getName().toLowerCase().endsWith(".pdf")) pdf = new File(pdf.getPath() + ".pdf");
+                new Esportazione(new Model(documento), pdf, false).execute();
+            }
+        }
+    }//GEN-LAST:event_menuEsportaPdfActionPerformed
+
+    /** Metodo eseguito alla pressione della voce di menu File -> Esporta SVG.
+     * Esporta in background il documento aperto in un file SVG (vedi FormatoSvg e la classe Esportazione).
+     * 
+     * @param evt evento generato dal click sulla voce di menu
+     */
+    private void menuEsportaSvgActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuEsportaSvgActionPerformed
+        // Se c'è un documento aperto e letto completamente
+        if (documento != null && caricamento == null) {
+            // Faccio scegliere il file SVG con la finestra di dialogo predefinita JFileChooser
+            JFileChooser fc = new JFileChooser(System.getProperty("user.dir"));
+            fc.setFileFilter(new FileNameExtensionFilter("SVG", "svg"));
+            if (fc.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                // Aggiungo eventualmente l'estensione .svg
+                File svg = fc.getSelectedFile();
+                if (!svg.getName().toLowerCase().endsWith(".svg")) svg = new File(svg.getPath() + ".svg");
+                new Esportazione(new Model(documento), svg, true).execute();
+            }
+        }
+    }//GEN-LAST:event_menuEsportaSvgActionPerformed
+
+    /**
+     * Esporta in background una copia del documento in un file PDF o SVG, come Salvataggio:
+     * è possibile continuare a modificare il documento durante l'esportazione.
+     * Il file viene sostituito solo a scrittura completata (vedi EsportaPdf e FormatoSvg).
+     */
+    private class Esportazione extends SwingWorker<Void, Void> {
+        /** La copia del documento da esportare (non viene modificata da nessun altro) */
+        private final Model copia;
+        /** Il file in cui esportare il documento */
+        private final File destinazione;
+        /** Indica se il documento va esportato in formato SVG (altrimenti PDF) */
+        private final boolean svg;
+
+        Esportazione(Model copia, File destinazione, boolean svg) {
+            this.copia = copia;
+            this.destinazione = destinazione;
+            this.svg = svg;
+            setStatus("Esportazione in " + destinazione.getName() + "...");
+        }
+
+        @Override
+        protected Void doInBackground() throws IOException {
+            if (svg) FormatoSvg.scrivi(copia, destinazione);
+            else EsportaPdf.esporta(copia, destinazione);
+            return null;
+        }
+
+        @Override
+        protected void done() {
+            try {
+                get();
+                setStatus("Esportato in " + destinazione.getName());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                setStatus("Errore durante l'esportazione in " + destinazione.getName());
+            }
+        }
+    }
+
     
-    /** Salvo il documento nel file ad esso associato. */
+    /** Salvo il documento nel file ad esso associato.
+     * Il file viene scritto in background (vedi la classe Salvataggio) a partire da una copia
+     * del documento, per cui è possibile continuare a modificare il documento durante il salvataggio.
+     */
     private void salva() {
+        // Il documento non può essere salvato finché non è stato letto completamente
+        if (caricamento != null) {
+            setStatus("Apertura del documento in corso");
+            return;
+        }
         // Se c'è un documento aperto ed il documento ha modifiche non ancora salvate
         if (documento != null && !saved) {
             // Se non c'è ancora nessun file associato al documento eseguo "Salva con nome"
             if (file == null) salvaConNome();     
+            // Se c'è già un salvataggio in corso, salvo di nuovo quando sarà terminato
+            else if (salvataggio != null) {
+                salvataggioInAttesa = true;
+            }
             // Altrimenti scrivo il documento nel file
             else { 
-                try {
-                    // Scrivo il documento nel file (grazie all'interfaccia Serializable implementata da Model l'operazione è banale):
-                    // 1. Associo un flusso di output al file;
-                    FileOutputStream fileOut = new FileOutputStream(file.getName());
-                    ObjectOutputStream out = new ObjectOutputStream(fileOut);
-                    // 2. Scrivo il documento nel flusso di output (e quindi nel file)
-                    out.writeObject(documento);
-                    // 3. Chiudo il file e il flusso ad esso associato
-                    out.close();
-                    fileOut.close();
-                    // Il documento è stato salvato
-                    saved = true;
-                    // Aggiorno la barra di stato
-                    setStatus("Salvato in " + file.getName());
-                } catch (IOException i) {
-                    // In caso di errore, lo segnalo nella barra di stato
-                    setStatus("Errore durante il salvataggio");               
-                    file = null; // Nessun file associato al documento
-                }
+                // Le modifiche registrate finora nel giornale verranno eliminate a salvataggio completato
+                long sequenza = ruotaGiornale();
+                // Scrivo nel file nel formato binario compatto (vedi FormatoDrw) una copia del documento:
+                // la copia delle forme è un'unica copia di array, e non cambia durante la scrittura
+                salvataggio = new Salvataggio(new Model(documento), file, sequenza, false);
+                // Il documento è salvato così com'è adesso: le modifiche successive azzerano di nuovo saved
+                saved = true;
+                // Aggiorno la barra di stato
+                setStatus("Salvataggio in " + file.getName() + " ...");
+                salvataggio.execute();
+            }
+        }
+    }
+
+    /** Metodo eseguito nel thread grafico al termine del salvataggio in corso:
+     * segnala l'esito nella barra di stato ed esegue l'eventuale salvataggio richiesto nel frattempo.
+     */
+    private void fineSalvataggio() {
+        Salvataggio terminato = salvataggio;
+        salvataggio = null;
+        try {
+            terminato.get();
+            // Le modifiche del giornale fino alla copia salvata non servono più
+            if (giornale != null && terminato.destinazione.equals(terminato.compattazione ? giornale.getFileBase() : giornale.getFile())) {
+                giornale.salvato(terminato.compattazione);
+            }
+            // Aggiorno la barra di stato
+            if (!terminato.compattazione) setStatus("Salvato in " + terminato.destinazione.getName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!terminato.compattazione) saved = false;
+        } catch (ExecutionException e) {
+            if (terminato.compattazione) {
+                // Il giornale non è stato compattato: le modifiche restano registrate
+                setStatus("Errore durante la compattazione del giornale delle modifiche");
+            } else {
+                // In caso di errore, lo segnalo nella barra di stato
+                setStatus("Errore durante il salvataggio");
+                // Il documento non è stato salvato
+                saved = false;
+                if (terminato.destinazione.equals(file)) file = null; // Nessun file associato al documento
+            }
+        }
+        // Eseguo il salvataggio chiesto mentre questo era in corso
+        if (salvataggioInAttesa) {
+            salvataggioInAttesa = false;
+            salva();
+        }
+    }
+
+    /** Attende la fine del salvataggio in corso (e di quello eventualmente in attesa).
+     * Va chiamato prima di chiudere il documento o il programma.
+     */
+    private void attendiSalvataggio() {
+        while (salvataggio != null) {
+            try {
+                salvataggio.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // L'errore viene segnalato da fineSalvataggio
+            }
+            fineSalvataggio();
+        }
+    }
+
+    /** Inizia un nuovo file del giornale delle modifiche, per un salvataggio o una compattazione (vedi Giornale.ruota).
+     * 
+     * @return il numero di sequenza dell'ultima modifica registrata, da scrivere nel file salvato (0 se non c'è un giornale)
+     */
+    private long ruotaGiornale() {
+        if (giornale == null) return 0;
+        try {
+            return giornale.ruota();
+        } catch (IOException e) {
+            // Le modifiche restano nel giornale attuale: verranno eliminate al prossimo salvataggio
+            return giornale.getSequenza();
+        }
+    }
+
+    /** Indica se il documento può essere modificato dall'utente: durante l'apertura no, perché
+     * il giornale delle modifiche viene aperto (e le modifiche non salvate vengono ripristinate)
+     * solo quando il documento è stato letto completamente (vedi Caricamento).
+     * 
+     * @return true se il documento può essere modificato
+     */
+    private boolean modificabile() {
+        if (caricamento == null) return true;
+        setStatus("Apertura del documento in corso");
+        return false;
+    }
+
+    /** Metodo eseguito periodicamente dal timer timerCompattazione:
+     * se nel giornale sono state registrate molte modifiche dopo l'ultimo salvataggio,
+     * salva in background una copia del documento accanto al giornale (vedi Giornale)
+     * e inizia un nuovo giornale. Il file del documento non viene modificato.
+     */
+    private void compatta() {
+        if (giornale == null) return;
+        if (giornale.getErrore() != null) setStatus("Errore nella scrittura del giornale delle modifiche");
+        if (salvataggio == null && caricamento == null && giornale.daCompattare()) {
+            long sequenza = ruotaGiornale();
+            salvataggio = new Salvataggio(new Model(documento), giornale.getFileBase(), sequenza, true);
+            salvataggio.execute();
+        }
+    }
+
+    /** Apre il giornale delle modifiche del documento appena letto, applicando le modifiche
+     * non salvate registrate dopo la copia da cui è stato letto (vedi Giornale).
+     * 
+     * @param origine il file da cui è stato letto il documento (il file del documento o la copia di compattazione)
+     */
+    private void apriGiornale(File origine) {
+        try {
+            giornale = Giornale.apri(file, documento, FormatoDrw.leggiSequenza(origine));
+            if (giornale.getRipristinate() > 0 || !origine.equals(file)) {
+                // Il documento contiene modifiche non salvate nel file
+                saved = false;
+                setStatus("Recuperate le modifiche non salvate di " + file.getName());
+            }
+        } catch (IOException e) {
+            giornale = null;
+            setStatus("Errore nell'apertura del giornale delle modifiche");
+        }
+    }
+
+    /**
+     * Scrive in background una copia del documento nel formato binario (vedi FormatoDrw),
+     * in un file temporaneo che al termine sostituisce il file di destinazione.
+     * La percentuale di forme scritte viene mostrata nella barra di stato.
+     * La stessa classe scrive la copia di compattazione del giornale delle modifiche, senza messaggi.
+     */
+    private class Salvataggio extends SwingWorker<Void, Integer> implements Avanzamento {
+        /** La copia del documento da scrivere (non viene modificata da nessun altro) */
+        private final Model copia;
+        /** Il file in cui scrivere il documento */
+        private final File destinazione;
+        /** Il numero di sequenza dell'ultima modifica del giornale compresa nella copia */
+        private final long sequenza;
+        /** Indica se si tratta della compattazione del giornale (e non del salvataggio del documento) */
+        private final boolean compattazione;
+
+        Salvataggio(Model copia, File destinazione, long sequenza, boolean compattazione) {
+            this.copia = copia;
+            this.destinazione = destinazione;
+            this.sequenza = sequenza;
+            this.compattazione = compattazione;
+        }
+
+        @Override
+        protected Void doInBackground() throws IOException {
+            long inizio = Metriche.inizio();
+            FormatoDrw.scrivi(copia, destinazione, sequenza, this);
+            (compattazione ? Metriche.COMPATTAZIONE : Metriche.SALVATAGGIO).registra(inizio);
+            return null;
+        }
+
+        @Override
+        public void avanzamento(int eseguite, int totale) {
+            publish(totale == 0 ? 100 : (int) (100L * eseguite / totale));
+        }
+
+        @Override
+        protected void process(List<Integer> percentuali) {
+            // Mostro solo l'ultima percentuale ricevuta, se questo è ancora il salvataggio in corso
+            if (salvataggio == this && !compattazione) {
+                setStatus("Salvataggio in " + destinazione.getName() + ": " + percentuali.get(percentuali.size() - 1) + "%");
             }
         }
+
+        @Override
+        protected void done() {
+            // Il salvataggio potrebbe essere già stato concluso da attendiSalvataggio
+            if (salvataggio == this) fineSalvataggio();
+        }
     }
 
     
     /** Salva il documento aperto in un nuovo file. */
     private void salvaConNome() {
-        // Se c'è un documento aperto
-        if (documento != null) {
+        // Se c'è un documento aperto e letto completamente
+        if (documento != null && caricamento == null) {
             // Faccio scegliere il file in cui salvare il documento con la finestra di dialogo predefinita JFileChooser.
             // La finestra mostra il contenuto della directory corrente: System.getProperty("user.dir") 
             JFileChooser fc = new JFileChooser(System.getProperty("user.dir"));
@@ -462,6 +846,18 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
                 // Associo il nuovo file al documento (aggiungendo eventualmente l'estensione .drw)
                 file = fc.getSelectedFile();
                 if(file.getName().indexOf(".drw")!=file.getName().length()-4) file=new File(file.getPath()+".drw");
+                // Le modifiche verranno registrate nel giornale del nuovo file
+                long sequenza = 0;
+                if (giornale != null) {
+                    sequenza = giornale.getSequenza();
+                    giornale.chiudi(true);
+                    giornale = null;
+                }
+                try {
+                    giornale = Giornale.crea(file, documento, sequenza);
+                } catch (IOException e) {
+                    setStatus("Errore nella creazione del giornale delle modifiche");
+                }
                 // Salvo il documento nel file appena creato
                 saved = false;
                 salva();
@@ -510,6 +906,8 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
         // La finestra mostra il contenuto della directory corrente: System.getProperty("user.dir") 
         JFileChooser fc = new JFileChooser(System.getProperty("user.dir"));
         FileNameExtensionFilter filter = new FileNameExtensionFilter("Drawing","drw");
+        // Si possono anche importare i disegni SVG (vedi FormatoSvg)
+        fc.addChoosableFileFilter(new FileNameExtensionFilter("SVG", "svg"));
         fc.setFileFilter(filter);
         int returnVal = fc.showOpenDialog(this);
         // Se la finestra è stata chiusa premendo OK
@@ -517,20 +915,34 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
             // Associo al documento il fle appena aperto
             file = fc.getSelectedFile();
             try {
-                // Apro il file scelto
-                FileInputStream fileIn = new FileInputStream(file.getName());
-                ObjectInputStream in = new ObjectInputStream(fileIn);
-                // Leggo il documento dal file e lo associo alla vista
-                documento = (Model) in.readObject();
-                associaVista();
-                // Chiudo il file
-                in.close();
-                fileIn.close();
+                boolean svg = file.getName().toLowerCase().endsWith(".svg");
                 // Aggiungo il nome del file appena aperto alla barra del titolo della finestra Controller
                 setTitle(getTitle() + " - " + file.getName());
-                // Aggiorno la barra di stato
-                setStatus("File " + file.getName() + " aperto");
-            } catch (Exception e) {
+                // Se il programma non è stato chiuso correttamente, la copia più recente del documento
+                // può essere quella scritta dalla compattazione del giornale delle modifiche (vedi Giornale)
+                File origine = svg ? file : Giornale.base(file);
+                if (!svg && FormatoDrw.daMappare(origine)) {
+                    // I file binari molto grandi vengono mappati in memoria: l'apertura è immediata
+                    long inizio = Metriche.inizio();
+                    documento = FormatoDrw.apri(origine);
+                    Metriche.APERTURA.registra(inizio);
+                    associaVista();
+                    // Aggiorno la barra di stato
+                    setStatus("File " + file.getName() + " aperto");
+                    // Recupero le eventuali modifiche non salvate
+                    apriGiornale(origine);
+                } else {
+                    // Gli altri file (nel formato binario, in quello delle versioni precedenti o SVG da importare)
+                    // vengono letti in background: la vista viene creata appena sono note le dimensioni
+                    // del documento e mostra le forme man mano che vengono lette (vedi la classe Caricamento)
+                    caricamento = new Caricamento(origine, svg);
+                    mostraAvanzamento(true);
+                    setStatus("Apertura di " + file.getName() + " ...");
+                    caricamento.execute();
+                }
+                // Un documento importato verra' salvato in un nuovo file .drw
+                if (svg) file = null;
+            } catch (IOException e) {
                 // In caso di errore, lo segnalo nella barra di stato
                 setStatus("Errore nell'apertura di " + file.getName());
                 // Nessun file è stato aperto
@@ -552,8 +964,12 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
     
     /** Chiude il documento aperto. */
     private void chiudi() {
+        // Se il documento è ancora in lettura, annullo l'apertura
+        if (caricamento != null) annullaCaricamento();
         // Se c'è un documento aperto
         if (documento != null) {
+            // Indica se l'utente ha scelto di scartare le modifiche
+            boolean scarta = false;
             // Controllo se ci sono modifiche da salvare
             if (!saved) {
                 // Chiedo se si desidere salvare le modifiche con una finestra di dialogo
@@ -563,25 +979,39 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
                     case JOptionPane.OK_OPTION:
                         salva();
                         break;
-                    // altrimenti chiudo senza salvare
+                    // Se ho scelto di non salvare, le modifiche vengono scartate
+                    case JOptionPane.NO_OPTION:
+                        scarta = true;
+                        break;
+                    // altrimenti annullo la chiusura
                     case JOptionPane.CANCEL_OPTION:
                         return;
                 }
             }
+            // Il documento non deve essere chiuso prima che il file sia stato scritto
+            attendiSalvataggio();
+            // Chiudo il giornale delle modifiche: lo elimino se le modifiche sono state salvate o scartate,
+            // altrimenti (salvataggio non riuscito) resta per recuperarle alla prossima apertura
+            if (giornale != null) {
+                giornale.chiudi(saved || scarta);
+                giornale = null;
+            }
             // Svuoto la lista di undo e quella di redo
             undoList.clear();
             redoList.clear();
             // Disabilito le voci di menu legate al documento
-            menuUndo.setText("Annulla");
-            menuUndo.setEnabled(false);
-            menuRedo.setText("Ripristina");
-            menuRedo.setEnabled(false);
+            aggiornaMenuUndo();
+            aggiornaMenuRedo();
             menuCut.setEnabled(false);
             menuCopy.setEnabled(false);
+            menuElimina.setEnabled(false);
+            menuSelezionaTutto.setEnabled(false);
             menuPortaAvanti.setEnabled(false);
             menuPortaInFondo.setEnabled(false);
             menuSave.setEnabled(false);
             menuSaveAs.setEnabled(false);
+            menuEsportaPdf.setEnabled(false);
+            menuEsportaSvg.setEnabled(false);
             menuClose.setEnabled(false);
             menuElenco.setEnabled(false);
             // Rimuovo il nome del file dalla barra del titolo della finestra
@@ -598,7 +1028,7 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
             documento = null;
             file = null;
             saved = false;
-            selezionata = -1;
+            selezionaSolo(-1);
             // Ridisegno il pannello della finestra Controller che conteneva la vista grafica
             mainPanel.revalidate();
             mainPanel.repaint();
@@ -609,6 +1039,163 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
     
     
     
+    /** Metodo eseguito alla pressione del pulsante Annulla nella barra di stato:
+     * annulla l'apertura del documento in corso.
+     * 
+     * @param evt evento generato dal click sul pulsante
+     */
+    private void btnAnnullaCaricamentoActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnAnnullaCaricamentoActionPerformed
+        annullaCaricamento();
+    }//GEN-LAST:event_btnAnnullaCaricamentoActionPerformed
+
+    /** Interrompe la lettura del documento in corso e chiude il documento letto in parte,
+     * senza chiedere di salvarlo.
+     */
+    private void annullaCaricamento() {
+        if (caricamento != null) {
+            caricamento.cancel(true);
+            caricamento = null;
+            mostraAvanzamento(false);
+            // Il documento letto in parte non va salvato
+            saved = true;
+            chiudi();
+            setTitle("Drawing");
+            file = null;
+            setStatus("Apertura annullata");
+        }
+    }
+
+    /** Mostra o nasconde nella barra di stato l'avanzamento della lettura del documento e il pulsante per annullarla.
+     * 
+     * @param visibile true per mostrare l'avanzamento
+     */
+    private void mostraAvanzamento(boolean visibile) {
+        barCaricamento.setIndeterminate(false);
+        barCaricamento.setValue(0);
+        barCaricamento.setVisible(visibile);
+        btnAnnullaCaricamento.setVisible(visibile);
+        statusPanel.revalidate();
+    }
+
+    /**
+     * Legge in background un documento da un file .drw o SVG (vedi FormatoDrw e FormatoSvg).
+     * Appena sono note le dimensioni del documento viene creato un documento vuoto con la sua vista;
+     * le forme lette vengono poi aggiunte al documento nel thread grafico a blocchi di FORME_PER_BLOCCO,
+     * ciascuno con un'unica modifica (Model.addAll), in modo che il disegno si completi man mano.
+     * Per non accumulare le forme lette in attesa del thread grafico, al massimo BLOCCHI_IN_ATTESA
+     * blocchi possono essere in attesa di essere aggiunti: la lettura si ferma finché il thread grafico non li ha aggiunti.
+     * Finché la lettura non è terminata il documento non può essere modificato (vedi modificabile):
+     * il giornale delle modifiche viene aperto, e le modifiche non salvate ripristinate, solo alla fine.
+     */
+    private class Caricamento extends SwingWorker<Void, Void> implements LetturaForme {
+        /** Il numero di forme aggiunte al documento con un'unica modifica */
+        private static final int FORME_PER_BLOCCO = 10000;
+        /** Il numero massimo di blocchi letti e non ancora aggiunti al documento */
+        private static final int BLOCCHI_IN_ATTESA = 4;
+        /** Il file da leggere */
+        private final File origine;
+        /** Indica se il file è in formato SVG */
+        private final boolean svg;
+        /** I permessi per inviare i blocchi al thread grafico */
+        private final Semaphore blocchiLiberi = new Semaphore(BLOCCHI_IN_ATTESA);
+        /** Le forme lette e non ancora inviate al thread grafico */
+        private ArrayList<Forma> blocco = new ArrayList<Forma>(FORME_PER_BLOCCO);
+        /** Il numero di forme del file (-1 se non è noto) */
+        private int totale = -1;
+        /** L'istante di inizio dell'apertura, per le misure delle prestazioni (0 se sono disabilitate) */
+        private final long inizio = Metriche.inizio();
+
+        Caricamento(File origine, boolean svg) {
+            this.origine = origine;
+            this.svg = svg;
+        }
+
+        @Override
+        protected Void doInBackground() throws IOException {
+            if (svg) FormatoSvg.leggi(origine, this);
+            else FormatoDrw.leggi(origine, this);
+            invia();
+            return null;
+        }
+
+        @Override
+        public void inizio(final int width, final int height, final int nForme) {
+            totale = nForme;
+            // Creo il documento vuoto e la sua vista nel thread grafico
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (caricamento != Caricamento.this) return;
+                    documento = new Model(width, height, nForme > 0 ? new SequenzaFormeCompatta(nForme) : new SequenzaFormeCompatta());
+                    associaVista();
+                    // Il documento può essere esportato solo quando è stato letto completamente
+                    menuEsportaPdf.setEnabled(false);
+                    menuEsportaSvg.setEnabled(false);
+                    if (nForme > 0) barCaricamento.setMaximum(nForme);
+                    else barCaricamento.setIndeterminate(nForme < 0);
+                }
+            });
+        }
+
+        @Override
+        public void forma(Forma f) throws IOException {
+            if (isCancelled()) throw new InterruptedIOException("Apertura annullata");
+            blocco.add(f);
+            if (blocco.size() == FORME_PER_BLOCCO) invia();
+        }
+
+        /** Invia al thread grafico le forme lette, attendendo se ci sono già BLOCCHI_IN_ATTESA blocchi in attesa. */
+        private void invia() throws InterruptedIOException {
+            if (blocco.isEmpty()) return;
+            try {
+                blocchiLiberi.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Apertura annullata");
+            }
+            final List<Forma> forme = blocco;
+            blocco = new ArrayList<Forma>(FORME_PER_BLOCCO);
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    blocchiLiberi.release();
+                    // I blocchi arrivati dopo l'annullamento vengono scartati
+                    if (caricamento != Caricamento.this) return;
+                    documento.addAll(forme);
+                    if (totale > 0) barCaricamento.setValue(documento.nForme());
+                }
+            });
+        }
+
+        @Override
+        protected void done() {
+            // Se l'apertura è stata annullata il documento è già stato chiuso
+            if (caricamento != this) return;
+            caricamento = null;
+            mostraAvanzamento(false);
+            try {
+                get();
+                // Tutti i blocchi sono stati aggiunti (i Runnable che li aggiungono sono stati eseguiti prima di done)
+                Metriche.APERTURA.registra(inizio);
+                menuEsportaPdf.setEnabled(true);
+                menuEsportaSvg.setEnabled(true);
+                setStatus("File " + (file != null ? file : origine).getName() + " aperto");
+                // Recupero le eventuali modifiche non salvate (i file SVG importati non hanno un giornale)
+                if (file != null) apriGiornale(origine);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // In caso di errore chiudo il documento letto in parte e lo segnalo nella barra di stato
+                saved = true;
+                chiudi();
+                setTitle("Drawing");
+                file = null;
+                setStatus("Errore nell'apertura di " + origine.getName());
+            }
+        }
+    }
+    
+    
+    
     /* ********************************************************************************************* */
     /* ******************************** Gestione delle viste *************************************** */
     /* ********************************************************************************************* */
@@ -629,20 +1216,24 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
         mainPanel.add(mainScrollPane,BorderLayout.CENTER);        
         // Impostazioni per un documento appena aperto:
         saved = false;     
-        selezionata = -1; // Nessuna forma selezionata        
+        selezionaSolo(-1); // Nessuna forma selezionata        
         // Disabilito le voci di menu che agiscono sulla forma selezionata
         menuPortaAvanti.setEnabled(false);
         menuPortaInFondo.setEnabled(false);
         menuCut.setEnabled(false);
         menuCopy.setEnabled(false);        
+        menuElimina.setEnabled(false);
         // Creo una nuova lista di undo e di redo
-        undoList = new ArrayList<UndoItem>();
-        redoList = new ArrayList<UndoItem>();
+        undoList = new ArrayDeque<UndoItem>();
+        redoList = new ArrayDeque<UndoItem>();
         // Abilito le voci di menu che agiscono sul documento aperto 
         menuSave.setEnabled(true);
         menuSaveAs.setEnabled(true);
+        menuEsportaPdf.setEnabled(true);
+        menuEsportaSvg.setEnabled(true);
         menuClose.setEnabled(true);
         menuElenco.setEnabled(true);        
+        menuSelezionaTutto.setEnabled(true);
         // Aggiungo la vista agli osservatori del documento
         documento.addObserver(vistaGrafica);        
         // Aggiorno la vista
@@ -664,13 +1255,38 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
             vistaTesto.requestFocus();
             // Il Controller dovrà gestire la chiusura della finestra
             vistaTesto.addWindowListener(this);
+            // Il Controller dovrà gestire la selezione delle righe della finestra
+            vistaTesto.addListSelectionListener(this);
             // Aggiungo la finestra agli ossrvatori del documento
             documento.addObserver(vistaTesto);
-            // Aggiorno la vista appena creata
+            // Aggiorno la vista appena creata e vi evidenzio la forma selezionata
             vistaTesto.update(documento, null);
+            vistaTesto.selezionaRiga(selezionata);
         }
     }//GEN-LAST:event_menuElencoActionPerformed
 
+    /** Metodo eseguito alla pressione della voce di menu Visualizza -> Prestazioni.
+     * Mostra il rapporto delle misure delle prestazioni (vedi Metriche) e permette
+     * di abilitare o disabilitare le misure o di azzerarle.
+     * 
+     * @param evt evento generato dal click sulla voce di menu
+     */
+    private void menuPrestazioniActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuPrestazioniActionPerformed
+        JTextArea rapporto = new JTextArea(Metriche.report());
+        rapporto.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        rapporto.setEditable(false);
+        String[] opzioni = {Metriche.abilitate() ? "Disabilita misure" : "Abilita misure", "Azzera", "Chiudi"};
+        int scelta = JOptionPane.showOptionDialog(this, new JScrollPane(rapporto), "Prestazioni",
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, opzioni, opzioni[2]);
+        if (scelta == 0) {
+            Metriche.abilita(!Metriche.abilitate());
+            setStatus(Metriche.abilitate() ? "Misure delle prestazioni abilitate" : "Misure delle prestazioni disabilitate");
+        } else if (scelta == 1) {
+            Metriche.azzeraTutto();
+            setStatus("Misure delle prestazioni azzerate");
+        }
+    }//GEN-LAST:event_menuPrestazioniActionPerformed
+
     /**
      * Restituisce il documento aperto, null se non c'è nessun documento aperto.
      * Metodo chiamato da GraphicView per disegnare il documento.
@@ -702,150 +1318,132 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
     
     
     /** Metodo eseguito alla pressione della voce di menu Annulla dal menu Modifica.
-     * - il documento corrente viene sostituito da quello memorizzato nella lista degli undo;
-     * - la lista degli undo viene aggiornata eliminando l'elemento appena annullato (il primo dell'ArrayList);
-     * - viene creato un nuovo redo per ripristinare l'annullamento appena effettuato.
+     * - l'ultima operazione eseguita (la prima della lista degli undo) viene annullata sul documento;
+     * - la lista degli undo viene aggiornata eliminando l'elemento appena annullato;
+     * - l'operazione annullata viene inserita nella lista dei redo per poterla ripristinare.
      * 
      * @param evt l'evento generato cliccando sulla voce di menu
      */
     private void menuUndoActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuUndoActionPerformed
+        if (!modificabile()) return;
         if (undoList.size() > 0) {
-            // Inserisco un elemento nella lista di redo (descrizione dell'ultimo undo, documento corrente)
-            createRedo(undoList.get(0).descrizione, documento);
-            // Sostituisco il documento con quello memorizzato nella lista di Undo
-            documento = undoList.get(0).documento;
-            // Le viste osservano il nuovo documento
-            if(vistaTesto!=null) documento.addObserver(vistaTesto);
-            documento.addObserver(vistaGrafica);           
+            // Tolgo dalla lista degli undo l'ultima operazione eseguita
+            UndoItem item = undoList.pop();
+            // Annullo l'operazione sul documento (le viste vengono notificate dal documento)
+            item.annulla(documento);
+            // Inserisco l'operazione nella lista dei redo
+            createRedo(item);
            
             saved = false; // Il documento è stato modificato
             
-            // Se ho annullato un inserimento e c'era una forma selezionata, annullo la selezione.
-            if (selezionata != -1 && undoList.get(0).descrizione.equals("inserisci")) {
-                // Nessuna forma selezionata (la forma da eliminare potrebbe essere quella selezionata)
-                selezionata = -1;
-                // Aggiorno le vocie di menu
-                menuCut.setEnabled(false);
-                menuCopy.setEnabled(false);
-                menuPortaAvanti.setEnabled(false);
-                menuPortaInFondo.setEnabled(false);
-                // Aggiorno la barra di stato
-                setStatus("Nessuna forma selezionata");
-            }
+            // Gli inserimenti, le eliminazioni e i riordini cambiano gli indici delle forme: annullo la selezione
+            if (item.tipo != EventoModifica.Tipo.SPOSTAMENTO) deseleziona();
 
-            // Elimino l'ultimo elemento inserito nella lista di undo (il primo dell'ArrayList)
-            undoList.remove(0);
-            // Se la lista degli undo contiene altri elementi
-            if (undoList.size() > 0) {
-                // aggiorno la descrizione della voce di menu Undo
-                menuUndo.setText("Annulla " + undoList.get(0).descrizione);
-            } else {
-                // altrimenti disabilito la voce di menu Annulla
-                menuUndo.setText("Annulla");
-                menuUndo.setEnabled(false);
-            }
-            // Aggiorno le viste
-            vistaGrafica.update(documento,null);
-            if(vistaTesto!=null) vistaTesto.update(documento,null);
+            // Aggiorno la descrizione della voce di menu Annulla
+            aggiornaMenuUndo();
         }
     }//GEN-LAST:event_menuUndoActionPerformed
-
     
-    /** Crea una voce di undo, salvando la versione corrente del documento.
-     * 
-     * @param description una descrizione dell'ultima operazione effettuata. 
+
+    /** Aggiunge una voce di undo all'elenco degli annullamenti per un'operazione appena eseguita dall'utente.
+     * Premendo Annulla, l'operazione verrà annullata sul documento.
+     * La descrizione che compare nel menu Annulla si riferisce all'ultima operazione eseguita. 
+     * Una nuova operazione rende impossibile ripristinare quelle annullate in precedenza:
+     * la lista dei redo viene svuotata.
+     *
+     * @param item l'operazione appena eseguita
      */
-    private void createUndo(String description) {
-        // Creo una copia del documento corrente
-        Model undo_copia = new Model(documento);
-        // Creo una voce di undo
-        createUndo(description, undo_copia);
+    private void createUndo(UndoItem item) {
+        long inizio = Metriche.inizio();
+        redoList.clear();
+        aggiornaMenuRedo();
+        aggiungiUndo(item);
+        Metriche.UNDO.registra(inizio);
     }
-    
 
-    /** Aggiunge una voce di undo all'elenco degli annullamenti.
-     * Premendo Annulla, viene caricata la versione del documento PRIMA dell'ultima operazione eseguita.
-     * La descrizione che compare nel menu Annulla si riferisce all'ultima operazione eseguita. 
+    
+    /** Inserisce un'operazione in testa alla lista degli annullamenti.
      *
-     * @param description una descrizione dell'operazione da annullare
-     * @param copia una copia del documento PRIMA che l'ultima operazione venisse effettuata 
+     * @param item l'operazione da inserire
      */
-    private void createUndo(String description, Model copia) {
-        // Aggiungo un oggetto UndoItem in testa all'ArrayList degli undo
-        // (è uno stack: l'ultimo undo inserito è il primo che viene eseguito premendo Annulla).
-        undoList.add(0, new UndoItem(description, copia));
-        // La lista degli undo contiene al massimo 10 elementi: elimino l'elemento più vecchio (l'ultimo dell'ArrayList)
-        if (undoList.size() > 10) {
-            undoList.remove(10);
+    private void aggiungiUndo(UndoItem item) {
+        // La lista e' uno stack: l'ultimo undo inserito è il primo che viene eseguito premendo Annulla.
+        undoList.push(item);
+        // La lista degli undo contiene al massimo MAX_UNDO elementi: elimino l'elemento più vecchio
+        if (undoList.size() > MAX_UNDO) {
+            undoList.removeLast();
         }
-        // Se è il primo elemento inserito, abilito la voce di menu Annulla
-        if (undoList.size() == 1) {
+        aggiornaMenuUndo();
+    }
+
+    
+    /** Aggiorna la voce di menu Annulla con la descrizione dell'operazione da annullare. */
+    private void aggiornaMenuUndo() {
+        if (undoList.size() > 0) {
+            menuUndo.setText("Annulla " + undoList.peek().descrizione);
             menuUndo.setEnabled(true);
+        } else {
+            menuUndo.setText("Annulla");
+            menuUndo.setEnabled(false);
         }
-        // Associo una descrizione testuale dell'operazione da annullare
-        menuUndo.setText("Annulla " + description);
     }
 
 
     /** Metodo eseguito alla pressione della voce di menu Ripristina dal menu Modifica.
-     * - il documento corrente viene sostituito da quello memorizzato nella lista dei redo;
-     * - la lista dei redo viene aggiornata eliminando l'elemento appena ripristinato (il primo dell'ArrayList);
-     * - viene creato un nuovo undo per annullare il redo appena effettuato.
+     * - l'ultima operazione annullata (la prima della lista dei redo) viene eseguita di nuovo sul documento;
+     * - la lista dei redo viene aggiornata eliminando l'elemento appena ripristinato;
+     * - l'operazione ripristinata viene inserita nella lista degli undo per poterla annullare.
      *
      * @param evt l'evento generato cliccando sulla voce di menu 
      */
     private void menuRedoActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuRedoActionPerformed
-        // Se esistono elementi nell'ArrayList dei redo
+        if (!modificabile()) return;
+        // Se esistono elementi nella lista dei redo
         if (redoList.size() > 0) {
-            // Inserisco un elemento nella lista di undo (descrizione dell'ultimo redo, documento corrente)
-            createUndo(redoList.get(0).descrizione, documento);
-            // Sostituisco il documento con quello memorizzato nella lista dei Redo
-            documento = redoList.get(0).documento;
-            // Le viste osservano il nuovo documento
-            if(vistaTesto!=null) documento.addObserver(vistaTesto);
-            documento.addObserver(vistaGrafica);
+            // Tolgo dalla lista dei redo l'ultima operazione annullata
+            UndoItem item = redoList.pop();
+            // Eseguo di nuovo l'operazione sul documento
+            item.ripristina(documento);
+            // Inserisco l'operazione nella lista degli undo (senza svuotare la lista dei redo)
+            aggiungiUndo(item);
             
             // Il documento è stato modificato
             saved = false;
             
-            // Elimino l'ultimo elemento inserito nella lista di Redo
-            redoList.remove(0);
-            // Se l'ArrayList dei redo contiene altri elementi
-            if (redoList.size() > 0) {
-                // aggiorno la scritta della voce di menu Ripristina
-                menuRedo.setText("Ripristina " + redoList.get(0).descrizione);
-            } else {
-                // altrimenti disabilito la voce di menu Ripristina
-                menuRedo.setText("Ripristina");
-                menuRedo.setEnabled(false);
-            }           
-            // Aggiorno le viste
-            vistaGrafica.update(documento,null);
-            if(vistaTesto!=null) vistaTesto.update(documento,null);
+            // Gli inserimenti, le eliminazioni e i riordini cambiano gli indici delle forme: annullo la selezione
+            if (item.tipo != EventoModifica.Tipo.SPOSTAMENTO) deseleziona();
+            
+            // Aggiorno la descrizione della voce di menu Ripristina
+            aggiornaMenuRedo();
         }
     }//GEN-LAST:event_menuRedoActionPerformed
 
     /** Aggiunge una voce di redo all'elenco dei ripristini.
-     * Premendo Ripristina, viene caricata la versione del documento DOPO l'ultima operazione annullata.
-     * La descrizione che compare nel menu Annulla si riferisce all'ultima operazione annullata. 
+     * Premendo Ripristina, l'operazione annullata viene eseguita di nuovo.
+     * La descrizione che compare nel menu Ripristina si riferisce all'ultima operazione annullata. 
      * 
-     * @param description una descrizione dell'operazione da ripristinare (l'ultima annullata)
-     * @param copia una copia del documento DOPO l'ultima operazione annullata
+     * @param item l'operazione appena annullata
      */
-    private void createRedo(String description, Model copia) {
-        // Aggiungo un oggetto UndoItem in testa all'ArrayList dei redo
-        // (è uno stack: l'ultimo redo inserito è il primo che viene ripristinato).
-        redoList.add(0, new UndoItem(description, copia));
-        // La lista dei redo contiene al massimo 10 elementi: elimino l'elemento più vecchio (l'ultimo dell'ArrayList)
-        if (redoList.size() > 10) {
-            redoList.remove(10);
+    private void createRedo(UndoItem item) {
+        // La lista e' uno stack: l'ultimo redo inserito è il primo che viene ripristinato.
+        redoList.push(item);
+        // La lista dei redo contiene al massimo MAX_UNDO elementi: elimino l'elemento più vecchio
+        if (redoList.size() > MAX_UNDO) {
+            redoList.removeLast();
         }
-        // Se è il primo elemento inserito, abilito la voce di menu Ripristina
-        if (redoList.size() == 1) {
+        aggiornaMenuRedo();
+    }
+
+    
+    /** Aggiorna la voce di menu Ripristina con la descrizione dell'operazione da ripristinare. */
+    private void aggiornaMenuRedo() {
+        if (redoList.size() > 0) {
+            menuRedo.setText("Ripristina " + redoList.peek().descrizione);
             menuRedo.setEnabled(true);
+        } else {
+            menuRedo.setText("Ripristina");
+            menuRedo.setEnabled(false);
         }
-        // Associo una descrizione testuale dell'operazione da ripristinare
-        menuRedo.setText("Ripristina " + description);
     }
 
     
@@ -856,65 +1454,142 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
     /* ***************************************************************************************** */
     
 
-    /** Copia negli appunti la forma selezionata.
+    /** Copia negli appunti le forme selezionate.
      * 
      * @param evt l'evento generato cliccando sulla voce di menu  
      */
     private void menuCopyActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuCopyActionPerformed
         // Se c'è una forma selezionata
         if (selezionata != -1) {
-            // La copio negli appunti
-            appunti = new Forma(documento.getForma(selezionata));
+            // Copio negli appunti le forme selezionate, nell'ordine del documento
+            appunti = new ArrayList<Forma>(selezione.cardinality());
+            for (int i = selezione.nextSetBit(0); i >= 0; i = selezione.nextSetBit(i + 1)) {
+                appunti.add(new Forma(documento.getForma(i)));
+            }
             // Abilito la voce di menu "Incolla"
             menuPaste.setEnabled(true);
         }
     }//GEN-LAST:event_menuCopyActionPerformed
 
     
-    /** Inserisce nel documento la forma contenuta negli appunti, spostandola leggermente in basso e a destra.
+    /** Inserisce nel documento le forme contenute negli appunti, spostandole leggermente in basso e a destra.
+     * Più forme vengono inserite con un'unica operazione del documento e un'unica voce di undo.
      * 
      * @param evt l'evento generato cliccando sulla voce di menu  
      */
     private void menuPasteActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuPasteActionPerformed
+        if (!modificabile()) return;
         int delta = 5; // Spostamento della forma incollata rispetto alla forma originale
-        Forma copia_appunti;
         // Se c'è un documento aperto e gli appunti contengono qualcosa
-        if (documento != null && appunti != null) {
-            // Creo una voce di undo
-            createUndo("incolla");
-            // sposto la forma negli appunti di delta pixel in basso e a destra (in modo che non si sovrapponga alla forma originale)
-            appunti.sposta(appunti.getX() + delta, appunti.getY() + delta);
-            // creo una copia della forma negli appunti (e' possible incollare piu' volte la forma memorizzata negli appunti)
-            copia_appunti = new Forma(appunti);
-            // aggiungo la forma al documento
-            documento.add(copia_appunti);
+        if (documento != null && !appunti.isEmpty()) {
+            List<Forma> copie = new ArrayList<Forma>(appunti.size());
+            for (Forma f : appunti) {
+                // sposto la forma negli appunti di delta pixel in basso e a destra (in modo che non si sovrapponga alla forma originale)
+                f.sposta(f.getX() + delta, f.getY() + delta);
+                // creo una copia della forma negli appunti (e' possible incollare piu' volte le forme memorizzate negli appunti)
+                copie.add(new Forma(f));
+            }
+            if (copie.size() == 1) {
+                Forma copia_appunti = copie.get(0);
+                // aggiungo la forma al documento
+                documento.add(copia_appunti);
+                // Creo una voce di undo
+                createUndo(new UndoItem("incolla", EventoModifica.Tipo.INSERIMENTO, documento.nForme() - 1, documento.nForme() - 1, copia_appunti));
+                // Aggiorno la barra di stato (stampo anche il tipo della forma incollata)
+                setStatus("Incollato " + copia_appunti.getTipo());
+            } else {
+                // aggiungo le forme in fondo al documento con un'unica operazione
+                int primo = documento.nForme();
+                documento.addAll(copie);
+                int[] indici = new int[copie.size()];
+                for (int k = 0; k < indici.length; k++) {
+                    indici[k] = primo + k;
+                }
+                createUndo(new UndoItem("incolla", EventoModifica.Tipo.INSERIMENTO, indici, copie.toArray(new Forma[copie.size()])));
+                setStatus("Incollate " + copie.size() + " forme");
+            }
             // Il documento è stato modificato        
             saved = false;
-            // Aggiorno la barra di stato (stampo anche il tipo della forma incollata)
-            setStatus("Incollato " + copia_appunti.getTipo());
         }
     }//GEN-LAST:event_menuPasteActionPerformed
 
     
-    /** Elimina la forma selezionata dal documento e la copia negli appunti.
+    /** Elimina le forme selezionate dal documento e le copia negli appunti.
      * 
      * @param evt l'evento generato cliccando sulla voce di menu  
      */
     private void menuCutActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuCutActionPerformed
+        if (!modificabile()) return;
+        // Se ci sono più forme selezionate, le copio e le elimino con un'unica operazione
+        if (selezione.cardinality() > 1) {
+            menuCopyActionPerformed(evt);
+            setStatus("Tagliate " + eliminaSelezione("taglia") + " forme");
         // Se c'è una forma selezionata
-        if (selezionata != -1) {
+        } else if (selezionata != -1) {
+            int indice = selezionata;
+            Forma f = documento.getForma(indice);
+            // Copio la forma negli appunti
+            menuCopyActionPerformed(evt);
+            // Elimino la forma dal documento
+            elimina();
             // Creo una voce di undo
-            createUndo("taglia");
+            createUndo(new UndoItem("taglia", EventoModifica.Tipo.ELIMINAZIONE, indice, indice, f));
             // Aggiorno la barra di stato
-            setStatus("Tagliata forma " + selezionata);
+            setStatus("Tagliata forma " + indice);
         }
-        // Copio la forma negli appunti
-        menuCopyActionPerformed(evt);
-        // Elimino la forma dal documento
-        elimina();
     }//GEN-LAST:event_menuCutActionPerformed
 
     
+    /** Elimina dal documento le forme selezionate.
+     * 
+     * @param evt l'evento generato cliccando sulla voce di menu  
+     */
+    private void menuEliminaActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuEliminaActionPerformed
+        if (!modificabile()) return;
+        if (selezione.cardinality() > 1) {
+            setStatus("Eliminate " + eliminaSelezione("elimina") + " forme");
+        } else if (selezionata != -1) {
+            int indice = selezionata;
+            Forma f = documento.getForma(indice);
+            elimina();
+            createUndo(new UndoItem("elimina", EventoModifica.Tipo.ELIMINAZIONE, indice, indice, f));
+            setStatus("Eliminata forma " + indice);
+        }
+    }//GEN-LAST:event_menuEliminaActionPerformed
+
+    
+    /** Seleziona tutte le forme del documento.
+     * 
+     * @param evt l'evento generato cliccando sulla voce di menu  
+     */
+    private void menuSelezionaTuttoActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuSelezionaTuttoActionPerformed
+        if (documento != null && documento.nForme() > 0) {
+            selezione.set(0, documento.nForme());
+            // La forma principale è quella in primo piano
+            selezionata = documento.nForme() - 1;
+            aggiornaSelezione();
+            vistaGrafica.update(documento, null);
+        }
+    }//GEN-LAST:event_menuSelezionaTuttoActionPerformed
+
+    
+    /** Elimina dal documento le forme selezionate con un'unica operazione e crea un'unica voce di undo.
+     * 
+     * @param descrizione la descrizione dell'operazione da annullare
+     * @return il numero di forme eliminate
+     */
+    private int eliminaSelezione(String descrizione) {
+        int[] indici = indiciSelezione();
+        Forma[] eliminate = documento.eliminaForme(indici);
+        createUndo(new UndoItem(descrizione, EventoModifica.Tipo.ELIMINAZIONE, indici, eliminate));
+        // Ora nessuna forma è selezionata
+        deseleziona();
+        // Il documento è stato modificato
+        saved = false;
+        return indici.length;
+    }
+
+    
     
     
     
@@ -949,8 +1624,6 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
      */
     private void inserisci(MouseEvent e) {
         TipoForma tipo;
-        // Creo una voce di undo
-        createUndo("inserisci");
         // Ottengo le coordinate del mouse
         Point posizione = e.getPoint();
         // Il tipo di forma dipende dallo strumento selezionato
@@ -967,6 +1640,8 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
         // - Il colore della forma corrisponde al colore di sfondo del pulsante btnColor.
         Forma f = new Forma(tipo, posizione.x, posizione.y, 50, 50, btnColor.getBackground());
         documento.add(f);
+        // Creo una voce di undo
+        createUndo(new UndoItem("inserisci", EventoModifica.Tipo.INSERIMENTO, documento.nForme() - 1, documento.nForme() - 1, f));
         // Il documento è stato modificato       
         saved = false;
         // Aggiorno la barra di stato
@@ -986,14 +1661,22 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
         Point posizione = e.getPoint();
         // Seleziono la forma alle coordinate del mouse
         selezionata = seleziona(posizione.x, posizione.y);
+        aggiornaSelezione();
+        // Restituisco l'indice della forma selezionata (-1 se nessuna forma è stata selezionata)
+        return selezionata;
+    }
 
+    /** Aggiorna barra di stato, voci di menu e vista testuale in base alle forme selezionate. */
+    private void aggiornaSelezione() {
         if (selezionata != -1) {
-            // Ho selezionato una forma: aggiorno barra di stato e voci di menu
-            setStatus("Selezionata forma " + selezionata);
+            // Ho selezionato una o più forme: aggiorno barra di stato e voci di menu
+            int n = selezione.cardinality();
+            setStatus(n > 1 ? "Selezionate " + n + " forme" : "Selezionata forma " + selezionata);
             menuPortaAvanti.setEnabled(true);
             menuPortaInFondo.setEnabled(true);
             menuCut.setEnabled(true);
             menuCopy.setEnabled(true);
+            menuElimina.setEnabled(true);
         } else {
             // Non ho selezionato nessuna forma: aggiorno barra di stato e voci di menu
             setStatus("Nessuna forma selezionata");
@@ -1001,9 +1684,25 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
             menuPortaInFondo.setEnabled(false);
             menuCut.setEnabled(false);
             menuCopy.setEnabled(false);
+            menuElimina.setEnabled(false);
+        }
+        // Evidenzio la forma selezionata nella vista testuale
+        if (vistaTesto != null) {
+            vistaTesto.selezionaRiga(selezionata);
         }
-        // Restituisco l'indice della forma selezionata (-1 se nessuna forma è stata selezionata)
-        return selezionata;
+    }
+
+    /**
+     * Seleziona la forma il cui indice viene passato come parametro 
+     * (ad esempio scelta nella vista testuale).
+     *
+     * @param indice l'indice della forma da selezionare
+     */
+    public void selezionaForma(int indice) {
+        if (documento == null || indice < 0 || indice >= documento.nForme()) return;
+        selezionaSolo(indice);
+        aggiornaSelezione();
+        vistaGrafica.update(documento, null);
     }
 
     /**
@@ -1016,21 +1715,111 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
      * selezionata o -1 se nel punto (x,y) non e' presente alcuna forma
      */
     public int seleziona(int x, int y) {
-        selezionata = -1;
-        // Parto dall'ultima forma inserita (l'ultima disegnata, quindi quella in primo piano)
-        for (int i = documento.nForme() - 1; i >= 0; i--) {
-            // controllo se il punto (x,y) è contenuto nella forma considerata
-            if (documento.getForma(i).contiene(x, y)) {
-                // memorizzo l'indice della forma selezionata
-                selezionata = i;
-                vistaGrafica.update(documento, null);
-                break;
-            }
+        // Il documento cerca la forma in primo piano (l'ultima disegnata) che contiene il punto (x,y)
+        long inizio = Metriche.inizio();
+        boolean deselezionate = selezione.cardinality() > 1;
+        selezionaSolo(documento.cercaForma(x, y));
+        Metriche.SELEZIONE.registra(inizio);
+        if (selezionata != -1 || deselezionate) {
+            vistaGrafica.update(documento, null);
         }
         // Restituisco l'indice della forma selezionata (-1 se nessuna forma è stata selezionata)
         return selezionata;
     }
 
+    /**
+     * Seleziona solo la forma specificata, annullando la selezione delle altre forme.
+     *
+     * @param indice l'indice della forma da selezionare (-1 per annullare la selezione)
+     */
+    private void selezionaSolo(int indice) {
+        selezionata = indice;
+        selezione.clear();
+        if (indice != -1) selezione.set(indice);
+    }
+
+    /**
+     * Aggiunge alla selezione la forma alla posizione del mouse o, se è già selezionata,
+     * la toglie dalla selezione (click con il tasto Shift o Ctrl premuto).
+     *
+     * @param e l'evento generato dal click del mouse
+     */
+    private void aggiungiSelezione(MouseEvent e) {
+        long inizio = Metriche.inizio();
+        int indice = documento.cercaForma(e.getX(), e.getY());
+        Metriche.SELEZIONE.registra(inizio);
+        if (indice == -1) return;
+        if (selezione.get(indice)) {
+            selezione.clear(indice);
+            // Se tolgo la forma principale, diventa principale l'ultima forma selezionata (-1 se non ce ne sono)
+            if (indice == selezionata) selezionata = selezione.length() - 1;
+        } else {
+            selezione.set(indice);
+            selezionata = indice;
+        }
+        aggiornaSelezione();
+        vistaGrafica.update(documento, null);
+    }
+
+    /**
+     * Seleziona le forme interamente contenute nel riquadro di selezione appena disegnato,
+     * aggiungendole a quelle già selezionate se era premuto il tasto Shift.
+     * La forma principale diventa quella selezionata in primo piano.
+     */
+    private void selezionaRiquadro() {
+        Rectangle area = riquadro;
+        inizioRiquadro = null;
+        riquadro = null;
+        // Un semplice click (senza trascinamento) viene gestito da mouseClicked
+        if (area == null || area.isEmpty()) return;
+        long inizio = Metriche.inizio();
+        // Senza il tasto Shift il riquadro sostituisce la selezione precedente
+        if (!riquadroAggiunge) selezione.clear();
+        // L'indice spaziale restituisce le forme che intersecano il riquadro: tengo quelle contenute
+        int[] candidate = documento.cercaForme(area);
+        for (int k = 0; k < candidate.length; k++) {
+            if (area.contains(documento.getForma(candidate[k]).getBounds())) selezione.set(candidate[k]);
+        }
+        Metriche.SELEZIONE.registra(inizio);
+        selezionata = selezione.length() - 1;
+        aggiornaSelezione();
+        vistaGrafica.update(documento, null);
+    }
+
+    /**
+     * Restituisce gli indici delle forme selezionate, in ordine crescente.
+     *
+     * @return gli indici delle forme selezionate
+     */
+    private int[] indiciSelezione() {
+        int[] indici = new int[selezione.cardinality()];
+        int k = 0;
+        for (int i = selezione.nextSetBit(0); i >= 0; i = selezione.nextSetBit(i + 1)) {
+            indici[k++] = i;
+        }
+        return indici;
+    }
+
+    /**
+     * Restituisce gli indici delle forme selezionate (da non modificare).
+     * Metodo chiamato da GraphicView per evidenziare le forme selezionate.
+     *
+     * @return gli indici delle forme selezionate
+     */
+    public BitSet getSelezione() {
+        return selezione;
+    }
+
+    /**
+     * Restituisce il riquadro di selezione che l'utente sta disegnando, o null se non c'è.
+     * Metodo chiamato da GraphicView per disegnare il riquadro.
+     *
+     * @return il riquadro di selezione o null
+     */
+    public Rectangle getRiquadroSelezione() {
+        return riquadro;
+    }
+
     /**
      * Restituisce l'indice della forma selezionata o -1 se non e' selezionata
      * nessuna forma.
@@ -1052,10 +1841,12 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
     private void elimina(MouseEvent e) {
         // Se c'è una forma alla posizione del mouse la seleziono
         if (seleziona(e) != -1) {
-            // Creo una voce di undo
-            createUndo("elimina");
+            int indice = selezionata;
+            Forma f = documento.getForma(indice);
             // Elimino la forma selezionata
             elimina();
+            // Creo una voce di undo
+            createUndo(new UndoItem("elimina", EventoModifica.Tipo.ELIMINAZIONE, indice, indice, f));
             // Aggiorno la barra di stato
             setStatus("Eliminata forma");
         }
@@ -1069,26 +1860,45 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
             // Elimino la forma dal documento
             documento.elimina(getSelezionata());
             // Ora nessuna forma è selezionata
-            selezionata = -1;
+            selezionaSolo(-1);
             // Aggiorno le voci di menu
             menuPortaAvanti.setEnabled(false);
             menuPortaInFondo.setEnabled(false);
             menuCut.setEnabled(false);
             menuCopy.setEnabled(false);
+            menuElimina.setEnabled(false);
             // Il documento è stato modificato
             saved = false;
         }
     }
 
-    /** Sposta alle coordinate del mouse la forma selezionata.
+    /** Annulla la selezione delle forme selezionate. */
+    private void deseleziona() {
+        if (!selezione.isEmpty()) {
+            // Nessuna forma selezionata
+            selezionaSolo(-1);
+            // Aggiorno le voci di menu
+            menuCut.setEnabled(false);
+            menuCopy.setEnabled(false);
+            menuElimina.setEnabled(false);
+            menuPortaAvanti.setEnabled(false);
+            menuPortaInFondo.setEnabled(false);
+            // Aggiorno la vista e la barra di stato
+            vistaGrafica.update(documento, null);
+            setStatus("Nessuna forma selezionata");
+            if (vistaTesto != null) {
+                vistaTesto.selezionaRiga(-1);
+            }
+        }
+    }
+
+    /** Sposta nella posizione specificata la forma selezionata.
      * 
-     * @param e l'evento generato dal click del mouse
+     * @param posizione le nuove coordinate della forma
      */
-    private void sposta(MouseEvent e) {
-        // Ottengo le coordinate del mouse
-        Point posizione = e.getPoint();
+    private void sposta(Point posizione) {
         // Se c'è una forma selezionata, la sposto
-        if (getSelezionata() != -1) {
+        if (documento != null && getSelezionata() != -1) {
             // Aggiorno, nel documento, la posizione della forma selezionata
             documento.spostaForma(getSelezionata(),posizione);
             moved = true;
@@ -1108,23 +1918,23 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
      * @param evt l'evento generato dal click sulla voce di menu
      */
     private void menuPortaInFondoActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuPortaInFondoActionPerformed
+        if (!modificabile()) return;
+        // Se ci sono più forme selezionate, le sposto sullo sfondo con un'unica operazione
+        if (selezione.cardinality() > 1) {
+            riordinaSelezione("porta in fondo", false);
         // Se c'è una forma selezionata, la sposto sullo sfondo
-        if (selezionata != -1) {
-            // Creo una voce di undo
-            createUndo("porta avanti");
+        } else if (selezionata != -1) {
             // Aggiorno la barra di stato
-            setStatus("Porta avanti forma " + selezionata);
+            setStatus("Porta in fondo forma " + selezionata);
 
             // Sposto sullo sfondo la forma sezionata:
-            // 1. Copio la forma selezionata
-            Forma f = documento.getForma(selezionata);
-            // 2. La elimino dall'array delle forme
-            documento.elimina(selezionata);
-            // 3. La aggiungo in testa all'array delle forme (indice 0, spostando le altre forme di una posizione verso destra)
-            documento.add(0, f);
+            // la porto in testa all'array delle forme (indice 0, spostando le altre forme di una posizione verso destra)
+            documento.riordina(selezionata, 0);
+            // Creo una voce di undo
+            createUndo(new UndoItem("porta in fondo", EventoModifica.Tipo.RIORDINO, selezionata, 0, null));
 
             // Seleziono la forma appena spostata (ora è in testa all'array, indice 0)
-            selezionata = 0;
+            selezionaSolo(0);
             // Il documento è stato modificato
             saved = false;
         }
@@ -1140,28 +1950,50 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
      * @param evt l'evento generato dal click sulla voce di menu
      */
     private void menuPortaAvantiActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuPortaAvantiActionPerformed
-
-        if (selezionata != -1) {
-            // Creo una voce di undo
-            createUndo("porta avanti");
+        if (!modificabile()) return;
+        // Se ci sono più forme selezionate, le sposto in primo piano con un'unica operazione
+        if (selezione.cardinality() > 1) {
+            riordinaSelezione("porta avanti", true);
+        } else if (selezionata != -1) {
             // Aggiorno la barra di stato
             setStatus("Porta avanti forma " + selezionata);
 
-            // Sposta in primo piano la forma selezionata
-            // 1. Copio la forma selezionata
-            Forma f = documento.getForma(selezionata);
-            // 2. La elimino dall'array delle forme
-            documento.elimina(selezionata);
-            // 3. La aggiungo in coda all'array delle forme
-            documento.add(f);
+            // Sposta in primo piano la forma selezionata:
+            // la porto in coda all'array delle forme
+            documento.riordina(selezionata, documento.nForme() - 1);
+            // Creo una voce di undo
+            createUndo(new UndoItem("porta avanti", EventoModifica.Tipo.RIORDINO, selezionata, documento.nForme() - 1, null));
 
             // Seleziono la forma appena spostata (ora è in fondo all'array)
-            selezionata = documento.nForme() - 1;
+            selezionaSolo(documento.nForme() - 1);
             // Il documento è stato modificato
             saved = false;
         }
     }//GEN-LAST:event_menuPortaAvantiActionPerformed
 
+    /** Porta in primo piano o sullo sfondo le forme selezionate, mantenendo il loro ordine relativo,
+     * con un'unica operazione del documento e un'unica voce di undo.
+     * Al termine restano selezionate le stesse forme, nelle nuove posizioni.
+     * 
+     * @param descrizione la descrizione dell'operazione da annullare
+     * @param primoPiano true per portare le forme in primo piano, false per portarle sullo sfondo
+     */
+    private void riordinaSelezione(String descrizione, boolean primoPiano) {
+        int[] indici = indiciSelezione();
+        // Posizione della forma principale tra le forme selezionate
+        int principale = selezione.get(0, selezionata).cardinality();
+        documento.riordina(indici, primoPiano);
+        createUndo(new UndoItem(descrizione, indici, primoPiano));
+        // Le forme selezionate ora sono le ultime (primo piano) o le prime (sfondo) del documento
+        int primo = primoPiano ? documento.nForme() - indici.length : 0;
+        selezione.clear();
+        selezione.set(primo, primo + indici.length);
+        selezionata = primo + principale;
+        setStatus((primoPiano ? "Porta avanti " : "Porta in fondo ") + indici.length + " forme");
+        // Il documento è stato modificato
+        saved = false;
+    }
+
     
     private void formWindowClosing(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosing
         chiudi();
@@ -1212,7 +2044,8 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
      * Gestione del click del mouse sulla vista. A seconda dello strumento
      * selezionato è possibile:
      * <ul>
-     * <li>selezionare una forma</li>
+     * <li>selezionare una forma (con il tasto Shift o Ctrl premuto, aggiungerla
+     * alla selezione o toglierla dalla selezione)</li>
      * <li>eliminare una forma</li>
      * <li>inserire una nuova forma</li>
      * </ul>
@@ -1222,7 +2055,10 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
     @Override
     public void mouseClicked(MouseEvent e) {
         if (btn_select.isSelected()) {
-            seleziona(e);
+            if (e.isShiftDown() || e.isControlDown()) aggiungiSelezione(e);
+            else seleziona(e);
+        } else if (!modificabile()) {
+            return;
         } else if (btn_delete.isSelected()) {
             elimina(e);
         } else {
@@ -1231,45 +2067,121 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
     }
 
     /**
-     * Cliccando su una forma, ne viene fatta una copia: se la forma
-     * selezionata verrà spostata, la copia verrà inserita nella lista degli
+     * Cliccando su una forma, ne viene memorizzata la posizione: se la forma
+     * selezionata verrà spostata, lo spostamento verrà inserito nella lista degli
      * annullamenti.
+     * Con lo strumento di selezione, se non ci sono forme selezionate (o è premuto il tasto Shift)
+     * inizia un riquadro di selezione; se ci sono più forme selezionate inizia il loro trascinamento.
      *
      * @param e l'evento generato dalla pressione del tasto sinistro del
      * mouse
      */
     @Override
     public void mousePressed(MouseEvent e) {
-        if (getSelezionata() != -1) {
-            copia = new Model(documento);
+        if (btn_select.isSelected() && (selezione.isEmpty() || e.isShiftDown())) {
+            inizioRiquadro = e.getPoint();
+            riquadroAggiunge = e.isShiftDown();
+        } else if (!modificabile()) {
+            return;
+        } else if (selezione.cardinality() > 1) {
+            inizioGruppo = e.getPoint();
+            spostamentoGruppo = new Point(0, 0);
+        } else if (getSelezionata() != -1) {
+            Forma f = documento.getForma(getSelezionata());
+            posizioneIniziale = new Point(f.getX(), f.getY());
         }
     }
 
     /**
      * Al rilascio del tasto destro del mouse, se la forma selezionata è
-     * stata spostata, la copia del documento fatta in precedenza viene
-     * inserita nella lista degli annullamenti.
+     * stata spostata, lo spostamento (dalla posizione memorizzata in precedenza
+     * a quella attuale) viene inserito nella lista degli annullamenti.
      *
      * @param e l'evento generato dal rilascio del tasto sinistro del mouse
      */
     @Override
     public void mouseReleased(MouseEvent e) {
-        if (copia != null && moved && getSelezionata() != -1) {
-            createUndo("sposta", copia);
-            copia = null;
+        // Applico subito l'ultima posizione del trascinamento, se non e' ancora stata applicata
+        timerTrascinamento.stop();
+        applicaTrascinamento();
+        if (inizioRiquadro != null) {
+            selezionaRiquadro();
+        } else if (inizioGruppo != null) {
+            // Un'unica voce di undo per lo spostamento di tutte le forme selezionate
+            if (moved && (spostamentoGruppo.x != 0 || spostamentoGruppo.y != 0)) {
+                createUndo(new UndoItem("sposta", indiciSelezione(), spostamentoGruppo.x, spostamentoGruppo.y));
+            }
+            inizioGruppo = null;
+            spostamentoGruppo = null;
+            moved = false;
+        } else if (posizioneIniziale != null && moved && getSelezionata() != -1) {
+            Forma f = documento.getForma(getSelezionata());
+            createUndo(new UndoItem("sposta", getSelezionata(), posizioneIniziale, new Point(f.getX(), f.getY())));
+            posizioneIniziale = null;
             moved = false;
         }
     }
 
     /**
      * Trascinando la forma selezionata è possibile spostarla all'interno
-     * del documento
+     * del documento.
+     * Per non sovraccaricare il thread grafico con mouse ad alta frequenza,
+     * la posizione viene solo memorizzata: il timer la applica al documento al massimo
+     * una volta per fotogramma, scartando le posizioni intermedie.
      *
      * @param e l'evento generato dal trascinamento del mouse
      */
     @Override
     public void mouseDragged(MouseEvent e) {
-        sposta(e);
+        // Durante l'apertura si può solo disegnare il riquadro di selezione
+        if (inizioRiquadro == null && !modificabile()) return;
+        if (posizioneInAttesa != null) {
+            // La posizione precedente non e' ancora stata applicata: la sostituisco
+            Metriche.TRASCINAMENTI_SCARTATI.incrementa();
+        }
+        posizioneInAttesa = e.getPoint();
+        if (!timerTrascinamento.isRunning()) {
+            timerTrascinamento.start();
+        }
+    }
+
+    /** Applica al documento (o al riquadro di selezione) l'ultima posizione ricevuta durante il trascinamento, se c'è. */
+    private void applicaTrascinamento() {
+        if (posizioneInAttesa != null) {
+            Point posizione = posizioneInAttesa;
+            posizioneInAttesa = null;
+            if (inizioRiquadro != null) aggiornaRiquadro(posizione);
+            else if (inizioGruppo != null) spostaGruppo(posizione);
+            else sposta(posizione);
+        }
+    }
+
+    /** Estende il riquadro di selezione fino alla posizione del mouse e ridisegna la parte di vista interessata.
+     * 
+     * @param posizione la posizione del mouse
+     */
+    private void aggiornaRiquadro(Point posizione) {
+        Rectangle vecchio = riquadro;
+        riquadro = new Rectangle(inizioRiquadro);
+        riquadro.add(posizione);
+        Rectangle area = vecchio == null ? riquadro : vecchio.union(riquadro);
+        vistaGrafica.repaint(area.x, area.y, area.width + 1, area.height + 1);
+    }
+
+    /** Sposta le forme selezionate in modo che lo spostamento totale sia quello del mouse dall'inizio del trascinamento.
+     * 
+     * @param posizione la posizione del mouse
+     */
+    private void spostaGruppo(Point posizione) {
+        int dx = posizione.x - inizioGruppo.x - spostamentoGruppo.x;
+        int dy = posizione.y - inizioGruppo.y - spostamentoGruppo.y;
+        if (dx == 0 && dy == 0) return;
+        documento.spostaForme(indiciSelezione(), dx, dy);
+        spostamentoGruppo.translate(dx, dy);
+        moved = true;
+        // Il documento è stato modificato
+        saved = false;
+        setStatus("Spostate " + selezione.cardinality() + " forme");
     }
 
     @Override
@@ -1299,6 +2211,20 @@ public class Controller extends JFrame implements MouseListener, MouseMotionList
     @Override
     public void windowClosed(WindowEvent e) {}
 
+    /**
+     * Metodo eseguito quando l'utente seleziona una riga della vista testuale:
+     * seleziona la forma corrispondente.
+     * 
+     * @param e l'evento generato dalla selezione
+     */
+    @Override
+    public void valueChanged(ListSelectionEvent e) {
+        int indice = vistaTesto.getRigaSelezionata();
+        if (indice != -1 && indice != selezionata) {
+            selezionaForma(indice);
+        }
+    }
+
     @Override
     public void windowIconified(WindowEvent e) {}
 
@@ -0,0 +1,242 @@
+package graphiceditormvc;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Disegna un documento di tipo Model suddividendolo in tessere quadrate di LATO_TESSERA pixel.
+ * Ogni tessera viene disegnata una sola volta in un'immagine memorizzata e ridisegnata
+ * solo quando una modifica del documento la rende non valida (metodo invalida).
+ * Le tessere da ridisegnare vengono disegnate in parallelo dai thread di un pool condiviso,
+ * mentre il thread grafico attende e poi copia le immagini nel contesto grafico della vista.
+ * <p>
+ * Le forme vengono disegnate con le stesse regole della vista grafica (GraphicView.disegnaForma),
+ * compresa la forma bianca semitrasparente sovrapposta alle forme selezionate.
+ * Durante il disegno delle tessere il thread grafico e' fermo, per cui il documento
+ * non puo' essere modificato; gli indici delle forme di ogni tessera vengono comunque
+ * cercati dal thread grafico prima di avviare i thread del pool.
+ * <p>
+ * Per limitare la memoria vengono conservate al massimo MAX_TESSERE immagini
+ * (oltre a quelle necessarie per l'area da disegnare): le meno usate di recente vengono eliminate.
+ *
+ * @see GraphicView
+ *
+ * @author mauropamiro
+ */
+class DisegnatoreTessere {
+    /** Il lato di una tessera, in pixel. */
+    static final int LATO_TESSERA = 256;
+    /** Il numero massimo di tessere conservate (256 tessere occupano circa 64 MB). */
+    static final int MAX_TESSERE = 256;
+    /** Il numero massimo di forme selezionate di cui memorizzare le aree: oltre, un cambio di selezione ridisegna tutte le tessere. */
+    static final int MAX_AREE_SELEZIONE = 4096;
+
+    /** Il pool di thread che disegnano le tessere, condiviso da tutte le viste. */
+    private static final ExecutorService ESECUTORE = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    // Thread demone: non impediscono la chiusura del programma
+                    Thread t = new Thread(r, "Disegno tessere");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** Le immagini delle tessere valide, per posizione, dalla meno usata di recente. */
+    private final LinkedHashMap<Long, BufferedImage> tessere = new LinkedHashMap<Long, BufferedImage>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+            return size() > Math.max(MAX_TESSERE, tessereInUso);
+        }
+    };
+    /** Il numero di tessere necessarie per l'area che si sta disegnando (non vengono eliminate). */
+    private int tessereInUso;
+    /** Il documento disegnato nelle tessere. */
+    private Model documento;
+    /** Gli indici delle forme selezionate quando sono state disegnate le tessere (una copia, mai modificata). */
+    private BitSet selezione = new BitSet();
+    /** I rettangoli che contengono le forme selezionate quando sono state disegnate le tessere (null se sono troppe). */
+    private List<Rectangle> areeSelezione = new ArrayList<Rectangle>();
+
+
+    /**
+     * Rende non valide le tessere che intersecano l'area specificata del documento.
+     *
+     * @param area l'area del documento modificata
+     */
+    void invalida(Rectangle area) {
+        if (area == null || area.isEmpty() || tessere.isEmpty()) return;
+        int tx1 = Math.max(area.x, 0) / LATO_TESSERA, ty1 = Math.max(area.y, 0) / LATO_TESSERA;
+        int tx2 = Math.max(area.x + area.width - 1, 0) / LATO_TESSERA, ty2 = Math.max(area.y + area.height - 1, 0) / LATO_TESSERA;
+        if ((long) (tx2 - tx1 + 1) * (ty2 - ty1 + 1) > tessere.size()) {
+            // L'area contiene piu' tessere di quelle memorizzate: controllo quelle memorizzate
+            Iterator<Long> chiavi = tessere.keySet().iterator();
+            while (chiavi.hasNext()) {
+                long chiave = chiavi.next();
+                int tx = (int) (chiave >> 32), ty = (int) chiave;
+                if (tx >= tx1 && tx <= tx2 && ty >= ty1 && ty <= ty2) chiavi.remove();
+            }
+        } else {
+            for (int ty = ty1; ty <= ty2; ty++) {
+                for (int tx = tx1; tx <= tx2; tx++) tessere.remove(chiave(tx, ty));
+            }
+        }
+    }
+
+    /** Rende non valide tutte le tessere, liberando la memoria che occupano. */
+    void invalidaTutto() {
+        tessere.clear();
+    }
+
+    /** Restituisce la chiave della tessera di coordinate (tx,ty). */
+    private static long chiave(int tx, int ty) {
+        return ((long) tx << 32) | (ty & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Disegna la parte del documento che interseca l'area specificata, ridisegnando
+     * in parallelo le tessere non valide. Va chiamato dal thread grafico.
+     *
+     * @param g il contesto grafico in cui disegnare
+     * @param documento il documento da disegnare
+     * @param selezione gli indici delle forme selezionate
+     * @param clip l'area da disegnare
+     */
+    void disegna(Graphics g, Model documento, BitSet selezione, Rectangle clip) {
+        if (documento != this.documento) {
+            invalidaTutto();
+            this.documento = documento;
+        }
+        // Se la selezione e' cambiata (o le forme selezionate si sono spostate) ridisegno le tessere della vecchia e della nuova
+        List<Rectangle> aree = areeSelezione(documento, selezione);
+        if (!selezione.equals(this.selezione) || (aree != null && !aree.equals(areeSelezione))) {
+            if (aree == null || areeSelezione == null) {
+                invalidaTutto();
+            } else {
+                for (Rectangle r : areeSelezione) invalida(ingrandisci(r));
+                for (Rectangle r : aree) invalida(ingrandisci(r));
+            }
+            this.selezione = (BitSet) selezione.clone();
+        }
+        areeSelezione = aree;
+        // Tessere che intersecano l'area da disegnare (solo all'interno del documento)
+        Rectangle interna = clip.intersection(new Rectangle(0, 0, documento.getWidth(), documento.getHeight()));
+        if (interna.isEmpty()) return;
+        int tx1 = interna.x / LATO_TESSERA, ty1 = interna.y / LATO_TESSERA;
+        int tx2 = (interna.x + interna.width - 1) / LATO_TESSERA, ty2 = (interna.y + interna.height - 1) / LATO_TESSERA;
+        tessereInUso = (tx2 - tx1 + 1) * (ty2 - ty1 + 1);
+        // Preparo il disegno delle tessere non valide
+        List<Long> chiavi = new ArrayList<Long>();
+        List<Callable<BufferedImage>> lavori = new ArrayList<Callable<BufferedImage>>();
+        for (int ty = ty1; ty <= ty2; ty++) {
+            for (int tx = tx1; tx <= tx2; tx++) {
+                // get (e non containsKey) rende la tessera la piu' usata di recente: non verra' eliminata
+                if (tessere.get(chiave(tx, ty)) == null) {
+                    chiavi.add(chiave(tx, ty));
+                    lavori.add(new DisegnoTessera(documento, tx, ty, this.selezione));
+                }
+            }
+        }
+        disegnaTessere(chiavi, lavori);
+        // Copio le tessere nel contesto grafico
+        for (int ty = ty1; ty <= ty2; ty++) {
+            for (int tx = tx1; tx <= tx2; tx++) {
+                BufferedImage tessera = tessere.get(chiave(tx, ty));
+                if (tessera != null) {
+                    g.drawImage(tessera, tx * LATO_TESSERA, ty * LATO_TESSERA, null);
+                } else {
+                    // Disegno interrotto: lascio la tessera bianca
+                    g.setColor(Color.white);
+                    g.fillRect(tx * LATO_TESSERA, ty * LATO_TESSERA, LATO_TESSERA, LATO_TESSERA);
+                }
+            }
+        }
+    }
+
+    /** Esegue i lavori di disegno (in parallelo se sono piu' di uno) e memorizza le tessere ottenute. */
+    private void disegnaTessere(List<Long> chiavi, List<Callable<BufferedImage>> lavori) {
+        try {
+            if (lavori.size() == 1) {
+                tessere.put(chiavi.get(0), lavori.get(0).call());
+                return;
+            }
+            List<Future<BufferedImage>> risultati = ESECUTORE.invokeAll(lavori);
+            for (int i = 0; i < risultati.size(); i++) {
+                tessere.put(chiavi.get(i), risultati.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            // Le tessere mancanti verranno disegnate al prossimo ridisegno
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Errore nel disegno delle tessere", e.getCause());
+        } catch (Exception e) {
+            throw new IllegalStateException("Errore nel disegno delle tessere", e);
+        }
+    }
+
+    /** Restituisce i rettangoli che contengono le forme selezionate, o null se sono piu' di MAX_AREE_SELEZIONE. */
+    private static List<Rectangle> areeSelezione(Model documento, BitSet selezione) {
+        if (selezione.cardinality() > MAX_AREE_SELEZIONE) return null;
+        List<Rectangle> aree = new ArrayList<Rectangle>();
+        for (int i = selezione.nextSetBit(0); i >= 0 && i < documento.nForme(); i = selezione.nextSetBit(i + 1)) {
+            aree.add(documento.getForma(i).getBounds());
+        }
+        return aree;
+    }
+
+    /** Restituisce il rettangolo ingrandito di un pixel a destra e in basso (bordi delle forme), o null. */
+    private static Rectangle ingrandisci(Rectangle r) {
+        return r == null ? null : new Rectangle(r.x, r.y, r.width + 1, r.height + 1);
+    }
+
+
+    /** Il disegno di una tessera, eseguito da un thread del pool. */
+    private static class DisegnoTessera implements Callable<BufferedImage> {
+        private final Model documento;
+        private final int tx, ty;
+        private final BitSet selezione;
+        /** Gli indici delle forme che intersecano la tessera (cercati nel thread grafico). */
+        private final int[] forme;
+
+        DisegnoTessera(Model documento, int tx, int ty, BitSet selezione) {
+            this.documento = documento;
+            this.tx = tx;
+            this.ty = ty;
+            this.selezione = selezione;
+            this.forme = documento.cercaForme(new Rectangle(tx * LATO_TESSERA, ty * LATO_TESSERA, LATO_TESSERA, LATO_TESSERA));
+        }
+
+        @Override
+        public BufferedImage call() {
+            BufferedImage tessera = new BufferedImage(LATO_TESSERA, LATO_TESSERA, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = tessera.createGraphics();
+            try {
+                g.setColor(Color.white);
+                g.fillRect(0, 0, LATO_TESSERA, LATO_TESSERA);
+                g.translate(-tx * LATO_TESSERA, -ty * LATO_TESSERA);
+                for (int k = 0; k < forme.length; k++) {
+                    GraphicView.disegnaForma(g, documento.getForma(forme[k]), selezione.get(forme[k]));
+                }
+            } finally {
+                g.dispose();
+            }
+            return tessera;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package graphiceditormvc;
+
+import com.itextpdf.text.BaseColor;
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.pdf.PdfContentByte;
+import com.itextpdf.text.pdf.PdfGState;
+import com.itextpdf.text.pdf.PdfTemplate;
+import com.itextpdf.text.pdf.PdfWriter;
+import java.awt.Color;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Esporta un documento di tipo Model in un file PDF di una pagina, usando la libreria iText.
+ * Le forme vengono scritte come tracciati vettoriali (rettangolo, ellisse, triangolo)
+ * con le stesse coordinate della vista grafica: un pixel del documento corrisponde a un punto PDF.
+ * <p>
+ * Il contenuto di una pagina PDF viene tenuto in memoria fino alla chiusura della pagina:
+ * per questo le forme vengono scritte a gruppi di FORME_PER_BLOCCO in oggetti PdfTemplate
+ * (XObject), ciascuno dei quali viene scritto nel file e rilasciato subito dopo essere stato completato.
+ * La memoria usata non dipende quindi dal numero di forme del documento.
+ *
+ * @see GraphicView
+ *
+ * @author mauropamiro
+ */
+public class EsportaPdf {
+    /** Il numero di forme scritte in ogni blocco (PdfTemplate). */
+    static final int FORME_PER_BLOCCO = 10000;
+
+    private EsportaPdf() {
+    }
+
+    /**
+     * Scrive il documento nel file PDF specificato. Il file viene sostituito solo
+     * a scrittura completata: se la scrittura non riesce il file precedente resta intatto.
+     *
+     * @param documento il documento da esportare (non deve essere modificato durante la scrittura)
+     * @param file il file PDF da scrivere
+     *
+     * @throws IOException in caso di errore di scrittura
+     */
+    public static void esporta(Model documento, File file) throws IOException {
+        File temporaneo = FormatoDrw.temporaneo(file);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temporaneo), 1 << 16);
+            try {
+                esporta(documento, out);
+            } finally {
+                out.close();
+            }
+            FormatoDrw.sostituisci(temporaneo, file);
+        } finally {
+            if (temporaneo.exists()) temporaneo.delete();
+        }
+    }
+
+    /**
+     * Scrive il documento in formato PDF nel flusso specificato (che non viene chiuso).
+     *
+     * @param documento il documento da esportare
+     * @param out il flusso in cui scrivere il PDF
+     *
+     * @throws IOException in caso di errore di scrittura
+     */
+    public static void esporta(Model documento, OutputStream out) throws IOException {
+        int width = Math.max(1, documento.getWidth());
+        int height = Math.max(1, documento.getHeight());
+        Document pdf = new Document(new com.itextpdf.text.Rectangle(width, height), 0, 0, 0, 0);
+        try {
+            PdfWriter writer = PdfWriter.getInstance(pdf, out);
+            writer.setCloseStream(false);
+            writer.setFullCompression();
+            pdf.open();
+            PdfContentByte pagina = writer.getDirectContent();
+            // Sfondo bianco, come nella vista grafica
+            pagina.setColorFill(BaseColor.WHITE);
+            pagina.rectangle(0, 0, width, height);
+            pagina.fill();
+            // Stati grafici per le trasparenze, uno per ogni valore di alfa usato
+            HashMap<Integer, PdfGState> trasparenze = new HashMap<Integer, PdfGState>();
+            int n = documento.nForme();
+            for (int inizio = 0; inizio < n; inizio += FORME_PER_BLOCCO) {
+                PdfTemplate blocco = pagina.createTemplate(width, height);
+                int fine = Math.min(n, inizio + FORME_PER_BLOCCO);
+                Color ultimo = null;
+                for (int i = inizio; i < fine; i++) {
+                    Forma f = documento.getForma(i);
+                    // Cambio colore solo se necessario (le forme condividono i colori della tavolozza)
+                    if (!f.getColore().equals(ultimo)) {
+                        impostaColore(blocco, f.getColore(), ultimo, trasparenze);
+                        ultimo = f.getColore();
+                    }
+                    traccia(blocco, f, height);
+                    blocco.fill();
+                }
+                pagina.addTemplate(blocco, 0, 0);
+                // Scrivo subito il blocco nel file, liberando la memoria che occupa
+                writer.releaseTemplate(blocco);
+            }
+            pdf.close();
+        } catch (DocumentException e) {
+            throw new IOException("Errore nella creazione del PDF", e);
+        }
+    }
+
+    /** Imposta il colore di riempimento e, se e' cambiata rispetto al colore precedente, la trasparenza. */
+    private static void impostaColore(PdfContentByte cb, Color colore, Color precedente, HashMap<Integer, PdfGState> trasparenze) {
+        if (precedente == null || precedente.getAlpha() != colore.getAlpha()) {
+            Integer alfa = colore.getAlpha();
+            PdfGState stato = trasparenze.get(alfa);
+            if (stato == null) {
+                stato = new PdfGState();
+                stato.setFillOpacity(alfa / 255f);
+                trasparenze.put(alfa, stato);
+            }
+            cb.setGState(stato);
+        }
+        cb.setRGBColorFill(colore.getRed(), colore.getGreen(), colore.getBlue());
+    }
+
+    /**
+     * Aggiunge il tracciato della forma, con gli stessi vertici usati dalla vista grafica.
+     * L'asse y del PDF e' rivolto verso l'alto: le coordinate vengono ribaltate.
+     */
+    private static void traccia(PdfContentByte cb, Forma f, int height) {
+        int x = f.getX(), y = f.getY(), w = f.getWidth(), h = f.getHeight();
+        if (f.getTipo() == TipoForma.QUADRATO) {
+            cb.rectangle(x, height - y - h, w, h);
+        } else if (f.getTipo() == TipoForma.CERCHIO) {
+            cb.ellipse(x, height - y - h, x + w, height - y);
+        } else {
+            cb.moveTo(x + w / 2, height - y);
+            cb.lineTo(x + w, height - y - h);
+            cb.lineTo(x, height - y - h);
+            cb.closePath();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package graphiceditormvc;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+
+/**
+ * Programma a riga di comando, senza interfaccia grafica, che converte documenti .drw
+ * in immagini PNG disegnando le forme con le stesse regole della vista grafica
+ * (GraphicView.disegnaForma). Puo' essere eseguito anche su sistemi senza schermo.
+ * <p>
+ * Uso: <code>java -cp GraphicEditorMVC.jar graphiceditormvc.EsportaPng [-o cartella] [-t thread] file|cartella...</code>
+ * <ul>
+ * <li>file|cartella: i documenti da convertire (di una cartella vengono convertiti tutti i file .drw);
+ * <li>-o cartella: la cartella in cui scrivere le immagini (per default quella di ogni documento);
+ * <li>-t thread: il numero di documenti convertiti in parallelo (per default il numero di processori).
+ * </ul>
+ * Ogni immagine ha il nome del documento con estensione .png; se due documenti produrrebbero
+ * la stessa immagine (ad esempio documenti con lo stesso nome in cartelle diverse e l'opzione -o)
+ * non viene convertito nulla. Poiche' ogni thread converte un documento alla volta, la memoria usata
+ * e' limitata a circa un documento e un'immagine per thread: le immagini vengono rimpicciolite
+ * se superano MAX_PIXEL pixel o la parte della memoria disponibile che spetta a ogni thread (vedi maxPixel).
+ * Al termine viene indicato il numero di file convertiti al secondo.
+ *
+ * @see GraphicView
+ * @see FormatoDrw
+ *
+ * @author mauropamiro
+ */
+public class EsportaPng {
+    /** Il numero massimo di pixel di un'immagine (64 milioni di pixel occupano 256 MB). */
+    static final long MAX_PIXEL = 64L * 1024 * 1024;
+    /** I byte occupati da un pixel delle immagini (BufferedImage.TYPE_INT_RGB). */
+    private static final int BYTE_PER_PIXEL = 4;
+
+    private EsportaPng() {
+    }
+
+    /**
+     * Converte in PNG i documenti indicati sulla riga di comando.
+     *
+     * @param args le opzioni e i documenti da convertire
+     */
+    public static void main(String[] args) {
+        // Nessuna finestra: il programma puo' girare senza schermo
+        System.setProperty("java.awt.headless", "true");
+        File cartella = null;
+        int nThread = Runtime.getRuntime().availableProcessors();
+        List<File> documenti = new ArrayList<File>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-o".equals(args[i]) && i + 1 < args.length) {
+                    cartella = new File(args[++i]);
+                } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                    nThread = Math.max(1, Integer.parseInt(args[++i]));
+                } else {
+                    aggiungiDocumenti(new File(args[i]), documenti);
+                }
+            }
+        } catch (NumberFormatException e) {
+            documenti.clear();
+        }
+        if (documenti.isEmpty()) {
+            System.err.println("Uso: java -cp GraphicEditorMVC.jar graphiceditormvc.EsportaPng [-o cartella] [-t thread] file|cartella...");
+            System.exit(2);
+        }
+        if (cartella != null && !cartella.isDirectory() && !cartella.mkdirs()) {
+            System.err.println("Impossibile creare la cartella " + cartella);
+            System.exit(2);
+        }
+        if (!immaginiDistinte(documenti, cartella)) System.exit(2);
+        System.exit(esporta(documenti, cartella, nThread) == documenti.size() ? 0 : 1);
+    }
+
+    /** Aggiunge all'elenco il file o, se si tratta di una cartella, i file .drw che contiene. */
+    private static void aggiungiDocumenti(File file, List<File> documenti) {
+        if (file.isDirectory()) {
+            File[] contenuto = file.listFiles();
+            if (contenuto == null) return;
+            for (File f : contenuto) {
+                if (f.isFile() && f.getName().toLowerCase().endsWith(".drw")) documenti.add(f);
+            }
+        } else {
+            documenti.add(file);
+        }
+    }
+
+    /**
+     * Controlla che i documenti producano immagini diverse, scrivendo sullo standard error
+     * i documenti che scriverebbero la stessa immagine (i nomi vengono confrontati
+     * senza distinguere maiuscole e minuscole, come in alcuni file system).
+     *
+     * @param documenti i documenti da convertire
+     * @param cartella la cartella in cui scrivere le immagini (null per la cartella di ogni documento)
+     *
+     * @return true se tutte le immagini sono diverse
+     */
+    static boolean immaginiDistinte(List<File> documenti, File cartella) {
+        Map<String, File> immagini = new HashMap<String, File>();
+        boolean distinte = true;
+        for (File documento : documenti) {
+            String immagine = immagine(documento, cartella).getAbsolutePath();
+            File precedente = immagini.put(immagine.toLowerCase(Locale.ROOT), documento);
+            if (precedente != null) {
+                System.err.println(precedente + " e " + documento + " scriverebbero la stessa immagine " + immagine);
+                distinte = false;
+            }
+        }
+        return distinte;
+    }
+
+    /**
+     * Restituisce il numero massimo di pixel delle immagini quando nThread documenti vengono
+     * convertiti in parallelo: MAX_PIXEL, ridotto se le immagini di tutti i thread occuperebbero
+     * piu' di meta' della memoria massima della JVM (l'altra meta' resta ai documenti e alla codifica PNG).
+     *
+     * @param nThread il numero di documenti convertiti in parallelo
+     *
+     * @return il numero massimo di pixel di ogni immagine
+     */
+    static long maxPixel(int nThread) {
+        long memoria = Runtime.getRuntime().maxMemory() / 2 / BYTE_PER_PIXEL / Math.max(1, nThread);
+        return Math.max(1, Math.min(MAX_PIXEL, memoria));
+    }
+
+    /**
+     * Converte in parallelo i documenti in immagini PNG, scrivendo sullo standard output
+     * l'esito di ogni conversione e il numero di file convertiti al secondo.
+     *
+     * @param documenti i documenti da convertire
+     * @param cartella la cartella in cui scrivere le immagini (null per la cartella di ogni documento)
+     * @param nThread il numero di documenti da convertire in parallelo
+     *
+     * @return il numero di documenti convertiti correttamente
+     */
+    static int esporta(List<File> documenti, final File cartella, int nThread) {
+        long inizio = System.nanoTime();
+        final long maxPixel = maxPixel(nThread);
+        ExecutorService esecutore = Executors.newFixedThreadPool(nThread);
+        CompletionService<File> completati = new ExecutorCompletionService<File>(esecutore);
+        for (final File documento : documenti) {
+            completati.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    File immagine = immagine(documento, cartella);
+                    esporta(documento, immagine, maxPixel);
+                    return immagine;
+                }
+            });
+        }
+        int convertiti = 0;
+        try {
+            for (int i = 0; i < documenti.size(); i++) {
+                try {
+                    System.out.println("Scritto " + completati.take().get());
+                    convertiti++;
+                } catch (ExecutionException e) {
+                    System.err.println("Errore: " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            esecutore.shutdownNow();
+        }
+        double secondi = (System.nanoTime() - inizio) / 1e9;
+        System.out.printf("%d file convertiti su %d in %.2f s (%.1f file/s)%n", convertiti, documenti.size(), secondi, convertiti / secondi);
+        return convertiti;
+    }
+
+    /** Restituisce il file dell'immagine del documento, nella cartella specificata (null per la cartella del documento). */
+    private static File immagine(File documento, File cartella) {
+        return new File(cartella != null ? cartella : documento.getAbsoluteFile().getParentFile(), nomeImmagine(documento));
+    }
+
+    /** Restituisce il nome dell'immagine: il nome del documento con estensione .png. */
+    private static String nomeImmagine(File documento) {
+        String nome = documento.getName();
+        int punto = nome.lastIndexOf('.');
+        return (punto > 0 ? nome.substring(0, punto) : nome) + ".png";
+    }
+
+    /**
+     * Converte un documento in un'immagine PNG.
+     *
+     * @param documento il file del documento
+     * @param immagine il file dell'immagine da scrivere
+     * @param maxPixel il numero massimo di pixel dell'immagine (vedi maxPixel)
+     *
+     * @throws IOException in caso di errore di lettura o di scrittura
+     */
+    static void esporta(File documento, File immagine, long maxPixel) throws IOException {
+        BufferedImage img = disegna(FormatoDrw.apri(documento), maxPixel);
+        if (!ImageIO.write(img, "png", immagine)) throw new IOException("Formato PNG non disponibile");
+    }
+
+    /**
+     * Disegna il documento in un'immagine, con sfondo bianco e nessuna forma selezionata.
+     * Se il documento ha piu' di maxPixel pixel l'immagine viene rimpicciolita.
+     *
+     * @param documento il documento da disegnare
+     * @param maxPixel il numero massimo di pixel dell'immagine
+     *
+     * @return l'immagine del documento
+     */
+    static BufferedImage disegna(Model documento, long maxPixel) {
+        double scala = 1;
+        long pixel = (long) documento.getWidth() * documento.getHeight();
+        if (pixel > maxPixel) scala = Math.sqrt((double) maxPixel / pixel);
+        int width = Math.max(1, (int) (documento.getWidth() * scala));
+        int height = Math.max(1, (int) (documento.getHeight() * scala));
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        try {
+            g.setColor(Color.white);
+            g.fillRect(0, 0, width, height);
+            if (scala != 1) g.scale(scala, scala);
+            for (int i = 0; i < documento.nForme(); i++) {
+                GraphicView.disegnaForma(g, documento.getForma(i), false);
+            }
+        } finally {
+            g.dispose();
+        }
+        return img;
+    }
+}
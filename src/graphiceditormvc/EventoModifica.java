@@ -0,0 +1,177 @@
+package graphiceditormvc;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Descrive una modifica di un documento di tipo Model.
+ * Viene passato come argomento alle viste (metodo update degli Observer)
+ * ogni volta che il documento viene modificato, in modo che le viste possano
+ * aggiornarsi in modo incrementale, senza riesaminare tutto il documento.
+ * <p>
+ * Le operazioni su piu' forme (ad esempio l'eliminazione delle forme selezionate) vengono notificate
+ * con un unico evento di tipo MULTIPLA, che contiene le modifiche elementari nell'ordine in cui
+ * applicarle per ottenere lo stesso risultato (getModifiche).
+ *
+ * @see Model
+ *
+ * @author mauropamiro
+ */
+public class EventoModifica {
+
+    /** Il tipo di modifica subita dal documento. */
+    public enum Tipo {
+        /** Una forma (o una serie di forme consecutive, da indice a nuovoIndice) e' stata inserita nel documento */
+        INSERIMENTO,
+        /** Una forma e' stata eliminata dal documento */
+        ELIMINAZIONE,
+        /** Una forma e' stata spostata in un altro punto del documento */
+        SPOSTAMENTO,
+        /** Una forma e' stata spostata in un'altra posizione dell'elenco delle forme (primo piano / sfondo) */
+        RIORDINO,
+        /** Il documento ha subito una serie di modifiche elementari, notificate insieme (vedi getModifiche) */
+        MULTIPLA
+    }
+
+    /** Il numero massimo di aree di un evento MULTIPLA: oltre questo numero l'evento ha un'unica area che le contiene tutte. */
+    static final int MAX_AREE = 1000;
+
+    /** Il tipo di modifica. */
+    private final Tipo tipo;
+    /** L'indice della forma modificata (per RIORDINO l'indice prima dello spostamento). */
+    private final int indice;
+    /** Per RIORDINO l'indice della forma dopo lo spostamento, per INSERIMENTO l'indice dell'ultima forma inserita, altrimenti uguale a indice. */
+    private final int nuovoIndice;
+    /** La forma inserita, eliminata, spostata o riordinata. */
+    private final Forma forma;
+    /** Le aree del documento da ridisegnare. */
+    private final Rectangle[] aree;
+    /** Per MULTIPLA le modifiche elementari, in ordine (null per gli altri tipi). */
+    private final EventoModifica[] modifiche;
+
+
+    /**
+     * Crea un evento di modifica del documento.
+     *
+     * @param tipo il tipo di modifica
+     * @param indice l'indice della forma modificata (per RIORDINO l'indice prima dello spostamento)
+     * @param nuovoIndice per RIORDINO l'indice della forma dopo lo spostamento, per INSERIMENTO
+     *                    l'indice dell'ultima forma inserita, altrimenti uguale a indice
+     * @param forma la forma inserita (l'ultima se sono piu' di una), eliminata, spostata o riordinata
+     * @param aree le aree del documento modificate
+     */
+    public EventoModifica(Tipo tipo, int indice, int nuovoIndice, Forma forma, Rectangle... aree) {
+        this.tipo = tipo;
+        this.indice = indice;
+        this.nuovoIndice = nuovoIndice;
+        this.forma = forma;
+        this.aree = aree;
+        this.modifiche = null;
+    }
+
+    /**
+     * Crea un evento di tipo MULTIPLA che riunisce una serie di modifiche elementari.
+     * L'indice dell'evento e' il piu' basso tra quelli delle modifiche, il nuovo indice il piu' alto;
+     * le aree sono quelle delle modifiche o, se sono piu' di MAX_AREE, un'unica area che le contiene tutte.
+     *
+     * @param modifiche le modifiche elementari (nessuna di tipo MULTIPLA), nell'ordine in cui sono state applicate
+     */
+    public EventoModifica(List<EventoModifica> modifiche) {
+        this.tipo = Tipo.MULTIPLA;
+        this.forma = null;
+        this.modifiche = modifiche.toArray(new EventoModifica[modifiche.size()]);
+        int min = Integer.MAX_VALUE, max = -1;
+        List<Rectangle> elenco = new ArrayList<Rectangle>();
+        Rectangle unione = null;
+        for (EventoModifica m : this.modifiche) {
+            min = Math.min(min, Math.min(m.indice, m.nuovoIndice));
+            max = Math.max(max, Math.max(m.indice, m.nuovoIndice));
+            for (Rectangle r : m.aree) {
+                if (elenco.size() < MAX_AREE) elenco.add(r);
+                if (unione == null) unione = new Rectangle(r);
+                else unione.add(r);
+            }
+        }
+        this.indice = max < 0 ? 0 : min;
+        this.nuovoIndice = max < 0 ? 0 : max;
+        if (unione == null) this.aree = new Rectangle[0];
+        else if (elenco.size() < MAX_AREE) this.aree = elenco.toArray(new Rectangle[elenco.size()]);
+        else this.aree = new Rectangle[]{unione};
+    }
+
+    /**
+     * Restituisce il tipo di modifica.
+     *
+     * @return il tipo di modifica
+     */
+    public Tipo getTipo() {
+        return tipo;
+    }
+
+    /**
+     * Restituisce l'indice della forma modificata.
+     * Per RIORDINO e' l'indice della forma prima dello spostamento,
+     * per MULTIPLA il piu' basso tra gli indici delle modifiche.
+     *
+     * @return l'indice della forma modificata
+     */
+    public int getIndice() {
+        return indice;
+    }
+
+    /**
+     * Restituisce l'indice della forma dopo la modifica:
+     * diverso da getIndice solo per RIORDINO e per l'INSERIMENTO di piu' forme
+     * (in questo caso e' l'indice dell'ultima forma inserita); per MULTIPLA
+     * e' il piu' alto tra gli indici delle modifiche.
+     *
+     * @return l'indice della forma dopo la modifica
+     */
+    public int getNuovoIndice() {
+        return nuovoIndice;
+    }
+
+    /**
+     * Restituisce la forma inserita, eliminata, spostata o riordinata.
+     *
+     * @return la forma coinvolta nella modifica (null per MULTIPLA)
+     */
+    public Forma getForma() {
+        return forma;
+    }
+
+    /**
+     * Restituisce le modifiche elementari di un evento MULTIPLA, nell'ordine in cui sono state applicate:
+     * ciascuna si riferisce agli indici del documento dopo le modifiche che la precedono.
+     *
+     * @return le modifiche elementari, o null se l'evento non e' di tipo MULTIPLA
+     */
+    public EventoModifica[] getModifiche() {
+        return modifiche;
+    }
+
+    /**
+     * Restituisce le aree del documento modificate: l'area occupata dalla forma
+     * (o dalle forme) inserita, eliminata o riordinata; per SPOSTAMENTO la vecchia e la nuova posizione.
+     *
+     * @return le aree del documento da ridisegnare
+     */
+    public Rectangle[] getAree() {
+        return aree;
+    }
+
+    /**
+     * Fornisce una descrizione testuale dell'evento, ad esempio:
+     * INSERIMENTO 3: QUADRATO (136,137) [W:50,H:50]->java.awt.Color[r=0,g=0,b=255]
+     *
+     * @return la descrizione testuale dell'evento
+     */
+    @Override
+    public String toString() {
+        if(tipo==Tipo.MULTIPLA) return tipo+" "+indice+"-"+nuovoIndice+": "+modifiche.length+" modifiche";
+        if(tipo==Tipo.RIORDINO) return tipo+" "+indice+"->"+nuovoIndice+": "+forma;
+        if(tipo==Tipo.INSERIMENTO && nuovoIndice!=indice) return tipo+" "+indice+"-"+nuovoIndice+": "+forma;
+        return tipo+" "+indice+": "+forma;
+    }
+}
@@ -1,20 +1,26 @@
 package graphiceditormvc;
 
 import java.awt.*;
-import java.awt.geom.Ellipse2D; // Per disegnare cerchi
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable; // Per salvare la forma in un file binario
 
 
 /**
  * Rappresenta un elemento grafico di un documento di tipo Model.
  * Puo' essere di uno dei tipi definiti nella enumerazone TipoForma.
+ * Il colore della forma viene preso dalla tavolozza condivisa (TavolozzaColori):
+ * le forme con lo stesso colore condividono lo stesso oggetto Color.
  * 
  * @author mauropamiro
  * 
  * @see TipoForma
  * @see Model
+ * @see TavolozzaColori
  */
 public class Forma implements Serializable{
+    /** Versione della classe serializzata (mantiene leggibili i file salvati in precedenza). */
+    private static final long serialVersionUID = -5385319001415159409L;
     /** Il tipo della forma. */
     private TipoForma tipo;
     /** Il colore della forma. */
@@ -45,7 +51,7 @@ public class Forma implements Serializable{
         this.y=y;
         this.width=width;
         this.height=height;
-        this.colore=colore;
+        this.colore=TavolozzaColori.interna(colore);
     }
 
 
@@ -119,6 +125,16 @@ public class Forma implements Serializable{
     }
 
     
+    /**
+     * Restituisce il rettangolo che contiene la forma.
+     * 
+     * @return  un nuovo oggetto Rectangle con posizione e dimensioni del rettangolo che contiene la forma
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(x, y, width, height);
+    }
+
+    
     /**
      * Sposta la forma nel punto (x,y).
      * Il punto rappresenta il vertice in alto a sinistra del rettangolo che contiene la forma.
@@ -157,23 +173,111 @@ public class Forma implements Serializable{
      * @return  true se il punto (x,y) e' contenuto nella forma, false altrimenti
      */
     public boolean contiene(int x, int y){
-        // Creo un oggetto Point che rappresenta il punto alle coordinate del mouse
-        Point punto=new Point(x, y);
-        // A seconda del tipo della forma, controllo che il punto sia contenuto nel cerchio
-        if(tipo==TipoForma.CERCHIO){
-            Ellipse2D.Float forma=new Ellipse2D.Float(this.x, this.y, width, height);
-            return forma.contains(punto);
-        }
-        else if(tipo==TipoForma.QUADRATO){
-            Rectangle forma=new Rectangle(this.x,this.y,width,height);
-            return forma.contains(punto);
+        return contiene(tipo, this.x, this.y, width, height, x, y);
+    }
+    
+    
+    /**
+     * Stabilisce se il punto di coordinate (px,py) e' contenuto in una forma 
+     * di tipo, posizione e dimensioni specificate.
+     * <p>
+     * Il calcolo usa solo aritmetica sui tipi primitivi e non crea nessun oggetto,
+     * ma riproduce esattamente i controlli eseguiti dai metodi contains delle classi
+     * Rectangle (quadrato), Ellipse2D.Float (cerchio) e Polygon (triangolo),
+     * cioe' delle stesse forme usate per disegnare.
+     * 
+     * @param tipo  il tipo della forma
+     * @param x     la coordinata x del vertice in alto a sinistra del rettangolo che contiene la forma
+     * @param y     la coordinata y del vertice in alto a sinistra del rettangolo che contiene la forma
+     * @param width la larghezza del rettangolo che contiene la forma
+     * @param height l'altezza del rettangolo che contiene la forma
+     * @param px    la coordinata x del punto da controllare
+     * @param py    la coordinata y del punto da controllare
+     * 
+     * @return  true se il punto (px,py) e' contenuto nella forma, false altrimenti
+     */
+    static boolean contiene(TipoForma tipo, int x, int y, int width, int height, int px, int py){
+        if(tipo==TipoForma.CERCHIO) return contieneEllisse(x, y, width, height, px, py);
+        else if(tipo==TipoForma.QUADRATO) return contieneRettangolo(x, y, width, height, px, py);
+        else return contieneTriangolo(x, y, width, height, px, py);
+    }
+    
+    /** Come Rectangle.contains(int,int), compresi i controlli di overflow. */
+    private static boolean contieneRettangolo(int x, int y, int w, int h, int px, int py){
+        if((w | h) < 0) return false;
+        if(px < x || py < y) return false;
+        w += x;
+        h += y;
+        return ((w < x || w > px) && (h < y || h > py));
+    }
+    
+    /** Come Ellipse2D.Float.contains(double,double): le coordinate passano per float come nella classe originale. */
+    private static boolean contieneEllisse(int x, int y, int width, int height, int px, int py){
+        double ellw=(float)width;
+        if(ellw <= 0.0) return false;
+        double normx=(px - (double)(float)x) / ellw - 0.5;
+        double ellh=(float)height;
+        if(ellh <= 0.0) return false;
+        double normy=(py - (double)(float)y) / ellh - 0.5;
+        return (normx * normx + normy * normy) < 0.25;
+    }
+    
+    /** 
+     * Come Polygon.contains(double,double) per il triangolo con vertici
+     * (x+width/2,y), (x+width,y+height), (x,y+height).
+     */
+    private static boolean contieneTriangolo(int x, int y, int width, int height, int px, int py){
+        int x0=x+width/2, x1=x+width, x2=x;
+        int y0=y, y1=y+height, y2=y+height;
+        // Rettangolo di ingombro del triangolo (Polygon.getBoundingBox)
+        int minx=Math.min(x0, Math.min(x1, x2)), maxx=Math.max(x0, Math.max(x1, x2));
+        int miny=Math.min(y0, Math.min(y1, y2)), maxy=Math.max(y0, Math.max(y1, y2));
+        if(!(px >= minx && py >= miny && px < (double)minx + (maxx - minx) && py < (double)miny + (maxy - miny))) return false;
+        // Conto gli attraversamenti dei tre lati (regola pari/dispari), partendo dal lato che chiude il poligono
+        int hits=attraversa(x2, y2, x0, y0, px, py)
+                +attraversa(x0, y0, x1, y1, px, py)
+                +attraversa(x1, y1, x2, y2, px, py);
+        return (hits & 1) != 0;
+    }
+    
+    /** 
+     * Restituisce 1 se la semiretta orizzontale che parte dal punto (px,py) verso sinistra
+     * attraversa il lato (lastx,lasty)-(curx,cury), 0 altrimenti (un passo del ciclo di Polygon.contains).
+     */
+    private static int attraversa(int lastx, int lasty, int curx, int cury, double px, double py){
+        if(cury == lasty) return 0;
+        int leftx;
+        if(curx < lastx){
+            if(px >= lastx) return 0;
+            leftx=curx;
+        } else {
+            if(px >= curx) return 0;
+            leftx=lastx;
         }
-        else{
-            // Triangolo: devo prima creare degli array per memorizzare le coordinate dei tre vertici
-            int[] xPoints={this.x+width/2,this.x+width,this.x};
-            int[] yPoints={this.y,this.y+height,this.y+height};
-            Polygon forma=new Polygon(xPoints,yPoints,3);
-            return forma.contains(punto);
+        double test1, test2;
+        if(cury < lasty){
+            if(py < cury || py >= lasty) return 0;
+            if(px < leftx) return 1;
+            test1=px - curx;
+            test2=py - cury;
+        } else {
+            if(py < lasty || py >= cury) return 0;
+            if(px < leftx) return 1;
+            test1=px - lastx;
+            test2=py - lasty;
         }
+        return (test1 < (test2 / (lasty - cury) * (lastx - curx))) ? 1 : 0;
+    }
+    
+    /**
+     * Legge la forma dal flusso, sostituendo il colore letto con quello della tavolozza condivisa.
+     * 
+     * @param in il flusso da cui leggere la forma
+     * @throws IOException in caso di errore di lettura
+     * @throws ClassNotFoundException se il flusso contiene classi sconosciute
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+        in.defaultReadObject();
+        colore=TavolozzaColori.interna(colore);
     }
-}
\ No newline at end of file
+}
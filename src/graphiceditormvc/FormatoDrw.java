@@ -0,0 +1,502 @@
+package graphiceditormvc;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Lettura e scrittura dei documenti di tipo Model nei file .drw.
+ * <p>
+ * I documenti vengono scritti in un formato binario compatto e versionato:
+ * <ul>
+ * <li>intestazione (28 byte): i caratteri "DRWB", la versione del formato,
+ * la larghezza e l'altezza del documento, il numero di forme e (dalla versione 2) il numero
+ * di sequenza dell'ultima modifica del giornale compresa nel file (intero a 64 bit, vedi Giornale);
+ * <li>una serie di record di lunghezza fissa (21 byte), uno per forma, in ordine di disegno:
+ * tipo (un byte, l'ordinale di TipoForma), x, y, larghezza, altezza e colore ARGB (interi a 32 bit).
+ * </ul>
+ * Tutti gli interi sono scritti in formato big-endian.
+ * Grazie alla lunghezza fissa dei record, la forma di indice i si trova alla posizione
+ * DIMENSIONE_INTESTAZIONE + i * DIMENSIONE_RECORD del file.
+ * Vengono letti anche i file della versione 1, la cui intestazione (DIMENSIONE_INTESTAZIONE_V1 byte)
+ * non contiene il numero di sequenza.
+ * <p>
+ * In lettura vengono accettati anche i file scritti dalle versioni precedenti del programma
+ * con la serializzazione di Java (ObjectOutputStream), riconoscibili dai primi due byte 0xACED.
+ * <p>
+ * I file molto grandi possono essere mappati in memoria (metodo mappa): il documento
+ * legge le forme direttamente dal file, solo quando servono.
+ *
+ * @see Model
+ *
+ * @author mauropamiro
+ */
+public class FormatoDrw {
+    /** I primi quattro byte di un file nel formato binario ("DRWB"). */
+    static final int FIRMA = 0x44525742;
+    /** La versione del formato scritta da questa classe. */
+    static final int VERSIONE = 2;
+    /** La lunghezza in byte dell'intestazione. */
+    static final int DIMENSIONE_INTESTAZIONE = 28;
+    /** La lunghezza in byte dell'intestazione nella versione 1 del formato (senza numero di sequenza). */
+    static final int DIMENSIONE_INTESTAZIONE_V1 = 20;
+    /** La lunghezza in byte di un record (una forma). */
+    static final int DIMENSIONE_RECORD = 21;
+    /** I primi due byte di un file scritto con la serializzazione di Java. */
+    private static final int FIRMA_SERIALIZZAZIONE = 0xACED;
+    /** La dimensione del buffer usato per leggere e scrivere i file. */
+    private static final int DIMENSIONE_BUFFER = 64 * 1024;
+    /** I tipi di forma, nell'ordine dei valori scritti nei record. */
+    private static final TipoForma[] TIPI = TipoForma.values();
+    /** La dimensione minima (in byte) dei file che il metodo apri mappa in memoria invece di leggerli. */
+    static final long SOGLIA_MAPPATURA = 32L * 1024 * 1024;
+
+    private FormatoDrw() {
+    }
+
+
+    /**
+     * Scrive il documento nel file, nel formato binario.
+     *
+     * @param documento il documento da scrivere
+     * @param file il file in cui scrivere il documento
+     *
+     * @throws IOException in caso di errore di scrittura
+     */
+    public static void scrivi(Model documento, File file) throws IOException {
+        scrivi(documento, file, 0, null);
+    }
+
+    /**
+     * Scrive il documento nel file, nel formato binario, comunicando il numero di forme scritte.
+     * Il file viene sostituito solo a scrittura completata: se la scrittura non riesce
+     * il file precedente resta intatto.
+     *
+     * @param documento il documento da scrivere (non deve essere modificato durante la scrittura)
+     * @param file il file in cui scrivere il documento
+     * @param sequenza il numero di sequenza dell'ultima modifica del giornale compresa nel documento (0 se nessuna)
+     * @param avanzamento riceve il numero di forme scritte (null se non serve)
+     *
+     * @throws IOException in caso di errore di scrittura
+     */
+    static void scrivi(Model documento, File file, long sequenza, Avanzamento avanzamento) throws IOException {
+        // Scrivo in un file temporaneo nella stessa cartella e poi lo rinomino:
+        // il file originale potrebbe essere mappato in memoria dal documento stesso
+        // e non deve essere troncato mentre lo sto leggendo
+        File temporaneo = temporaneo(file);
+        try {
+            scriviFile(documento, temporaneo, sequenza, avanzamento);
+            sostituisci(temporaneo, file);
+        } finally {
+            if (temporaneo.exists()) temporaneo.delete();
+        }
+    }
+
+    /**
+     * Crea un file temporaneo vuoto nella cartella del file specificato, in cui scrivere
+     * il nuovo contenuto del file prima di sostituirlo (vedi sostituisci).
+     *
+     * @param file il file da sostituire
+     *
+     * @return il file temporaneo
+     *
+     * @throws IOException se non e' possibile creare il file
+     */
+    static File temporaneo(File file) throws IOException {
+        return File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Sostituisce il file con il file temporaneo scritto completamente, rinominandolo.
+     *
+     * @param temporaneo il file temporaneo (vedi temporaneo)
+     * @param file il file da sostituire
+     *
+     * @throws IOException se non e' possibile rinominare il file temporaneo
+     */
+    static void sostituisci(File temporaneo, File file) throws IOException {
+        if (!temporaneo.renameTo(file)) {
+            // Su alcuni sistemi non e' possibile rinominare sopra un file esistente
+            if (!file.delete() || !temporaneo.renameTo(file)) throw new IOException("Impossibile scrivere " + file.getName());
+        }
+    }
+
+    /** Scrive il documento nel file specificato, comunicando l'avanzamento a ogni svuotamento del buffer. */
+    private static void scriviFile(Model documento, File file, long sequenza, Avanzamento avanzamento) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel canale = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(DIMENSIONE_BUFFER);
+            // Intestazione
+            buffer.putInt(FIRMA);
+            buffer.putInt(VERSIONE);
+            buffer.putInt(documento.getWidth());
+            buffer.putInt(documento.getHeight());
+            buffer.putInt(documento.nForme());
+            buffer.putLong(sequenza);
+            // Un record per ogni forma: quando il buffer e' pieno lo scrivo nel file
+            int n = documento.nForme();
+            for (int i = 0; i < n; i++) {
+                if (buffer.remaining() < DIMENSIONE_RECORD) {
+                    svuota(buffer, canale);
+                    if (avanzamento != null) avanzamento.avanzamento(i, n);
+                }
+                scriviRecord(buffer, documento.getForma(i));
+            }
+            svuota(buffer, canale);
+            if (avanzamento != null) avanzamento.avanzamento(n, n);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Scrive nel buffer il record di una forma.
+     *
+     * @param buffer il buffer in cui scrivere
+     * @param f la forma da scrivere
+     */
+    static void scriviRecord(ByteBuffer buffer, Forma f) {
+        buffer.put((byte) f.getTipo().ordinal());
+        buffer.putInt(f.getX());
+        buffer.putInt(f.getY());
+        buffer.putInt(f.getWidth());
+        buffer.putInt(f.getHeight());
+        buffer.putInt(f.getColore().getRGB());
+    }
+
+    /** Scrive nel canale il contenuto del buffer e lo svuota. */
+    private static void svuota(ByteBuffer buffer, FileChannel canale) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) canale.write(buffer);
+        buffer.clear();
+    }
+
+
+    /**
+     * Legge un documento dal file. Il file puo' essere nel formato binario
+     * o scritto con la serializzazione di Java dalle versioni precedenti del programma.
+     *
+     * @param file il file da leggere
+     *
+     * @return il documento letto dal file
+     *
+     * @throws IOException in caso di errore di lettura o se il file non contiene un documento valido
+     */
+    public static Model leggi(File file) throws IOException {
+        CostruzioneDocumento costruzione = new CostruzioneDocumento();
+        leggi(file, costruzione);
+        return costruzione.documento;
+    }
+
+    /**
+     * Legge le forme dal file, comunicandole una alla volta (insieme alle dimensioni del documento)
+     * all'oggetto specificato. Il file puo' essere nel formato binario o scritto con la
+     * serializzazione di Java dalle versioni precedenti del programma.
+     *
+     * @param file il file da leggere
+     * @param lettura riceve le dimensioni del documento e le forme lette
+     *
+     * @throws IOException in caso di errore di lettura, se il file non contiene un documento valido
+     *                     o se lettura interrompe la lettura
+     */
+    static void leggi(File file, LetturaForme lettura) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel canale = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(DIMENSIONE_BUFFER);
+            buffer.limit(0); // Il buffer e' vuoto
+            // Leggo i primi byte per riconoscere il formato del file
+            riempi(buffer, canale, 2);
+            if ((buffer.getShort(0) & 0xFFFF) == FIRMA_SERIALIZZAZIONE) {
+                // File scritto con la serializzazione di Java: riparto dall'inizio
+                canale.position(0);
+                Model documento = leggiSerializzato(canale);
+                lettura.inizio(documento.getWidth(), documento.getHeight(), documento.nForme());
+                for (int i = 0; i < documento.nForme(); i++) lettura.forma(documento.getForma(i));
+                return;
+            }
+            riempi(buffer, canale, DIMENSIONE_INTESTAZIONE_V1);
+            if (buffer.getInt() != FIRMA) throw new IOException("Il file non contiene un documento");
+            int versione = buffer.getInt();
+            if (versione > VERSIONE) throw new IOException("Versione del formato non supportata: " + versione);
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int n = buffer.getInt();
+            // Il numero di sequenza (versione 2) non serve per leggere le forme (vedi leggiSequenza)
+            if (versione >= 2) {
+                if (buffer.remaining() < 8) riempi(buffer, canale, 8);
+                buffer.getLong();
+            }
+            // Comunico il numero di forme (senza superare quelle che il file puo' contenere)
+            long massimo = (canale.size() - dimensioneIntestazione(versione)) / DIMENSIONE_RECORD;
+            lettura.inizio(width, height, (int) Math.max(0, Math.min(n, massimo)));
+            // Leggo un record alla volta, ricaricando il buffer quando non contiene un record completo
+            for (int i = 0; i < n; i++) {
+                if (buffer.remaining() < DIMENSIONE_RECORD) riempi(buffer, canale, DIMENSIONE_RECORD);
+                lettura.forma(leggiRecord(buffer));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Costruisce un documento con le forme lette da un file: la sequenza delle forme
+     * (array di tipi primitivi) viene dimensionata in base al numero di forme del file.
+     */
+    static class CostruzioneDocumento implements LetturaForme {
+        /** Il documento costruito (null prima della chiamata di inizio). */
+        Model documento;
+
+        @Override
+        public void inizio(int width, int height, int nForme) {
+            documento = new Model(width, height, nForme > 0 ? new SequenzaFormeCompatta(nForme) : new SequenzaFormeCompatta());
+        }
+
+        @Override
+        public void forma(Forma f) {
+            documento.add(f);
+        }
+    }
+
+    /** Restituisce la lunghezza in byte dell'intestazione nella versione del formato specificata. */
+    private static int dimensioneIntestazione(int versione) {
+        return versione >= 2 ? DIMENSIONE_INTESTAZIONE : DIMENSIONE_INTESTAZIONE_V1;
+    }
+
+    /**
+     * Legge dall'intestazione del file il numero di sequenza dell'ultima modifica del giornale
+     * compresa nel documento (vedi Giornale).
+     *
+     * @param file il file da leggere
+     *
+     * @return il numero di sequenza (0 per i file della versione 1 o scritti con la serializzazione di Java)
+     *
+     * @throws IOException in caso di errore di lettura
+     */
+    static long leggiSequenza(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer intestazione = ByteBuffer.allocate(DIMENSIONE_INTESTAZIONE);
+            while (intestazione.hasRemaining()) {
+                if (in.getChannel().read(intestazione) < 0) return 0;
+            }
+            if (intestazione.getInt(0) != FIRMA || intestazione.getInt(4) < 2) return 0;
+            return intestazione.getLong(DIMENSIONE_INTESTAZIONE_V1);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Legge dal buffer il record di una forma.
+     *
+     * @param buffer il buffer da cui leggere, posizionato all'inizio del record
+     *
+     * @return la forma letta
+     *
+     * @throws IOException se il record non contiene una forma valida
+     */
+    static Forma leggiRecord(ByteBuffer buffer) throws IOException {
+        int tipo = buffer.get();
+        if (tipo < 0 || tipo >= TIPI.length) throw new IOException("Tipo di forma non valido: " + tipo);
+        int x = buffer.getInt();
+        int y = buffer.getInt();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        Color colore = TavolozzaColori.colore(buffer.getInt());
+        return new Forma(TIPI[tipo], x, y, width, height, colore);
+    }
+
+    /**
+     * Apre un documento: i file nel formato binario piu' grandi di SOGLIA_MAPPATURA
+     * vengono mappati in memoria (metodo mappa), gli altri vengono letti completamente (metodo leggi).
+     *
+     * @param file il file da aprire
+     *
+     * @return il documento letto dal file
+     *
+     * @throws IOException in caso di errore di lettura o se il file non contiene un documento valido
+     */
+    public static Model apri(File file) throws IOException {
+        if (daMappare(file)) return mappa(file);
+        return leggi(file);
+    }
+
+    /**
+     * Indica se il metodo apri mappa in memoria il file, invece di leggerlo completamente:
+     * l'apertura in questo caso e' immediata.
+     *
+     * @param file il file da aprire
+     *
+     * @return true se il file e' nel formato binario ed e' piu' grande di SOGLIA_MAPPATURA
+     *
+     * @throws IOException in caso di errore di lettura
+     */
+    static boolean daMappare(File file) throws IOException {
+        return file.length() >= SOGLIA_MAPPATURA && eBinario(file);
+    }
+
+    /** Controlla se il file inizia con la firma del formato binario. */
+    private static boolean eBinario(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer firma = ByteBuffer.allocate(4);
+            while (firma.hasRemaining()) {
+                if (in.getChannel().read(firma) < 0) return false;
+            }
+            return firma.getInt(0) == FIRMA;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Legge il tipo della forma dal record che si trova alla posizione specificata del buffer,
+     * senza decodificare il resto del record.
+     *
+     * @param buffer il buffer che contiene il record
+     * @param posizione la posizione del record nel buffer
+     *
+     * @return il tipo della forma
+     *
+     * @throws IllegalStateException se il record non contiene un tipo valido (file danneggiato)
+     */
+    static TipoForma leggiTipo(ByteBuffer buffer, int posizione) {
+        int tipo = buffer.get(posizione);
+        if (tipo < 0 || tipo >= TIPI.length) throw new IllegalStateException("Tipo di forma non valido: " + tipo);
+        return TIPI[tipo];
+    }
+
+    /**
+     * Decodifica il record di una forma che si trova alla posizione specificata del buffer,
+     * senza modificare la posizione del buffer.
+     *
+     * @param buffer il buffer che contiene il record
+     * @param posizione la posizione del record nel buffer
+     *
+     * @return la forma letta
+     *
+     * @throws IllegalStateException se il record non contiene una forma valida (file danneggiato)
+     */
+    static Forma leggiRecord(ByteBuffer buffer, int posizione) {
+        return new Forma(leggiTipo(buffer, posizione), buffer.getInt(posizione + 1), buffer.getInt(posizione + 5),
+                buffer.getInt(posizione + 9), buffer.getInt(posizione + 13), TavolozzaColori.colore(buffer.getInt(posizione + 17)));
+    }
+
+    /**
+     * Apre un documento mappando in memoria il file, che deve essere nel formato binario.
+     * L'apertura e' immediata anche per file molto grandi: le forme vengono lette dal file
+     * solo quando servono (ad esempio per disegnare la parte visibile del documento).
+     *
+     * @param file il file da aprire
+     *
+     * @return il documento che legge le forme dal file
+     *
+     * @throws IOException in caso di errore di lettura o se il file non e' nel formato binario
+     *
+     * @see SequenzaFormeMappata
+     */
+    public static Model mappa(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel canale = in.getChannel();
+            ByteBuffer intestazione = ByteBuffer.allocate(DIMENSIONE_INTESTAZIONE);
+            intestazione.limit(0);
+            riempi(intestazione, canale, DIMENSIONE_INTESTAZIONE_V1);
+            if (intestazione.getInt() != FIRMA) throw new IOException("Il file non e' nel formato binario");
+            int versione = intestazione.getInt();
+            if (versione > VERSIONE) throw new IOException("Versione del formato non supportata: " + versione);
+            int width = intestazione.getInt();
+            int height = intestazione.getInt();
+            int n = intestazione.getInt();
+            long lunghezza = (long) n * DIMENSIONE_RECORD;
+            int inizio = dimensioneIntestazione(versione);
+            if (n < 0 || inizio + lunghezza > canale.size()) throw new IOException("Il file e' incompleto");
+            if (lunghezza > Integer.MAX_VALUE) throw new IOException("Il file e' troppo grande per essere mappato");
+            // La mappatura resta valida anche dopo la chiusura del file
+            ByteBuffer record = canale.map(FileChannel.MapMode.READ_ONLY, inizio, lunghezza);
+            return new Model(width, height, new SequenzaFormeMappata(record, n));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Legge dal canale almeno minimo byte, conservando quelli ancora da leggere nel buffer.
+     * Al termine il buffer e' pronto per la lettura.
+     */
+    private static void riempi(ByteBuffer buffer, FileChannel canale, int minimo) throws IOException {
+        buffer.compact();
+        while (buffer.position() < minimo) {
+            if (canale.read(buffer) < 0) throw new IOException("Il file e' incompleto");
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Legge un documento scritto con la serializzazione di Java.
+     * <p>
+     * I file salvati dalle versioni precedenti del programma hanno gli stessi campi delle
+     * classi attuali, ma un serialVersionUID calcolato automaticamente che cambiava ad ogni
+     * modifica delle classi: prima di leggere il documento, nella descrizione delle classi
+     * Model e Forma contenuta nel file sostituisco il serialVersionUID con quello attuale.
+     *
+     * @param canale il canale da cui leggere, posizionato all'inizio del file
+     *
+     * @return il documento letto
+     *
+     * @throws IOException in caso di errore di lettura
+     */
+    private static Model leggiSerializzato(FileChannel canale) throws IOException {
+        // Leggo tutto il file in memoria (i file delle versioni precedenti sono piccoli)
+        ByteBuffer buffer = ByteBuffer.allocate((int) canale.size());
+        while (buffer.hasRemaining()) {
+            if (canale.read(buffer) < 0) throw new IOException("Il file e' incompleto");
+        }
+        byte[] dati = buffer.array();
+        correggiVersione(dati, Model.class);
+        correggiVersione(dati, Forma.class);
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(dati));
+            return (Model) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Il file non contiene un documento: " + e.getMessage());
+        } catch (ClassCastException e) {
+            throw new IOException("Il file non contiene un documento");
+        }
+    }
+
+    /**
+     * Sostituisce, nel flusso serializzato, il serialVersionUID della classe con quello attuale.
+     * Nel flusso la descrizione di una classe inizia con il byte TC_CLASSDESC,
+     * seguito dal nome della classe (lunghezza su due byte e caratteri) e dal serialVersionUID (otto byte).
+     *
+     * @param dati il contenuto del file
+     * @param classe la classe di cui correggere il serialVersionUID
+     */
+    private static void correggiVersione(byte[] dati, Class<?> classe) throws IOException {
+        byte[] nome = classe.getName().getBytes("UTF-8");
+        long versione = ObjectStreamClass.lookup(classe).getSerialVersionUID();
+        int lunghezza = 3 + nome.length;
+        for (int i = 0; i + lunghezza + 8 <= dati.length; i++) {
+            if (dati[i] != ObjectStreamConstants.TC_CLASSDESC || dati[i + 1] != (byte) (nome.length >> 8) || dati[i + 2] != (byte) nome.length) continue;
+            int k = 0;
+            while (k < nome.length && dati[i + 3 + k] == nome[k]) k++;
+            if (k < nome.length) continue;
+            // Trovata la descrizione della classe: scrivo il serialVersionUID attuale
+            for (int b = 0; b < 8; b++) {
+                dati[i + lunghezza + b] = (byte) (versione >>> (56 - 8 * b));
+            }
+        }
+    }
+}
@@ -0,0 +1,496 @@
+package graphiceditormvc;
+
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Esportazione e importazione dei documenti in formato SVG.
+ * Entrambe le operazioni usano le API StAX (XMLStreamWriter e XMLStreamReader):
+ * gli elementi vengono scritti e letti uno alla volta, senza costruire l'albero DOM del file,
+ * per cui il tempo e' lineare e la memoria usata non dipende dalla dimensione del file
+ * (a parte quella del documento).
+ * <p>
+ * Ogni forma viene scritta come un elemento:
+ * <ul>
+ * <li>QUADRATO: <code>rect</code>;
+ * <li>CERCHIO: <code>ellipse</code>;
+ * <li>TRIANGOLO: <code>polygon</code> con gli stessi vertici della vista grafica.
+ * </ul>
+ * Il colore viene scritto nell'attributo <code>fill</code> (#rrggbb) e, se la forma non e' opaca,
+ * in <code>fill-opacity</code>.
+ * <p>
+ * L'importazione legge, in qualunque punto del file, gli elementi <code>rect</code>,
+ * <code>ellipse</code>, <code>circle</code> e <code>polygon</code> (ogni poligono diventa
+ * un triangolo inscritto nel rettangolo che contiene i suoi vertici); le trasformazioni
+ * e gli altri elementi vengono ignorati. Il colore viene letto dagli attributi
+ * <code>fill</code>, <code>fill-opacity</code>, <code>opacity</code> e <code>color</code>
+ * o dall'attributo <code>style</code> (#rgb, #rrggbb, rgb(r,g,b), i nomi dei colori CSS
+ * e currentColor); come in SVG, fill, fill-opacity e color vengono ereditati dagli elementi
+ * che contengono la forma (ad esempio <code>g</code>), l'opacita' dei gruppi si moltiplica
+ * e in mancanza di indicazioni il riempimento e' nero. Le forme senza riempimento
+ * (<code>none</code>, <code>transparent</code> o opacita' 0) non vengono importate,
+ * perche' nel documento sarebbero invisibili.
+ *
+ * @see Model
+ *
+ * @author mauropamiro
+ */
+public class FormatoSvg {
+    /** I nomi dei colori CSS con il valore RGB (in esadecimale), separati da spazi. */
+    private static final String NOMI_COLORI =
+            "aliceblue f0f8ff antiquewhite faebd7 aqua 00ffff aquamarine 7fffd4 azure f0ffff beige f5f5dc "
+            + "bisque ffe4c4 black 000000 blanchedalmond ffebcd blue 0000ff blueviolet 8a2be2 brown a52a2a "
+            + "burlywood deb887 cadetblue 5f9ea0 chartreuse 7fff00 chocolate d2691e coral ff7f50 "
+            + "cornflowerblue 6495ed cornsilk fff8dc crimson dc143c cyan 00ffff darkblue 00008b "
+            + "darkcyan 008b8b darkgoldenrod b8860b darkgray a9a9a9 darkgreen 006400 darkgrey a9a9a9 "
+            + "darkkhaki bdb76b darkmagenta 8b008b darkolivegreen 556b2f darkorange ff8c00 darkorchid 9932cc "
+            + "darkred 8b0000 darksalmon e9967a darkseagreen 8fbc8f darkslateblue 483d8b darkslategray 2f4f4f "
+            + "darkslategrey 2f4f4f darkturquoise 00ced1 darkviolet 9400d3 deeppink ff1493 deepskyblue 00bfff "
+            + "dimgray 696969 dimgrey 696969 dodgerblue 1e90ff firebrick b22222 floralwhite fffaf0 "
+            + "forestgreen 228b22 fuchsia ff00ff gainsboro dcdcdc ghostwhite f8f8ff gold ffd700 "
+            + "goldenrod daa520 gray 808080 green 008000 greenyellow adff2f grey 808080 honeydew f0fff0 "
+            + "hotpink ff69b4 indianred cd5c5c indigo 4b0082 ivory fffff0 khaki f0e68c lavender e6e6fa "
+            + "lavenderblush fff0f5 lawngreen 7cfc00 lemonchiffon fffacd lightblue add8e6 lightcoral f08080 "
+            + "lightcyan e0ffff lightgoldenrodyellow fafad2 lightgray d3d3d3 lightgreen 90ee90 "
+            + "lightgrey d3d3d3 lightpink ffb6c1 lightsalmon ffa07a lightseagreen 20b2aa lightskyblue 87cefa "
+            + "lightslategray 778899 lightslategrey 778899 lightsteelblue b0c4de lightyellow ffffe0 "
+            + "lime 00ff00 limegreen 32cd32 linen faf0e6 magenta ff00ff maroon 800000 mediumaquamarine 66cdaa "
+            + "mediumblue 0000cd mediumorchid ba55d3 mediumpurple 9370db mediumseagreen 3cb371 "
+            + "mediumslateblue 7b68ee mediumspringgreen 00fa9a mediumturquoise 48d1cc mediumvioletred c71585 "
+            + "midnightblue 191970 mintcream f5fffa mistyrose ffe4e1 moccasin ffe4b5 navajowhite ffdead "
+            + "navy 000080 oldlace fdf5e6 olive 808000 olivedrab 6b8e23 orange ffa500 orangered ff4500 "
+            + "orchid da70d6 palegoldenrod eee8aa palegreen 98fb98 paleturquoise afeeee palevioletred db7093 "
+            + "papayawhip ffefd5 peachpuff ffdab9 peru cd853f pink ffc0cb plum dda0dd powderblue b0e0e6 "
+            + "purple 800080 rebeccapurple 663399 red ff0000 rosybrown bc8f8f royalblue 4169e1 "
+            + "saddlebrown 8b4513 salmon fa8072 sandybrown f4a460 seagreen 2e8b57 seashell fff5ee "
+            + "sienna a0522d silver c0c0c0 skyblue 87ceeb slateblue 6a5acd slategray 708090 slategrey 708090 "
+            + "snow fffafa springgreen 00ff7f steelblue 4682b4 tan d2b48c teal 008080 thistle d8bfd8 "
+            + "tomato ff6347 turquoise 40e0d0 violet ee82ee wheat f5deb3 white ffffff whitesmoke f5f5f5 "
+            + "yellow ffff00 yellowgreen 9acd32";
+    /** I valori RGB dei colori CSS, indicizzati per nome (in minuscolo). */
+    private static final Map<String, Integer> COLORI = new HashMap<String, Integer>();
+
+    static {
+        String[] valori = NOMI_COLORI.split(" ");
+        for (int i = 0; i + 1 < valori.length; i += 2) COLORI.put(valori[i], Integer.parseInt(valori[i + 1], 16));
+    }
+
+    /** Lo spazio dei nomi di SVG. */
+    static final String SVG = "http://www.w3.org/2000/svg";
+
+    private FormatoSvg() {
+    }
+
+    /***********************************************************************************/
+    /*********************************** Esportazione **********************************/
+    /***********************************************************************************/
+
+    /**
+     * Scrive il documento nel file SVG specificato. Il file viene sostituito solo
+     * a scrittura completata: se la scrittura non riesce il file precedente resta intatto.
+     *
+     * @param documento il documento da esportare (non deve essere modificato durante la scrittura)
+     * @param file il file SVG da scrivere
+     *
+     * @throws IOException in caso di errore di scrittura
+     */
+    public static void scrivi(Model documento, File file) throws IOException {
+        File temporaneo = FormatoDrw.temporaneo(file);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temporaneo), 1 << 16);
+            try {
+                scrivi(documento, out);
+            } finally {
+                out.close();
+            }
+            FormatoDrw.sostituisci(temporaneo, file);
+        } finally {
+            if (temporaneo.exists()) temporaneo.delete();
+        }
+    }
+
+    /**
+     * Scrive il documento in formato SVG nel flusso specificato (che non viene chiuso).
+     *
+     * @param documento il documento da esportare
+     * @param out il flusso in cui scrivere
+     *
+     * @throws IOException in caso di errore di scrittura
+     */
+    public static void scrivi(Model documento, OutputStream out) throws IOException {
+        try {
+            XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeCharacters("\n");
+            xml.setDefaultNamespace(SVG);
+            xml.writeStartElement(SVG, "svg");
+            xml.writeDefaultNamespace(SVG);
+            xml.writeAttribute("width", Integer.toString(documento.getWidth()));
+            xml.writeAttribute("height", Integer.toString(documento.getHeight()));
+            xml.writeAttribute("viewBox", "0 0 " + documento.getWidth() + " " + documento.getHeight());
+            xml.writeCharacters("\n");
+            for (int i = 0; i < documento.nForme(); i++) {
+                scriviForma(xml, documento.getForma(i));
+            }
+            xml.writeEndElement();
+            xml.writeCharacters("\n");
+            xml.writeEndDocument();
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Errore nella scrittura del file SVG", e);
+        }
+    }
+
+    /** Scrive l'elemento che rappresenta la forma. */
+    private static void scriviForma(XMLStreamWriter xml, Forma f) throws XMLStreamException {
+        int x = f.getX(), y = f.getY(), w = f.getWidth(), h = f.getHeight();
+        if (f.getTipo() == TipoForma.QUADRATO) {
+            xml.writeEmptyElement(SVG, "rect");
+            xml.writeAttribute("x", Integer.toString(x));
+            xml.writeAttribute("y", Integer.toString(y));
+            xml.writeAttribute("width", Integer.toString(w));
+            xml.writeAttribute("height", Integer.toString(h));
+        } else if (f.getTipo() == TipoForma.CERCHIO) {
+            // Centro e raggi possono essere multipli di mezzo pixel
+            xml.writeEmptyElement(SVG, "ellipse");
+            xml.writeAttribute("cx", meta(2 * x + w));
+            xml.writeAttribute("cy", meta(2 * y + h));
+            xml.writeAttribute("rx", meta(w));
+            xml.writeAttribute("ry", meta(h));
+        } else {
+            xml.writeEmptyElement(SVG, "polygon");
+            xml.writeAttribute("points", (x + w / 2) + "," + y + " " + (x + w) + "," + (y + h) + " " + x + "," + (y + h));
+        }
+        Color c = f.getColore();
+        xml.writeAttribute("fill", String.format("#%06x", c.getRGB() & 0xFFFFFF));
+        if (c.getAlpha() != 255) xml.writeAttribute("fill-opacity", Float.toString(c.getAlpha() / 255f));
+        xml.writeCharacters("\n");
+    }
+
+    /** Restituisce la meta' del numero come stringa, senza decimali se e' intera. */
+    private static String meta(int n) {
+        if (n % 2 == 0) return Integer.toString(n / 2);
+        return (n < 0 ? "-" : "") + Math.abs(n / 2) + ".5";
+    }
+
+    /***********************************************************************************/
+    /*********************************** Importazione **********************************/
+    /***********************************************************************************/
+
+    /**
+     * Legge un documento da un file SVG.
+     *
+     * @param file il file da leggere
+     *
+     * @return il documento letto
+     *
+     * @throws IOException in caso di errore di lettura o se il file non e' un SVG valido
+     */
+    public static Model leggi(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        try {
+            return leggi(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Legge un documento in formato SVG dal flusso specificato (che non viene chiuso).
+     *
+     * @param in il flusso da cui leggere
+     *
+     * @return il documento letto
+     *
+     * @throws IOException in caso di errore di lettura o se il flusso non contiene un SVG valido
+     */
+    public static Model leggi(InputStream in) throws IOException {
+        FormatoDrw.CostruzioneDocumento costruzione = new FormatoDrw.CostruzioneDocumento();
+        leggi(in, costruzione);
+        return costruzione.documento;
+    }
+
+    /**
+     * Legge le forme da un file SVG, comunicandole una alla volta (insieme alle dimensioni
+     * del documento) all'oggetto specificato.
+     *
+     * @param file il file da leggere
+     * @param lettura riceve le dimensioni del documento e le forme lette
+     *
+     * @throws IOException in caso di errore di lettura, se il file non e' un SVG valido
+     *                     o se lettura interrompe la lettura
+     */
+    static void leggi(File file, LetturaForme lettura) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        try {
+            leggi(in, lettura);
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Legge le forme dal flusso in formato SVG, comunicandole all'oggetto specificato. */
+    private static void leggi(InputStream in, LetturaForme lettura) throws IOException {
+        XMLInputFactory fabbrica = XMLInputFactory.newInstance();
+        // Nessuna DTD ne' entita' esterne: il file non puo' far leggere altri file o risorse di rete
+        fabbrica.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        fabbrica.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        boolean iniziato = false;
+        // Lo stile di ogni elemento aperto, per le proprieta' ereditate dagli elementi contenuti
+        ArrayDeque<Stile> stili = new ArrayDeque<Stile>();
+        stili.push(Stile.PREDEFINITO);
+        try {
+            XMLStreamReader xml = fabbrica.createXMLStreamReader(in);
+            try {
+                while (xml.hasNext()) {
+                    int evento = xml.next();
+                    if (evento == XMLStreamConstants.END_ELEMENT) {
+                        stili.pop();
+                        continue;
+                    }
+                    if (evento != XMLStreamConstants.START_ELEMENT) continue;
+                    Stile stile = stili.peek().figlio(xml);
+                    stili.push(stile);
+                    String nome = xml.getLocalName();
+                    if (!iniziato) {
+                        if (!"svg".equals(nome)) throw new IOException("Il file non contiene un documento SVG");
+                        leggiDimensioni(xml, lettura);
+                        iniziato = true;
+                        continue;
+                    }
+                    Forma f = leggiForma(xml, nome, stile);
+                    if (f != null) lettura.forma(f);
+                }
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Errore nella lettura del file SVG", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Valore non valido nel file SVG: " + e.getMessage(), e);
+        }
+        if (!iniziato) throw new IOException("Il file non contiene un documento SVG");
+    }
+
+    /** Comunica le dimensioni dell'elemento svg (width e height o, in mancanza, viewBox). */
+    private static void leggiDimensioni(XMLStreamReader xml, LetturaForme lettura) throws IOException {
+        int width = (int) Math.round(numero(xml.getAttributeValue(null, "width"), -1));
+        int height = (int) Math.round(numero(xml.getAttributeValue(null, "height"), -1));
+        String viewBox = xml.getAttributeValue(null, "viewBox");
+        if ((width <= 0 || height <= 0) && viewBox != null) {
+            String[] valori = viewBox.trim().split("[\\s,]+");
+            if (valori.length == 4) {
+                width = (int) Math.round(numero(valori[2], -1));
+                height = (int) Math.round(numero(valori[3], -1));
+            }
+        }
+        // Se le dimensioni non sono indicate uso quelle di un documento nuovo (vedi Model())
+        if (width <= 0 || height <= 0) width = height = 200;
+        lettura.inizio(width, height, -1);
+    }
+
+    /** Crea la forma descritta dall'elemento (null se l'elemento non rappresenta una forma o non ha riempimento). */
+    private static Forma leggiForma(XMLStreamReader xml, String nome, Stile stile) {
+        Color colore = stile.colore();
+        if (colore == null) return null;
+        TipoForma tipo;
+        int x, y, w, h;
+        if ("rect".equals(nome)) {
+            tipo = TipoForma.QUADRATO;
+            x = arrotonda(attributo(xml, "x"));
+            y = arrotonda(attributo(xml, "y"));
+            w = arrotonda(attributo(xml, "width"));
+            h = arrotonda(attributo(xml, "height"));
+        } else if ("ellipse".equals(nome) || "circle".equals(nome)) {
+            tipo = TipoForma.CERCHIO;
+            double cx = attributo(xml, "cx"), cy = attributo(xml, "cy");
+            double rx, ry;
+            if ("circle".equals(nome)) {
+                rx = ry = attributo(xml, "r");
+            } else {
+                rx = attributo(xml, "rx");
+                ry = attributo(xml, "ry");
+            }
+            x = arrotonda(cx - rx);
+            y = arrotonda(cy - ry);
+            w = arrotonda(2 * rx);
+            h = arrotonda(2 * ry);
+        } else if ("polygon".equals(nome)) {
+            tipo = TipoForma.TRIANGOLO;
+            String punti = xml.getAttributeValue(null, "points");
+            if (punti == null || punti.trim().length() == 0) return null;
+            String[] valori = punti.trim().split("[\\s,]+");
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (int i = 0; i + 1 < valori.length; i += 2) {
+                double px = Double.parseDouble(valori[i]), py = Double.parseDouble(valori[i + 1]);
+                minX = Math.min(minX, px);
+                maxX = Math.max(maxX, px);
+                minY = Math.min(minY, py);
+                maxY = Math.max(maxY, py);
+            }
+            if (minX > maxX) return null;
+            x = arrotonda(minX);
+            y = arrotonda(minY);
+            w = arrotonda(maxX) - x;
+            h = arrotonda(maxY) - y;
+        } else {
+            return null;
+        }
+        return new Forma(tipo, x, y, w, h, colore);
+    }
+
+    /**
+     * Le proprieta' di riempimento di un elemento, con i valori ereditati dagli elementi che lo contengono.
+     */
+    private static final class Stile {
+        /** Lo stile iniziale: riempimento nero e opaco, come prevede SVG. */
+        static final Stile PREDEFINITO = new Stile("black", "black", 1, 1);
+        /** Il valore della proprieta' fill. */
+        final String fill;
+        /** Il valore della proprieta' color (il colore indicato da currentColor). */
+        final String color;
+        /** Il valore della proprieta' fill-opacity. */
+        final double opacitaRiempimento;
+        /** Il prodotto delle proprieta' opacity dell'elemento e degli elementi che lo contengono. */
+        final double opacita;
+
+        Stile(String fill, String color, double opacitaRiempimento, double opacita) {
+            this.fill = fill;
+            this.color = color;
+            this.opacitaRiempimento = opacitaRiempimento;
+            this.opacita = opacita;
+        }
+
+        /** Restituisce lo stile dell'elemento corrente, contenuto nell'elemento con questo stile. */
+        Stile figlio(XMLStreamReader xml) {
+            String fill = xml.getAttributeValue(null, "fill");
+            String color = xml.getAttributeValue(null, "color");
+            String opacitaRiempimento = xml.getAttributeValue(null, "fill-opacity");
+            String opacita = xml.getAttributeValue(null, "opacity");
+            String stile = xml.getAttributeValue(null, "style");
+            if (stile != null) {
+                // Le proprieta' dello stile prevalgono sugli attributi
+                for (String dichiarazione : stile.split(";")) {
+                    int dp = dichiarazione.indexOf(':');
+                    if (dp < 0) continue;
+                    String proprieta = dichiarazione.substring(0, dp).trim();
+                    String valore = dichiarazione.substring(dp + 1).trim();
+                    if ("fill".equals(proprieta)) fill = valore;
+                    else if ("color".equals(proprieta)) color = valore;
+                    else if ("fill-opacity".equals(proprieta)) opacitaRiempimento = valore;
+                    else if ("opacity".equals(proprieta)) opacita = valore;
+                }
+            }
+            // Le proprieta' assenti o "inherit" hanno il valore dell'elemento che contiene questo
+            if (color == null || ereditato(color)) color = this.color;
+            if (fill == null || ereditato(fill)) fill = this.fill;
+            // currentColor viene risolto subito, perche' gli elementi contenuti potrebbero cambiare color
+            else if ("currentcolor".equalsIgnoreCase(fill.trim())) fill = color;
+            double fo = opacitaRiempimento == null || ereditato(opacitaRiempimento) ? this.opacitaRiempimento : limita(numero(opacitaRiempimento, 1));
+            double o = opacita == null || ereditato(opacita) ? 1 : limita(numero(opacita, 1));
+            return new Stile(fill, color, fo, this.opacita * o);
+        }
+
+        /** Restituisce il colore di riempimento (null se l'elemento non ha riempimento o e' trasparente). */
+        Color colore() {
+            int rgb = rgb(fill);
+            int alfa = (int) Math.round(opacitaRiempimento * opacita * 255);
+            if (rgb < 0 || alfa == 0) return null;
+            return TavolozzaColori.colore((alfa << 24) | rgb);
+        }
+
+        /** Indica se il valore e' "inherit" (la proprieta' ha il valore dell'elemento che contiene questo). */
+        private static boolean ereditato(String valore) {
+            return "inherit".equals(valore.trim());
+        }
+
+        /** Limita un valore di opacita' all'intervallo da 0 a 1. */
+        private static double limita(double valore) {
+            return Math.max(0, Math.min(1, valore));
+        }
+    }
+
+    /**
+     * Converte un colore SVG (#rgb, #rrggbb, rgb(r,g,b) o il nome di un colore CSS) nel valore RGB.
+     * Restituisce -1 per none e transparent (nessun riempimento) e il nero se il colore non e' riconosciuto.
+     */
+    private static int rgb(String colore) {
+        if (colore == null) return 0;
+        colore = colore.trim().toLowerCase(Locale.ROOT);
+        if ("none".equals(colore) || "transparent".equals(colore)) return -1;
+        Integer nome = COLORI.get(colore);
+        if (nome != null) return nome;
+        try {
+            if (colore.startsWith("#") && colore.length() == 7) {
+                int valore = Integer.parseInt(colore.substring(1), 16);
+                if (valore >= 0) return valore;
+            }
+            if (colore.startsWith("#") && colore.length() == 4) {
+                int r = Character.digit(colore.charAt(1), 16), g = Character.digit(colore.charAt(2), 16), b = Character.digit(colore.charAt(3), 16);
+                if (r < 0 || g < 0 || b < 0) return 0;
+                return (r * 17 << 16) | (g * 17 << 8) | b * 17;
+            }
+            if (colore.startsWith("rgb(") && colore.endsWith(")")) {
+                String[] c = colore.substring(4, colore.length() - 1).split(",");
+                if (c.length == 3) {
+                    return (componente(c[0]) << 16) | (componente(c[1]) << 8) | componente(c[2]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Colore non valido: uso il nero
+        }
+        return 0;
+    }
+
+    /** Converte una componente di rgb(...) (numero da 0 a 255 o percentuale). */
+    private static int componente(String valore) {
+        valore = valore.trim();
+        double v = valore.endsWith("%") ? Double.parseDouble(valore.substring(0, valore.length() - 1)) * 2.55 : Double.parseDouble(valore);
+        return (int) Math.max(0, Math.min(255, Math.round(v)));
+    }
+
+    /** Legge il valore numerico di un attributo (0 se l'attributo manca). */
+    private static double attributo(XMLStreamReader xml, String nome) {
+        return numero(xml.getAttributeValue(null, nome), 0);
+    }
+
+    /**
+     * Converte una lunghezza SVG in numero, ignorando l'eventuale unita' di misura (px, pt, ...).
+     * Restituisce il valore predefinito se la stringa e' null o non inizia con un numero.
+     */
+    private static double numero(String valore, double predefinito) {
+        if (valore == null) return predefinito;
+        valore = valore.trim();
+        int fine = 0;
+        while (fine < valore.length() && "+-.0123456789eE".indexOf(valore.charAt(fine)) >= 0) fine++;
+        // Un'unita' come "em" non fa parte del numero
+        while (fine > 0 && (valore.charAt(fine - 1) == 'e' || valore.charAt(fine - 1) == 'E')) fine--;
+        try {
+            return fine > 0 ? Double.parseDouble(valore.substring(0, fine)) : predefinito;
+        } catch (NumberFormatException e) {
+            return predefinito;
+        }
+    }
+
+    /** Arrotonda all'intero piu' vicino. */
+    private static int arrotonda(double v) {
+        return (int) Math.round(v);
+    }
+}
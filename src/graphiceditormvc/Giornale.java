@@ -0,0 +1,574 @@
+package graphiceditormvc;
+
+import java.awt.Point;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Il giornale delle modifiche di un documento salvato in un file .drw: ogni modifica del documento
+ * (inserimento, eliminazione, spostamento, riordino di una forma) viene aggiunta come breve record binario
+ * in fondo al file <i>documento</i>.drw.jnl, in modo che le modifiche non salvate non vadano perse
+ * se il programma termina in modo anomalo. Il giornale e' un Observer del documento e riceve
+ * le modifiche dagli eventi di tipo EventoModifica.
+ * <p>
+ * I record vengono accumulati in memoria e scritti su disco (con FileChannel.force) da un thread
+ * in background ogni INTERVALLO_SINCRONIZZAZIONE millisecondi: in caso di arresto anomalo si perdono
+ * al massimo le modifiche dell'ultimo intervallo.
+ * <p>
+ * Ogni modifica ha un numero di sequenza crescente; il file .drw contiene nell'intestazione il numero
+ * di sequenza dell'ultima modifica che comprende (vedi FormatoDrw). Quando inizia un salvataggio
+ * (metodo ruota) il giornale viene spostato in <i>documento</i>.drw.jnl.old e le modifiche successive
+ * vengono scritte in un nuovo giornale; a salvataggio completato (metodo salvato) il vecchio giornale
+ * viene eliminato. Se il salvataggio non termina, all'apertura vengono applicate le modifiche di entrambi
+ * i giornali con numero di sequenza superiore a quello del file.
+ * <p>
+ * Perche' il giornale e il tempo per applicarlo non crescano senza limiti, dopo SOGLIA_COMPATTAZIONE
+ * modifiche il documento puo' essere compattato: una copia completa del documento viene salvata
+ * in <i>documento</i>.drw.jnl.base (senza modificare il file del documento) con lo stesso meccanismo
+ * del salvataggio. All'apertura viene usata come punto di partenza la copia piu' recente tra il file
+ * del documento e questa copia (metodo base).
+ * <p>
+ * Formato del file: intestazione di DIMENSIONE_INTESTAZIONE byte (i caratteri "DRWJ" e la versione),
+ * seguita dai record: tipo (un byte), numero di sequenza (intero a 64 bit), indice della forma
+ * e, a seconda del tipo, la forma inserita (un record di FormatoDrw), le nuove coordinate
+ * o il nuovo indice. Un record incompleto alla fine del file (scrittura interrotta) viene ignorato.
+ *
+ * @see Model
+ * @see FormatoDrw
+ *
+ * @author mauropamiro
+ */
+class Giornale implements Observer {
+    /** I primi quattro byte del file del giornale ("DRWJ"). */
+    static final int FIRMA = 0x4452574A;
+    /** La versione del formato del giornale. */
+    static final int VERSIONE = 1;
+    /** La lunghezza in byte dell'intestazione. */
+    static final int DIMENSIONE_INTESTAZIONE = 8;
+    /** L'estensione aggiunta al nome del documento per il giornale. */
+    static final String ESTENSIONE = ".jnl";
+    /** L'estensione del giornale delle modifiche che precedono il salvataggio in corso. */
+    static final String ESTENSIONE_PRECEDENTE = ".jnl.old";
+    /** L'estensione della copia del documento scritta dalla compattazione. */
+    static final String ESTENSIONE_BASE = ".jnl.base";
+    /** L'intervallo (in millisecondi) tra due scritture su disco del giornale. */
+    static final long INTERVALLO_SINCRONIZZAZIONE = 500;
+    /** Il numero di modifiche registrate dopo il quale conviene compattare il giornale. */
+    static final int SOGLIA_COMPATTAZIONE = 10000;
+
+    /** I tipi di record. */
+    private static final byte INSERIMENTO = 1, ELIMINAZIONE = 2, SPOSTAMENTO = 3, RIORDINO = 4;
+    /** La lunghezza della parte comune dei record: tipo, numero di sequenza, indice. */
+    private static final int DIMENSIONE_TESTA = 13;
+
+    /** Il thread che scrive su disco i giornali di tutti i documenti. */
+    private static final ScheduledExecutorService SINCRONIZZATORE = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            // Thread demone: non impedisce la chiusura del programma
+            Thread t = new Thread(r, "Giornale delle modifiche");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /** Il file del documento. */
+    private final File file;
+    /** Il documento di cui vengono registrate le modifiche. */
+    private final Model documento;
+    /** I record non ancora scritti su disco (accesso sincronizzato su this). */
+    private final ByteArrayOutputStream inAttesa = new ByteArrayOutputStream();
+    /** Lo stream con cui vengono codificati i record in inAttesa. */
+    private final DataOutputStream record = new DataOutputStream(inAttesa);
+    /** L'oggetto su cui si sincronizzano le operazioni sul file. */
+    private final Object scrittura = new Object();
+    /** Il canale del file del giornale, aperto in scrittura (null dopo la chiusura). */
+    private FileChannel canale;
+    /** Il numero di sequenza dell'ultima modifica registrata. */
+    private long sequenza;
+    /** Il numero di modifiche registrate dopo l'ultima rotazione. */
+    private int registrate;
+    /** Il numero di modifiche applicate al documento all'apertura del giornale. */
+    private int ripristinate;
+    /** La scrittura periodica su disco. */
+    private ScheduledFuture<?> sincronizzazione;
+    /** L'ultimo errore di scrittura su disco (null se nessuno). */
+    private volatile IOException errore;
+
+
+    /** Crea un giornale, senza aprire il file. */
+    private Giornale(File file, Model documento, long sequenza) {
+        this.file = file;
+        this.documento = documento;
+        this.sequenza = sequenza;
+    }
+
+    /**
+     * Crea un nuovo giornale vuoto per il documento, eliminando quello eventualmente presente
+     * accanto al file. Le modifiche successive vengono registrate nel giornale.
+     *
+     * @param file il file del documento
+     * @param documento il documento di cui registrare le modifiche
+     * @param sequenza il numero di sequenza dell'ultima modifica gia' compresa nel documento
+     *
+     * @return il giornale
+     *
+     * @throws IOException in caso di errore nella creazione del file
+     */
+    static Giornale crea(File file, Model documento, long sequenza) throws IOException {
+        elimina(file);
+        Giornale giornale = new Giornale(file, documento, sequenza);
+        giornale.canale = nuovoFile(file(file, ESTENSIONE));
+        giornale.avvia();
+        return giornale;
+    }
+
+    /**
+     * Apre il giornale del documento: applica al documento le modifiche registrate
+     * con numero di sequenza superiore a quello della copia da cui e' stato letto il documento
+     * (modifiche non salvate prima di un arresto anomalo del programma) e registra nel giornale
+     * le modifiche successive. Le modifiche ripristinate vengono applicate in un'unica transazione
+     * (vedi Model.iniziaModifiche), per cui le viste ricevono un solo evento.
+     *
+     * @param file il file del documento
+     * @param documento il documento appena letto
+     * @param sequenzaBase il numero di sequenza della copia da cui e' stato letto il documento
+     *                     (vedi FormatoDrw.leggiSequenza)
+     *
+     * @return il giornale
+     *
+     * @throws IOException in caso di errore di lettura o di scrittura
+     */
+    static Giornale apri(File file, Model documento, long sequenzaBase) throws IOException {
+        Giornale giornale = new Giornale(file, documento, sequenzaBase);
+        File attuale = file(file, ESTENSIONE);
+        long valida;
+        documento.iniziaModifiche();
+        try {
+            giornale.ripristina(file(file, ESTENSIONE_PRECEDENTE));
+            valida = giornale.ripristina(attuale);
+        } finally {
+            // Anche in caso di errore confermo le modifiche gia' applicate, che corrispondono al numero di sequenza
+            documento.confermaModifiche();
+        }
+        if (valida < DIMENSIONE_INTESTAZIONE) {
+            // Giornale assente o non valido
+            giornale.canale = nuovoFile(attuale);
+        } else {
+            // Elimino l'eventuale parte non valida (record incompleto) e continuo a scrivere in fondo
+            giornale.canale = new RandomAccessFile(attuale, "rw").getChannel();
+            giornale.canale.truncate(valida);
+            giornale.canale.position(valida);
+        }
+        giornale.avvia();
+        return giornale;
+    }
+
+    /**
+     * Restituisce la copia da cui leggere il documento all'apertura: il file del documento
+     * o, se e' piu' recente, la copia scritta dalla compattazione del giornale.
+     *
+     * @param file il file del documento
+     *
+     * @return il file da leggere
+     *
+     * @throws IOException in caso di errore di lettura
+     */
+    static File base(File file) throws IOException {
+        File base = file(file, ESTENSIONE_BASE);
+        if (base.exists() && FormatoDrw.leggiSequenza(base) > FormatoDrw.leggiSequenza(file)) return base;
+        return file;
+    }
+
+    /** Restituisce il file con il nome del documento seguito dall'estensione specificata. */
+    private static File file(File documento, String estensione) {
+        return new File(documento.getPath() + estensione);
+    }
+
+    /** Crea (o svuota) il file del giornale, scrivendo l'intestazione. */
+    private static FileChannel nuovoFile(File file) throws IOException {
+        FileChannel canale = new RandomAccessFile(file, "rw").getChannel();
+        canale.truncate(0);
+        ByteBuffer intestazione = ByteBuffer.allocate(DIMENSIONE_INTESTAZIONE);
+        intestazione.putInt(FIRMA).putInt(VERSIONE).flip();
+        while (intestazione.hasRemaining()) canale.write(intestazione);
+        canale.force(false);
+        return canale;
+    }
+
+    /** Elimina i file del giornale del documento. */
+    private static void elimina(File file) {
+        file(file, ESTENSIONE).delete();
+        file(file, ESTENSIONE_PRECEDENTE).delete();
+        file(file, ESTENSIONE_BASE).delete();
+    }
+
+    /** Avvia la scrittura periodica su disco e la registrazione delle modifiche del documento. */
+    private void avvia() {
+        sincronizzazione = SINCRONIZZATORE.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sincronizza();
+                } catch (IOException e) {
+                    errore = e;
+                }
+            }
+        }, INTERVALLO_SINCRONIZZAZIONE, INTERVALLO_SINCRONIZZAZIONE, TimeUnit.MILLISECONDS);
+        documento.addObserver(this);
+    }
+
+
+    /***********************************************************************************/
+    /******************************* Ripristino ****************************************/
+    /***********************************************************************************/
+
+    /**
+     * Applica al documento le modifiche del file di giornale con numero di sequenza
+     * successivo a quello attuale. La lettura si ferma al primo record incompleto o non valido
+     * o se manca una parte delle modifiche (numeri di sequenza non consecutivi).
+     *
+     * @return la lunghezza della parte valida del file (0 se il file non esiste o non e' un giornale)
+     */
+    private long ripristina(File giornale) throws IOException {
+        if (!giornale.isFile()) return 0;
+        FileInputStream in = new FileInputStream(giornale);
+        try {
+            // Leggo tutto il file (la compattazione ne limita la lunghezza); non lo mappo in memoria
+            // perche' su alcuni sistemi un file mappato non puo' essere troncato
+            FileChannel canale = in.getChannel();
+            ByteBuffer dati = ByteBuffer.allocate((int) Math.min(canale.size(), Integer.MAX_VALUE - 8));
+            while (dati.hasRemaining() && canale.read(dati) >= 0) {
+            }
+            dati.flip();
+            if (dati.remaining() < DIMENSIONE_INTESTAZIONE || dati.getInt() != FIRMA || dati.getInt() > VERSIONE) return 0;
+            long valida = dati.position();
+            while (dati.remaining() >= DIMENSIONE_TESTA) {
+                byte tipo = dati.get();
+                long numero = dati.getLong();
+                int indice = dati.getInt();
+                int resto = lunghezzaResto(tipo);
+                if (resto < 0 || dati.remaining() < resto) break;
+                if (numero > sequenza + 1) break;
+                if (numero <= sequenza) {
+                    // Modifica gia' compresa nel documento
+                    dati.position(dati.position() + resto);
+                } else {
+                    if (!applica(tipo, indice, dati)) break;
+                    sequenza = numero;
+                    ripristinate++;
+                }
+                valida = dati.position();
+            }
+            return valida;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Restituisce la lunghezza della parte di un record che segue l'indice (-1 se il tipo non e' valido). */
+    private static int lunghezzaResto(byte tipo) {
+        switch (tipo) {
+            case INSERIMENTO:
+                return FormatoDrw.DIMENSIONE_RECORD;
+            case ELIMINAZIONE:
+                return 0;
+            case SPOSTAMENTO:
+                return 8;
+            case RIORDINO:
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    /** Applica al documento la modifica letta dal buffer; restituisce false se la modifica non e' valida. */
+    private boolean applica(byte tipo, int indice, ByteBuffer dati) throws IOException {
+        int n = documento.nForme();
+        switch (tipo) {
+            case INSERIMENTO:
+                Forma f = FormatoDrw.leggiRecord(dati);
+                if (indice < 0 || indice > n) return false;
+                if (indice == n) documento.add(f);
+                else documento.add(indice, f);
+                return true;
+            case ELIMINAZIONE:
+                if (indice < 0 || indice >= n) return false;
+                documento.elimina(indice);
+                return true;
+            case SPOSTAMENTO:
+                int x = dati.getInt(), y = dati.getInt();
+                if (indice < 0 || indice >= n) return false;
+                documento.spostaForma(indice, new Point(x, y));
+                return true;
+            default:
+                int nuovoIndice = dati.getInt();
+                if (indice < 0 || indice >= n || nuovoIndice < 0 || nuovoIndice >= n) return false;
+                documento.riordina(indice, nuovoIndice);
+                return true;
+        }
+    }
+
+
+    /***********************************************************************************/
+    /************************** Registrazione delle modifiche **************************/
+    /***********************************************************************************/
+
+    /**
+     * Registra la modifica del documento descritta dall'evento (chiamato dal documento).
+     *
+     * @param o il documento modificato
+     * @param arg l'evento che descrive la modifica
+     */
+    @Override
+    public void update(Observable o, Object arg) {
+        if (!(arg instanceof EventoModifica)) return;
+        EventoModifica evento = (EventoModifica) arg;
+        synchronized (this) {
+            try {
+                registra(evento);
+            } catch (IOException e) {
+                // La scrittura in un ByteArrayOutputStream non genera errori
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Scrive i record della modifica; un evento MULTIPLA viene registrato come la serie
+     * delle sue modifiche elementari, per cui il formato del giornale non cambia.
+     */
+    private void registra(EventoModifica evento) throws IOException {
+        switch (evento.getTipo()) {
+            case INSERIMENTO:
+                // Un record per ogni forma inserita
+                for (int i = evento.getIndice(); i <= evento.getNuovoIndice(); i++) {
+                    testa(INSERIMENTO, i);
+                    scriviForma(i == evento.getNuovoIndice() ? evento.getForma() : documento.getForma(i));
+                }
+                break;
+            case ELIMINAZIONE:
+                testa(ELIMINAZIONE, evento.getIndice());
+                break;
+            case SPOSTAMENTO:
+                testa(SPOSTAMENTO, evento.getIndice());
+                record.writeInt(evento.getForma().getX());
+                record.writeInt(evento.getForma().getY());
+                break;
+            case MULTIPLA:
+                for (EventoModifica modifica : evento.getModifiche()) registra(modifica);
+                break;
+            default:
+                testa(RIORDINO, evento.getIndice());
+                record.writeInt(evento.getNuovoIndice());
+        }
+    }
+
+    /** Scrive la parte comune di un record, assegnando alla modifica il numero di sequenza successivo. */
+    private void testa(byte tipo, int indice) throws IOException {
+        record.writeByte(tipo);
+        record.writeLong(++sequenza);
+        record.writeInt(indice);
+        registrate++;
+    }
+
+    /** Scrive la forma nello stesso formato dei record di FormatoDrw. */
+    private void scriviForma(Forma f) throws IOException {
+        record.writeByte(f.getTipo().ordinal());
+        record.writeInt(f.getX());
+        record.writeInt(f.getY());
+        record.writeInt(f.getWidth());
+        record.writeInt(f.getHeight());
+        record.writeInt(f.getColore().getRGB());
+    }
+
+    /**
+     * Scrive su disco i record in attesa e attende che il sistema operativo li abbia scritti
+     * (FileChannel.force). Viene chiamato periodicamente da un thread in background.
+     *
+     * @throws IOException in caso di errore di scrittura
+     */
+    void sincronizza() throws IOException {
+        synchronized (scrittura) {
+            if (canale == null) return;
+            ByteBuffer dati;
+            synchronized (this) {
+                if (inAttesa.size() == 0) return;
+                dati = ByteBuffer.wrap(inAttesa.toByteArray());
+                inAttesa.reset();
+            }
+            while (dati.hasRemaining()) canale.write(dati);
+            canale.force(false);
+        }
+    }
+
+
+    /***********************************************************************************/
+    /************************* Salvataggio e compattazione *****************************/
+    /***********************************************************************************/
+
+    /**
+     * Inizia un salvataggio (o una compattazione) del documento: le modifiche registrate finora
+     * vengono spostate nel giornale precedente (aggiungendole a quello gia' presente,
+     * se un salvataggio precedente non e' terminato) e le successive vengono registrate in un nuovo giornale.
+     * Va chiamato nel thread grafico quando viene fatta la copia del documento da salvare.
+     *
+     * @return il numero di sequenza dell'ultima modifica compresa nella copia, da scrivere nel file salvato
+     *
+     * @throws IOException in caso di errore di scrittura (le modifiche restano comunque registrate)
+     */
+    long ruota() throws IOException {
+        synchronized (scrittura) {
+            sincronizza();
+            File attuale = file(file, ESTENSIONE);
+            File precedente = file(file, ESTENSIONE_PRECEDENTE);
+            canale.close();
+            canale = null;
+            try {
+                if (precedente.exists()) {
+                    accoda(attuale, precedente);
+                } else if (!attuale.renameTo(precedente)) {
+                    throw new IOException("Impossibile rinominare " + attuale.getName());
+                }
+                canale = nuovoFile(attuale);
+            } finally {
+                if (canale == null) {
+                    // Continuo a scrivere in fondo al giornale attuale
+                    canale = new RandomAccessFile(attuale, "rw").getChannel();
+                    canale.position(canale.size());
+                }
+            }
+            registrate = 0;
+            return sequenza;
+        }
+    }
+
+    /** Aggiunge in fondo al giornale precedente i record del giornale attuale. */
+    private static void accoda(File attuale, File precedente) throws IOException {
+        FileInputStream in = new FileInputStream(attuale);
+        try {
+            RandomAccessFile out = new RandomAccessFile(precedente, "rw");
+            try {
+                FileChannel sorgente = in.getChannel(), destinazione = out.getChannel();
+                long inizio = DIMENSIONE_INTESTAZIONE, fine = sorgente.size();
+                destinazione.position(destinazione.size());
+                while (inizio < fine) inizio += sorgente.transferTo(inizio, fine - inizio, destinazione);
+                destinazione.force(false);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Conclude il salvataggio iniziato con ruota: le modifiche del giornale precedente
+     * sono state salvate e il giornale precedente viene eliminato.
+     *
+     * @param compattazione true se la copia e' stata salvata nella copia di compattazione,
+     *                      false se e' stata salvata nel file del documento (la copia di compattazione,
+     *                      meno recente, viene eliminata)
+     */
+    void salvato(boolean compattazione) {
+        file(file, ESTENSIONE_PRECEDENTE).delete();
+        if (!compattazione) file(file, ESTENSIONE_BASE).delete();
+    }
+
+    /**
+     * Chiude il giornale, scrivendo su disco i record in attesa.
+     *
+     * @param elimina true per eliminare i file del giornale (le modifiche sono state salvate o scartate)
+     */
+    void chiudi(boolean elimina) {
+        documento.deleteObserver(this);
+        sincronizzazione.cancel(false);
+        synchronized (scrittura) {
+            try {
+                sincronizza();
+            } catch (IOException e) {
+                errore = e;
+            }
+            try {
+                canale.close();
+            } catch (IOException e) {
+                errore = e;
+            }
+            canale = null;
+        }
+        if (elimina) elimina(file);
+    }
+
+
+    /***********************************************************************************/
+    /************************************ Metodi get ***********************************/
+    /***********************************************************************************/
+
+    /**
+     * Restituisce il file del documento.
+     *
+     * @return il file del documento
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Restituisce il file in cui la compattazione salva la copia del documento.
+     *
+     * @return il file della copia di compattazione
+     */
+    File getFileBase() {
+        return file(file, ESTENSIONE_BASE);
+    }
+
+    /**
+     * Restituisce il numero di sequenza dell'ultima modifica registrata.
+     *
+     * @return il numero di sequenza
+     */
+    long getSequenza() {
+        return sequenza;
+    }
+
+    /**
+     * Restituisce il numero di modifiche applicate al documento all'apertura del giornale.
+     *
+     * @return il numero di modifiche ripristinate
+     */
+    int getRipristinate() {
+        return ripristinate;
+    }
+
+    /**
+     * Indica se conviene compattare il giornale: sono state registrate almeno
+     * SOGLIA_COMPATTAZIONE modifiche dopo l'ultimo salvataggio o compattazione.
+     *
+     * @return true se conviene compattare il giornale
+     */
+    boolean daCompattare() {
+        return registrate >= SOGLIA_COMPATTAZIONE;
+    }
+
+    /**
+     * Restituisce l'ultimo errore di scrittura su disco del giornale.
+     *
+     * @return l'errore, o null se non ci sono stati errori
+     */
+    IOException getErrore() {
+        return errore;
+    }
+}
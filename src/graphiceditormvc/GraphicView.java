@@ -2,6 +2,8 @@ package graphiceditormvc;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
 import java.util.Observable;
 import java.util.Observer;
 
@@ -11,12 +13,43 @@ import java.util.Observer;
  * dove disegnare una vista in grafica vettoriale per i documenti di tipo Model.
  * La vista del documento viene disegnata in un pannello interno,
  * aggiunto al pannello scorrevole dal costruttore.
+ * <p>
+ * Quando c'e' una sola forma selezionata la vista puo' usare due strati memorizzati 
+ * (immagini grandi quanto la parte visibile del pannello): uno con le forme che stanno
+ * sotto la forma selezionata, con lo sfondo, e uno trasparente con le forme che stanno sopra.
+ * Durante il trascinamento cambia solo la forma selezionata, per cui ogni ridisegno 
+ * copia i due strati e disegna solo la forma selezionata tra i due: il tempo di ridisegno
+ * non dipende dal numero di forme del documento. Gli strati vengono ricreati quando cambiano
+ * la forma selezionata, la parte visibile o le altre forme del documento.
+ * <p>
+ * Negli altri casi il documento viene disegnato a tessere (DisegnatoreTessere): 
+ * le tessere vengono memorizzate e ridisegnate in parallelo solo quando una modifica 
+ * del documento le interessa.
+ * <p>
+ * Le forme selezionate (anche piu' di una) vengono disegnate piu' chiare delle altre;
+ * durante la selezione con il mouse viene disegnato il riquadro di selezione.
  * 
  * @author mauropamiro
  */
 public class GraphicView extends JPanel implements Observer{
     /** Il Controller associato alla vista. */
     private final Controller controller; 
+    /** Indica se disegnare il documento a tessere, in parallelo (vedi DisegnatoreTessere). */
+    private boolean usaTessere=true;
+    /** Le tessere in cui viene disegnato il documento. */
+    private final DisegnatoreTessere tessere=new DisegnatoreTessere();
+    /** Indica se usare gli strati memorizzati quando c'e' una sola forma selezionata. */
+    private boolean usaStrati=true;
+    /** Il tratteggio del riquadro di selezione. */
+    private static final Stroke TRATTEGGIO=new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[]{4, 4}, 0);
+    /** Lo strato con lo sfondo e le forme sotto la forma selezionata (null se non e' stato creato). */
+    private BufferedImage stratoSotto;
+    /** Lo strato trasparente con le forme sopra la forma selezionata. */
+    private BufferedImage stratoSopra;
+    /** La parte del documento rappresentata dagli strati. */
+    private Rectangle areaStrati;
+    /** L'indice della forma selezionata quando sono stati creati gli strati (-1 se gli strati non sono validi). */
+    private int selezionataStrati=-1;
     
     /**
      * Costruttore che crea il pannello scorrevole, aggiungendogli un secondo pannello
@@ -41,17 +74,76 @@ public class GraphicView extends JPanel implements Observer{
     
     /**
      * Metodo chiamato ogni volta che la vista deve essere aggiornata.
+     * Se il Model descrive la modifica (EventoModifica) vengono ridisegnate
+     * solo le aree modificate, altrimenti viene ridisegnata l'intera vista.
      * 
-     * @param o
-     * @param arg 
+     * @param o il Model che ha richiesto l'aggiornamento
+     * @param arg la modifica subita dal documento o null per ridisegnare tutto
+     * 
+     * @see EventoModifica
      */
     @Override
     public void update(Observable o, Object arg) {
-        // Faccio in modo che il componente venga ridisegnato
-        revalidate();
+        if(arg instanceof EventoModifica){
+            EventoModifica evento=(EventoModifica)arg;
+            // Lo spostamento della forma selezionata non modifica gli strati, le altre modifiche si'
+            if(evento.getTipo()!=EventoModifica.Tipo.SPOSTAMENTO || evento.getIndice()!=selezionataStrati){
+                selezionataStrati=-1;
+            }
+            // Ridisegno solo le aree modificate (un pixel in piu' per i bordi destro e inferiore delle forme)
+            for(Rectangle r : evento.getAree()){
+                tessere.invalida(new Rectangle(r.x, r.y, r.width+1, r.height+1));
+                repaint(r.x, r.y, r.width+1, r.height+1);
+            }
+        }
+        else{
+            selezionataStrati=-1;
+            // Faccio in modo che il componente venga ridisegnato
+            revalidate();
+            repaint();
+        }
+    }
+    
+    /**
+     * Stabilisce se usare gli strati memorizzati quando c'e' una forma selezionata.
+     * 
+     * @param usaStrati true per usare gli strati, false per ridisegnare ogni volta tutte le forme
+     */
+    public void setUsaStrati(boolean usaStrati){
+        this.usaStrati=usaStrati;
+        if(!usaStrati) liberaStrati();
         repaint();
     }
     
+    /**
+     * Indica se vengono usati gli strati memorizzati quando c'e' una forma selezionata.
+     * 
+     * @return true se vengono usati gli strati
+     */
+    public boolean isUsaStrati(){
+        return usaStrati;
+    }
+    
+    /**
+     * Stabilisce se disegnare il documento a tessere, memorizzate e disegnate in parallelo.
+     * 
+     * @param usaTessere true per disegnare a tessere, false per disegnare direttamente le forme
+     */
+    public void setUsaTessere(boolean usaTessere){
+        this.usaTessere=usaTessere;
+        if(!usaTessere) tessere.invalidaTutto();
+        repaint();
+    }
+    
+    /**
+     * Indica se il documento viene disegnato a tessere.
+     * 
+     * @return true se il documento viene disegnato a tessere
+     */
+    public boolean isUsaTessere(){
+        return usaTessere;
+    }
+    
     
     /** 
      * Metodo chiamato automaticamente quando il componente deve essere ridisegnato.
@@ -61,29 +153,58 @@ public class GraphicView extends JPanel implements Observer{
      */
     @Override
     public void paintComponent(Graphics g) {
+        long inizio=Metriche.inizio();
         super.paintComponent(g);
         disegna(g);
+        Metriche.DISEGNO.registra(inizio);
     }
     
     /**
      * Disegna il documento, chiedendo al controller un riferimento al Model.
+     * Vengono disegnate solo le forme che intersecano l'area da ridisegnare
+     * (il clip del contesto grafico), ad esempio la parte visibile nel pannello scorrevole.
+     * 
      * @param g il contesto grafico del componente in cui disegnare
      */
     private void disegna(Graphics g){
         boolean isSelezionata;
         // Recupero un riferimento al Model
         Model documento=controller.getDocumento();
-        // Colora di bianco lo sfondo
-        g.setColor(Color.white);
-        g.fillRect(0, 0, getWidth(), getHeight());
-        // Disegno una alla volta le forme contenute nel documento
-        for(int i=0;i<documento.nForme();i++){
-            // Controllo se la forma da disegnare è selezionata
-            // (la forma selezionata viene disegnata più chiara delle altre)
-            if(controller.getSelezionata()==i) isSelezionata=true;
-            else isSelezionata=false;
-            // Disegno la forma
-            disegnaForma(g,documento.getForma(i),isSelezionata);
+        int selezionata=controller.getSelezionata();
+        BitSet selezione=controller.getSelezione();
+        // Area da ridisegnare
+        Rectangle clip=g.getClipBounds();
+        if(clip==null) clip=new Rectangle(0, 0, getWidth(), getHeight());
+        Rectangle visibile=getVisibleRect();
+        if(usaStrati && selezionata>=0 && selezionata<documento.nForme() && selezione.cardinality()==1 && !visibile.isEmpty() && visibile.contains(clip)){
+            // Copio gli strati e disegno tra i due la forma selezionata
+            if(selezionata!=selezionataStrati || !visibile.equals(areaStrati)) creaStrati(documento, selezionata, visibile);
+            g.drawImage(stratoSotto, visibile.x, visibile.y, null);
+            disegnaForma(g, documento.getForma(selezionata), true);
+            g.drawImage(stratoSopra, visibile.x, visibile.y, null);
+        }
+        else if(usaTessere){
+            if(selezionata<0) liberaStrati();
+            // Disegno le tessere che intersecano l'area da ridisegnare
+            tessere.disegna(g, documento, selezione, clip);
+        }
+        else{
+            // Nessuna forma selezionata: gli strati non servono
+            if(selezionata<0) liberaStrati();
+            // Colora di bianco lo sfondo
+            g.setColor(Color.white);
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            // Disegno una alla volta, in ordine, le sole forme che intersecano l'area da ridisegnare
+            int[] visibili=documento.cercaForme(clip);
+            for(int k=0;k<visibili.length;k++){
+                int i=visibili[k];
+                Forma f=documento.getForma(i);
+                // Controllo se la forma da disegnare è selezionata
+                // (le forme selezionate vengono disegnate più chiare delle altre)
+                isSelezionata=selezione.get(i);
+                // Disegno la forma
+                disegnaForma(g,f,isSelezionata);
+            }
         }
         // Coloro di grigio la parte di pannello che non contiene il documento
         // (se il documento è più piccolo del pannello, intorno al documento c'è un'area grigia)
@@ -92,16 +213,70 @@ public class GraphicView extends JPanel implements Observer{
         g.fillRect(documento.getWidth(), 0, getWidth()-documento.getWidth(), getHeight());
         // Disegno una striscia grigia sotto il documento
         g.fillRect(0, documento.getHeight(), getWidth(), getHeight()-documento.getHeight());
+        // Disegno il riquadro di selezione, se l'utente lo sta tracciando
+        Rectangle riquadro=controller.getRiquadroSelezione();
+        if(riquadro!=null){
+            Graphics2D g2=(Graphics2D)g.create();
+            g2.setColor(Color.DARK_GRAY);
+            g2.setStroke(TRATTEGGIO);
+            g2.drawRect(riquadro.x, riquadro.y, riquadro.width, riquadro.height);
+            g2.dispose();
+        }
     }
     
     
+    /**
+     * Crea gli strati per la parte visibile del documento: nel primo lo sfondo e le forme
+     * che precedono la forma selezionata, nel secondo (trasparente) le forme che la seguono.
+     * Le immagini vengono riutilizzate se la dimensione della parte visibile non e' cambiata.
+     * 
+     * @param documento il documento da disegnare
+     * @param selezionata l'indice della forma selezionata
+     * @param visibile la parte visibile del documento
+     */
+    private void creaStrati(Model documento, int selezionata, Rectangle visibile){
+        if(stratoSotto==null || stratoSotto.getWidth()!=visibile.width || stratoSotto.getHeight()!=visibile.height){
+            stratoSotto=new BufferedImage(visibile.width, visibile.height, BufferedImage.TYPE_INT_RGB);
+            stratoSopra=new BufferedImage(visibile.width, visibile.height, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        Graphics2D sotto=stratoSotto.createGraphics();
+        Graphics2D sopra=stratoSopra.createGraphics();
+        // Sfondo bianco sotto, completamente trasparente sopra
+        sotto.setColor(Color.white);
+        sotto.fillRect(0, 0, visibile.width, visibile.height);
+        sopra.setComposite(AlphaComposite.Clear);
+        sopra.fillRect(0, 0, visibile.width, visibile.height);
+        sopra.setComposite(AlphaComposite.SrcOver);
+        // Gli strati iniziano nel vertice in alto a sinistra della parte visibile
+        sotto.translate(-visibile.x, -visibile.y);
+        sopra.translate(-visibile.x, -visibile.y);
+        int[] visibili=documento.cercaForme(visibile);
+        for(int k=0;k<visibili.length;k++){
+            int i=visibili[k];
+            if(i<selezionata) disegnaForma(sotto, documento.getForma(i), false);
+            else if(i>selezionata) disegnaForma(sopra, documento.getForma(i), false);
+        }
+        sotto.dispose();
+        sopra.dispose();
+        areaStrati=new Rectangle(visibile);
+        selezionataStrati=selezionata;
+    }
+    
+    /** Elimina gli strati memorizzati, liberando la memoria che occupano. */
+    private void liberaStrati(){
+        stratoSotto=null;
+        stratoSopra=null;
+        areaStrati=null;
+        selezionataStrati=-1;
+    }
+    
     /** Disegno una forma usando il contesto grafico ricevuto come parametro.
      * 
      * @param g il contesto grafico in cui disegnare
      * @param f la forma da disegnare
      * @param selezionata indica se la forma è quella selezionata 
      */
-    private void disegnaForma(Graphics g,Forma f,boolean selezionata){
+    static void disegnaForma(Graphics g,Forma f,boolean selezionata){
         int alpha=100; // Opacità della forma bianca da sovrapporre alla forma selezionata
         
         // Disegno, a seconda del suo tipo, la forma colorata
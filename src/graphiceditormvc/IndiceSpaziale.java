@@ -0,0 +1,219 @@
+package graphiceditormvc;
+
+import java.util.Arrays;
+
+/**
+ * Indice spaziale a griglia uniforme per le forme di un documento di tipo Model.
+ * Lo spazio del documento viene suddiviso in celle quadrate di lato LATO_CELLA:
+ * ogni cella memorizza, in ordine crescente, gli indici delle forme il cui
+ * rettangolo di ingombro interseca la cella.
+ * <p>
+ * Per trovare la forma in primo piano in un punto basta quindi controllare
+ * le sole forme della cella che contiene il punto, partendo dall'indice piu' alto
+ * (l'ultima forma disegnata).
+ * Le forme che escono dal documento vengono assegnate alle celle di bordo.
+ *
+ * @see Model
+ *
+ * @author mauropamiro
+ */
+class IndiceSpaziale {
+    /** Lato in pixel di una cella della griglia. */
+    static final int LATO_CELLA = 64;
+
+    /** Numero di colonne della griglia. */
+    private final int colonne;
+    /** Numero di righe della griglia. */
+    private final int righe;
+    /** Per ogni cella, gli indici (in ordine crescente) delle forme che la intersecano. */
+    private final int[][] celle;
+    /** Per ogni cella, il numero di indici memorizzati. */
+    private final int[] dimensioni;
+
+
+    /**
+     * Crea un indice vuoto per un documento delle dimensioni specificate
+     *
+     * @param width la larghezza del documento in pixel
+     * @param height l'altezza del documento in pixel
+     */
+    IndiceSpaziale(int width, int height){
+        colonne=Math.max(1, (width+LATO_CELLA-1)/LATO_CELLA);
+        righe=Math.max(1, (height+LATO_CELLA-1)/LATO_CELLA);
+        celle=new int[colonne*righe][];
+        dimensioni=new int[colonne*righe];
+    }
+
+    /**
+     * Restituisce la colonna della griglia che contiene la coordinata x
+     * (le coordinate esterne al documento vengono assegnate alle colonne di bordo).
+     */
+    private int colonna(int x){
+        return Math.min(Math.max(x/LATO_CELLA, 0), colonne-1);
+    }
+
+    /**
+     * Restituisce la riga della griglia che contiene la coordinata y
+     * (le coordinate esterne al documento vengono assegnate alle righe di bordo).
+     */
+    private int riga(int y){
+        return Math.min(Math.max(y/LATO_CELLA, 0), righe-1);
+    }
+
+    /**
+     * Restituisce la cella che contiene il punto (x,y).
+     *
+     * @param x la coordinata x del punto
+     * @param y la coordinata y del punto
+     *
+     * @return l'indice della cella che contiene il punto
+     */
+    int cella(int x, int y){
+        return riga(y)*colonne+colonna(x);
+    }
+
+    /**
+     * Restituisce il numero di forme che intersecano la cella.
+     *
+     * @param cella l'indice della cella
+     *
+     * @return il numero di forme che intersecano la cella
+     */
+    int nCandidati(int cella){
+        return dimensioni[cella];
+    }
+
+    /**
+     * Restituisce l'indice della k-esima forma (in ordine di disegno) che interseca la cella.
+     *
+     * @param cella l'indice della cella
+     * @param k la posizione della forma nella cella
+     *
+     * @return l'indice, all'interno del documento, della forma
+     */
+    int candidato(int cella, int k){
+        return celle[cella][k];
+    }
+
+
+    /**
+     * Restituisce, in ordine crescente e senza ripetizioni, gli indici delle forme
+     * che intersecano le celle coperte dall'area specificata.
+     * Le forme restituite vanno ancora controllate: possono trovarsi in una cella
+     * coperta dall'area senza intersecare l'area stessa.
+     *
+     * @param x la coordinata x del vertice in alto a sinistra dell'area
+     * @param y la coordinata y del vertice in alto a sinistra dell'area
+     * @param width la larghezza dell'area
+     * @param height l'altezza dell'area
+     *
+     * @return gli indici delle forme candidate, in ordine di disegno
+     */
+    int[] cerca(int x, int y, int width, int height){
+        int c0=colonna(x), c1=colonna(x+Math.max(width,0));
+        int r0=riga(y), r1=riga(y+Math.max(height,0));
+        // Raccolgo gli indici di tutte le celle coperte dall'area
+        int n=0;
+        for(int r=r0;r<=r1;r++){
+            for(int c=c0;c<=c1;c++) n+=dimensioni[r*colonne+c];
+        }
+        int[] trovati=new int[n];
+        n=0;
+        for(int r=r0;r<=r1;r++){
+            for(int c=c0;c<=c1;c++){
+                int cella=r*colonne+c;
+                if(dimensioni[cella]==0) continue;
+                System.arraycopy(celle[cella], 0, trovati, n, dimensioni[cella]);
+                n+=dimensioni[cella];
+            }
+        }
+        // Ordino ed elimino le ripetizioni (le forme che occupano piu' celle)
+        if(c0==c1 && r0==r1) return trovati;
+        Arrays.sort(trovati);
+        int m=0;
+        for(int i=0;i<n;i++){
+            if(m==0 || trovati[m-1]!=trovati[i]) trovati[m++]=trovati[i];
+        }
+        return m==n ? trovati : Arrays.copyOf(trovati, m);
+    }
+
+
+    /**
+     * Inserisce nell'indice la forma di indice specificato.
+     *
+     * @param indice l'indice della forma nel documento
+     * @param f la forma da inserire
+     */
+    void inserisci(int indice, Forma f){
+        inserisci(indice, f.getX(), f.getY(), f.getWidth(), f.getHeight());
+    }
+
+    /**
+     * Inserisce nell'indice la forma di indice specificato, contenuta nel rettangolo specificato.
+     *
+     * @param indice l'indice della forma nel documento
+     * @param x la coordinata x del vertice in alto a sinistra del rettangolo che contiene la forma
+     * @param y la coordinata y del vertice in alto a sinistra del rettangolo che contiene la forma
+     * @param width la larghezza del rettangolo che contiene la forma
+     * @param height l'altezza del rettangolo che contiene la forma
+     */
+    void inserisci(int indice, int x, int y, int width, int height){
+        int c0=colonna(x), c1=colonna(x+Math.max(width,0));
+        int r0=riga(y), r1=riga(y+Math.max(height,0));
+        for(int r=r0;r<=r1;r++){
+            for(int c=c0;c<=c1;c++) inserisciInCella(r*colonne+c, indice);
+        }
+    }
+
+    /**
+     * Rimuove dall'indice la forma di indice specificato.
+     * La forma deve trovarsi nella stessa posizione in cui e' stata inserita.
+     *
+     * @param indice l'indice della forma nel documento
+     * @param f la forma da rimuovere
+     */
+    void rimuovi(int indice, Forma f){
+        int c0=colonna(f.getX()), c1=colonna(f.getX()+Math.max(f.getWidth(),0));
+        int r0=riga(f.getY()), r1=riga(f.getY()+Math.max(f.getHeight(),0));
+        for(int r=r0;r<=r1;r++){
+            for(int c=c0;c<=c1;c++) rimuoviDaCella(r*colonne+c, indice);
+        }
+    }
+
+    /** Inserisce un indice in una cella mantenendo l'ordine crescente. */
+    private void inserisciInCella(int cella, int indice){
+        int[] elenco=celle[cella];
+        int n=dimensioni[cella];
+        if(elenco==null){
+            elenco=new int[4];
+            celle[cella]=elenco;
+        }
+        else if(n==elenco.length){
+            int[] nuovo=new int[n*2];
+            System.arraycopy(elenco, 0, nuovo, 0, n);
+            elenco=nuovo;
+            celle[cella]=elenco;
+        }
+        // Nel caso piu' frequente (forma aggiunta in coda al documento) l'indice va in fondo
+        int pos=n;
+        if(n>0 && elenco[n-1]>=indice){
+            pos=Arrays.binarySearch(elenco, 0, n, indice);
+            if(pos>=0) return; // Gia' presente
+            pos=-pos-1;
+            System.arraycopy(elenco, pos, elenco, pos+1, n-pos);
+        }
+        elenco[pos]=indice;
+        dimensioni[cella]=n+1;
+    }
+
+    /** Rimuove un indice da una cella. */
+    private void rimuoviDaCella(int cella, int indice){
+        int[] elenco=celle[cella];
+        int n=dimensioni[cella];
+        if(elenco==null) return;
+        int pos=Arrays.binarySearch(elenco, 0, n, indice);
+        if(pos<0) return;
+        System.arraycopy(elenco, pos+1, elenco, pos, n-pos-1);
+        dimensioni[cella]=n-1;
+    }
+}
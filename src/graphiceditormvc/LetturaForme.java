@@ -0,0 +1,37 @@
+package graphiceditormvc;
+
+import java.io.IOException;
+
+/**
+ * Riceve, una alla volta, le forme lette da un file (vedi FormatoDrw.leggi e FormatoSvg.leggi),
+ * in modo che chi legge possa costruire il documento mentre il file viene letto,
+ * ad esempio per mostrarlo man mano che viene caricato.
+ * I metodi vengono chiamati dal thread che legge il file, che puo' non essere il thread grafico.
+ *
+ * @see FormatoDrw
+ * @see FormatoSvg
+ *
+ * @author mauropamiro
+ */
+interface LetturaForme {
+
+    /**
+     * Comunica le dimensioni del documento. Viene chiamato una volta, prima di tutte le forme.
+     *
+     * @param width la larghezza del documento
+     * @param height l'altezza del documento
+     * @param nForme il numero di forme del file (-1 se non e' noto prima della lettura)
+     *
+     * @throws IOException per interrompere la lettura
+     */
+    void inizio(int width, int height, int nForme) throws IOException;
+
+    /**
+     * Comunica la prossima forma letta, in ordine di disegno.
+     *
+     * @param f la forma letta
+     *
+     * @throws IOException per interrompere la lettura
+     */
+    void forma(Forma f) throws IOException;
+}
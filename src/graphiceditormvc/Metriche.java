@@ -0,0 +1,316 @@
+package graphiceditormvc;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Le misure delle prestazioni del programma: i tempi delle operazioni piu' frequenti
+ * (disegno della vista, selezione, annullamento, salvataggio, apertura), registrati in istogrammi
+ * a scala logaritmica, e alcuni contatori (notifiche alle viste, forme del documento, ...).
+ * Alcuni contatori, che costano solo un incremento atomico, contano sempre (vedi Contatore).
+ * <p>
+ * Le misure sono disabilitate per default: si abilitano avviando il programma con
+ * <code>-Dgraphiceditormvc.metriche=true</code>, dal menu Visualizza -&gt; Prestazioni o via JMX
+ * (vedi MetricheMBean). Da disabilitate costano solo la lettura di un campo volatile:
+ * <pre>
+ *     long inizio = Metriche.inizio();   // 0 se le misure sono disabilitate
+ *     ...
+ *     Metriche.DISEGNO.registra(inizio);  // non fa nulla se inizio e' 0
+ * </pre>
+ * I valori possono essere registrati da piu' thread (ad esempio il salvataggio in background):
+ * istogrammi e contatori usano variabili atomiche e non richiedono sincronizzazione.
+ *
+ * @see MetricheMBean
+ *
+ * @author mauropamiro
+ */
+public final class Metriche implements MetricheMBean {
+    /** Il nome con cui le misure vengono registrate nel server JMX della piattaforma. */
+    static final String NOME_JMX = "graphiceditormvc:type=Metriche";
+
+    /** Le misure dei tempi, nell'ordine in cui sono state create. */
+    private static final List<Tempo> TEMPI = new ArrayList<Tempo>();
+    /** I contatori, nell'ordine in cui sono stati creati. */
+    private static final List<Contatore> CONTATORI = new ArrayList<Contatore>();
+
+    /** Il disegno della vista grafica (GraphicView.paintComponent). */
+    static final Tempo DISEGNO = new Tempo("disegno");
+    /** La ricerca della forma da selezionare (Controller.seleziona). */
+    static final Tempo SELEZIONE = new Tempo("selezione");
+    /** La creazione delle voci di annullamento (Controller.createUndo). */
+    static final Tempo UNDO = new Tempo("undo");
+    /** La scrittura del documento nel file (in background). */
+    static final Tempo SALVATAGGIO = new Tempo("salvataggio");
+    /** La scrittura della copia di compattazione del giornale delle modifiche (in background). */
+    static final Tempo COMPATTAZIONE = new Tempo("compattazione");
+    /** L'apertura di un documento, fino al termine della lettura di tutte le forme. */
+    static final Tempo APERTURA = new Tempo("apertura");
+
+    /** Le notifiche di modifica inviate dai documenti alle viste. */
+    static final Contatore NOTIFICHE = new Contatore("notifiche", false);
+    /** Il numero di forme del documento all'ultima modifica. */
+    static final Contatore FORME = new Contatore("forme", false);
+    /** Le posizioni intermedie del trascinamento scartate (vedi Controller.mouseDragged); conta anche a misure disabilitate. */
+    static final Contatore TRASCINAMENTI_SCARTATI = new Contatore("trascinamentiScartati", true);
+
+    /** Indica se le misure sono abilitate. */
+    private static volatile boolean abilitate = Boolean.getBoolean("graphiceditormvc.metriche");
+    /** Indica se le misure sono gia' state registrate nel server JMX. */
+    private static boolean registrate;
+
+    private Metriche() {
+    }
+
+    /**
+     * Restituisce l'istante di inizio di un'operazione da misurare.
+     *
+     * @return il valore di System.nanoTime() o 0 se le misure sono disabilitate
+     */
+    static long inizio() {
+        return abilitate ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Indica se le misure sono abilitate.
+     *
+     * @return true se le misure sono abilitate
+     */
+    static boolean abilitate() {
+        return abilitate;
+    }
+
+    /**
+     * Abilita o disabilita le misure.
+     *
+     * @param valore true per abilitare le misure
+     */
+    static void abilita(boolean valore) {
+        abilitate = valore;
+    }
+
+    /**
+     * Registra le misure nel server JMX della piattaforma, con il nome NOME_JMX.
+     * Le chiamate successive alla prima non fanno nulla.
+     */
+    static synchronized void registraJmx() {
+        if (registrate) return;
+        registrate = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Metriche(), new ObjectName(NOME_JMX));
+        } catch (JMException e) {
+            // Le misure restano disponibili nel programma
+            Logger.getLogger(Metriche.class.getName()).log(Level.WARNING, "Registrazione JMX non riuscita", e);
+        }
+    }
+
+    /**
+     * Restituisce il rapporto testuale di tutte le misure: per ogni misura dei tempi
+     * il numero di operazioni, il tempo medio, il 50°, 90° e 99° percentile e il massimo
+     * (in millisecondi), per ogni contatore il suo valore.
+     *
+     * @return il rapporto, una riga per misura
+     */
+    static String report() {
+        StringBuilder sb = new StringBuilder();
+        if (!abilitate) sb.append(String.format("Misure disabilitate%n"));
+        sb.append(String.format("%-22s %10s %10s %10s %10s %10s %10s%n", "Tempi (ms)", "n", "media", "p50", "p90", "p99", "max"));
+        for (Tempo t : TEMPI) {
+            long n = t.numero.get();
+            sb.append(String.format("%-22s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", t.nome, n,
+                    n > 0 ? t.totale.get() / 1e6 / n : 0.0, t.percentile(50) / 1e6, t.percentile(90) / 1e6,
+                    t.percentile(99) / 1e6, t.massimo.get() / 1e6));
+        }
+        sb.append(String.format("%-22s %10s%n", "Contatori", "valore"));
+        for (Contatore c : CONTATORI) {
+            sb.append(String.format("%-22s %10d%n", c.nome, c.valore.get()));
+        }
+        return sb.toString();
+    }
+
+    /** Azzera tutte le misure dei tempi e tutti i contatori. */
+    static void azzeraTutto() {
+        for (Tempo t : TEMPI) t.azzera();
+        for (Contatore c : CONTATORI) c.valore.set(0);
+    }
+
+    /** Restituisce la misura dei tempi con il nome specificato, o null. */
+    private static Tempo tempo(String nome) {
+        for (Tempo t : TEMPI) {
+            if (t.nome.equals(nome)) return t;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isAbilitate() {
+        return abilitate;
+    }
+
+    @Override
+    public void setAbilitate(boolean abilitate) {
+        abilita(abilitate);
+    }
+
+    @Override
+    public String getReport() {
+        return report();
+    }
+
+    @Override
+    public String[] getNomi() {
+        List<String> nomi = new ArrayList<String>();
+        for (Tempo t : TEMPI) nomi.add(t.nome);
+        for (Contatore c : CONTATORI) nomi.add(c.nome);
+        return nomi.toArray(new String[nomi.size()]);
+    }
+
+    @Override
+    public long conteggio(String nome) {
+        Tempo t = tempo(nome);
+        if (t != null) return t.numero.get();
+        for (Contatore c : CONTATORI) {
+            if (c.nome.equals(nome)) return c.valore.get();
+        }
+        return -1;
+    }
+
+    @Override
+    public double percentile(String nome, double percentuale) {
+        Tempo t = tempo(nome);
+        return t == null || t.numero.get() == 0 ? -1 : t.percentile(percentuale) / 1e6;
+    }
+
+    @Override
+    public void azzera() {
+        azzeraTutto();
+    }
+
+
+    /**
+     * La misura dei tempi di un'operazione: un istogramma a scala logaritmica delle durate in nanosecondi.
+     * Ogni potenza di due e' divisa in SOTTOINTERVALLI intervalli uguali, per cui i percentili
+     * hanno un errore relativo di al massimo 1/SOTTOINTERVALLI (12,5%).
+     */
+    static final class Tempo {
+        /** Il numero di intervalli (bit) per ogni potenza di due. */
+        private static final int BIT_SOTTOINTERVALLI = 3;
+        /** Il numero di intervalli dell'istogramma per ogni potenza di due. */
+        private static final int SOTTOINTERVALLI = 1 << BIT_SOTTOINTERVALLI;
+
+        /** Il nome della misura. */
+        final String nome;
+        /** Il numero di durate registrate in ogni intervallo. */
+        private final AtomicLongArray conteggi = new AtomicLongArray(64 * SOTTOINTERVALLI);
+        /** Il numero di durate registrate. */
+        private final AtomicLong numero = new AtomicLong();
+        /** La somma delle durate registrate. */
+        private final AtomicLong totale = new AtomicLong();
+        /** La durata massima registrata. */
+        private final AtomicLong massimo = new AtomicLong();
+
+        private Tempo(String nome) {
+            this.nome = nome;
+            TEMPI.add(this);
+        }
+
+        /**
+         * Registra la durata di un'operazione, dall'istante di inizio a ora.
+         *
+         * @param inizio l'istante di inizio restituito da Metriche.inizio() (se e' 0 non viene registrato nulla)
+         */
+        void registra(long inizio) {
+            if (inizio == 0) return;
+            long durata = Math.max(0, System.nanoTime() - inizio);
+            conteggi.incrementAndGet(intervallo(durata));
+            numero.incrementAndGet();
+            totale.addAndGet(durata);
+            long max = massimo.get();
+            while (durata > max && !massimo.compareAndSet(max, durata)) max = massimo.get();
+        }
+
+        /** Restituisce l'indice dell'intervallo che contiene la durata specificata. */
+        private static int intervallo(long durata) {
+            if (durata < SOTTOINTERVALLI) return (int) durata;
+            int esponente = 63 - Long.numberOfLeadingZeros(durata);
+            int resto = (int) (durata >>> (esponente - BIT_SOTTOINTERVALLI)) & (SOTTOINTERVALLI - 1);
+            return (esponente - BIT_SOTTOINTERVALLI + 1) * SOTTOINTERVALLI + resto;
+        }
+
+        /** Restituisce la durata massima contenuta nell'intervallo specificato. */
+        private static long limiteSuperiore(int intervallo) {
+            if (intervallo < SOTTOINTERVALLI) return intervallo;
+            int esponente = intervallo / SOTTOINTERVALLI + BIT_SOTTOINTERVALLI - 1;
+            long ampiezza = 1L << (esponente - BIT_SOTTOINTERVALLI);
+            return ((long) (SOTTOINTERVALLI + intervallo % SOTTOINTERVALLI) << (esponente - BIT_SOTTOINTERVALLI)) + ampiezza - 1;
+        }
+
+        /**
+         * Restituisce la durata entro cui e' terminata la percentuale specificata delle operazioni
+         * (il limite superiore dell'intervallo corrispondente, senza superare il massimo registrato).
+         *
+         * @param percentuale la percentuale, tra 0 e 100
+         *
+         * @return la durata in nanosecondi (0 se non ci sono operazioni)
+         */
+        long percentile(double percentuale) {
+            long n = numero.get();
+            if (n == 0) return 0;
+            long soglia = Math.max(1, (long) Math.ceil(n * percentuale / 100));
+            long somma = 0;
+            for (int i = 0; i < conteggi.length(); i++) {
+                somma += conteggi.get(i);
+                if (somma >= soglia) return Math.min(limiteSuperiore(i), massimo.get());
+            }
+            return massimo.get();
+        }
+
+        /** Azzera la misura. */
+        private void azzera() {
+            for (int i = 0; i < conteggi.length(); i++) conteggi.set(i, 0);
+            numero.set(0);
+            totale.set(0);
+            massimo.set(0);
+        }
+    }
+
+
+    /**
+     * Un contatore, o un valore che viene semplicemente aggiornato (ad esempio il numero di forme).
+     * Un contatore creato con sempre uguale a true viene incrementato anche se le misure sono disabilitate.
+     */
+    static final class Contatore {
+        /** Il nome del contatore. */
+        final String nome;
+        /** Indica se il contatore viene incrementato anche con le misure disabilitate. */
+        private final boolean sempre;
+        /** Il valore del contatore. */
+        private final AtomicLong valore = new AtomicLong();
+
+        private Contatore(String nome, boolean sempre) {
+            this.nome = nome;
+            this.sempre = sempre;
+            CONTATORI.add(this);
+        }
+
+        /** Incrementa il contatore, se le misure sono abilitate o se il contatore conta sempre. */
+        void incrementa() {
+            if (abilitate || sempre) valore.incrementAndGet();
+        }
+
+        /**
+         * Imposta il valore, se le misure sono abilitate.
+         *
+         * @param nuovo il nuovo valore
+         */
+        void imposta(long nuovo) {
+            if (abilitate) valore.set(nuovo);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package graphiceditormvc;
+
+/**
+ * L'interfaccia JMX (MBean standard) delle misure delle prestazioni del programma,
+ * registrata con il nome Metriche.NOME_JMX (ad esempio per JConsole o VisualVM).
+ *
+ * @see Metriche
+ *
+ * @author mauropamiro
+ */
+public interface MetricheMBean {
+    /**
+     * Indica se le misure sono abilitate.
+     *
+     * @return true se le misure sono abilitate
+     */
+    boolean isAbilitate();
+
+    /**
+     * Abilita o disabilita le misure (i valori gia' registrati vengono conservati).
+     *
+     * @param abilitate true per abilitare le misure
+     */
+    void setAbilitate(boolean abilitate);
+
+    /**
+     * Restituisce il rapporto testuale di tutte le misure.
+     *
+     * @return il rapporto, una riga per misura
+     */
+    String getReport();
+
+    /**
+     * Restituisce i nomi delle misure dei tempi e dei contatori.
+     *
+     * @return i nomi delle misure
+     */
+    String[] getNomi();
+
+    /**
+     * Restituisce il numero di operazioni misurate o, per un contatore, il suo valore.
+     *
+     * @param nome il nome della misura
+     *
+     * @return il numero di operazioni o il valore del contatore (-1 se la misura non esiste)
+     */
+    long conteggio(String nome);
+
+    /**
+     * Restituisce il tempo, in millisecondi, entro cui e' terminata la percentuale specificata delle operazioni.
+     *
+     * @param nome il nome della misura dei tempi
+     * @param percentuale la percentuale (ad esempio 99)
+     *
+     * @return il tempo in millisecondi (-1 se la misura non esiste o non ci sono operazioni)
+     */
+    double percentile(String nome, double percentuale);
+
+    /** Azzera tutte le misure. */
+    void azzera();
+}
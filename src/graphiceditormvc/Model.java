@@ -1,25 +1,67 @@
 package graphiceditormvc;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.util.*;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable; // Per salvare il documento in un file binario
                             
 /**
  * Un documento di tipo Model che contiene una serie di forme colorate 
  * disposte all'interno di uno spazio di dimensioni definite.
+ * <p>
+ * Ad ogni modifica le viste vengono notificate passando come argomento di notifyObservers
+ * un oggetto EventoModifica che descrive la modifica (tipo, indice e forma coinvolta,
+ * aree del documento da ridisegnare).
+ * <p>
+ * Le forme sono memorizzate in un oggetto di tipo SequenzaForme: per default in array paralleli
+ * di tipi primitivi (SequenzaFormeCompatta), senza un oggetto per ogni forma, per cui anche
+ * la copia del documento (ad esempio l'istantanea da salvare o esportare in background)
+ * e' solo una copia di array.
+ * <p>
+ * Le operazioni su piu' forme (spostaForme, eliminaForme, inserisciForme, riordina e ripristinaOrdine
+ * con un array di indici) modificano la sequenza con un solo passaggio e notificano le viste
+ * con un unico evento di tipo MULTIPLA.
+ * <p>
+ * Piu' modifiche qualsiasi possono essere raccolte in una transazione (iniziaModifiche, 
+ * confermaModifiche, annullaModifiche o eseguiModifiche): durante la transazione le viste
+ * non vengono notificate e alla conferma ricevono un unico evento; le forme aggiunte in fondo
+ * (ad esempio generando o importando molte forme) vengono solo contate, senza creare un evento per ciascuna.
  * 
  * @see TipoForma
  * @see Forma
+ * @see EventoModifica
+ * @see SequenzaForme
  * 
  * @author mauropamiro
  */
 public class Model extends Observable implements Serializable{
+    /** Versione della classe serializzata (mantiene leggibili i file salvati in precedenza). */
+    private static final long serialVersionUID = 4858956357527913347L;
+    /** 
+     * Campi scritti nei file: le forme vengono salvate come ArrayList, 
+     * qualunque sia la memorizzazione usata, in modo che i file restino compatibili. 
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("height", int.class),
+        new ObjectStreamField("width", int.class),
+        new ObjectStreamField("forme", ArrayList.class)
+    };
+    /** Lunghezza tipica della descrizione di una forma (usata per dimensionare la stringa di toString). */
+    private static final int LUNGHEZZA_RIGA = 72;
     /** Altezza del documento in pixel. */
     private int height;
     /** Larghezza del documento in pixel. */
     private int width;
-    /** L'array in cui vengono memorizzate le forme via via aggiunte al documento. */
-    private ArrayList<Forma> forme; 
+    /** La sequenza in cui vengono memorizzate le forme via via aggiunte al documento. */
+    private transient SequenzaForme forme; 
+    /** Indice spaziale delle forme per la ricerca per posizione (null se deve essere ricostruito). */
+    private transient IndiceSpaziale indice;
+    /** La transazione in corso (null se le modifiche vengono notificate subito). */
+    private transient Transazione transazione;
 
 
     /***********************************************************************************/
@@ -33,11 +75,23 @@ public class Model extends Observable implements Serializable{
      * @param height l'altezza del documento in pixel
      */
     public Model(int width, int height){
+        // Creo il documento con la sequenza vuota predefinita (array di tipi primitivi)
+        this(width, height, new SequenzaFormeCompatta());
+    }
+    
+    /**
+     * Crea un nuovo documento di tipo Model che memorizza le forme nella sequenza specificata.
+     * 
+     * @param width la larghezza del documento in pixel
+     * @param height l'altezza del documento in pixel
+     * @param forme la sequenza in cui memorizzare le forme 
+     *              (ad esempio una SequenzaFormeCompatta dimensionata per il numero di forme da leggere)
+     */
+    Model(int width, int height, SequenzaForme forme){
         // Imposto le dimensioni del documento
         this.height=height;
         this.width=width;
-        // Creo l'ArrayList vuoto delle forme
-        forme=new ArrayList<Forma>();
+        this.forme=forme;
     }
         
     /**
@@ -49,24 +103,16 @@ public class Model extends Observable implements Serializable{
     }
     
     /**
-     * Crea un nuovo documento di tipo Model a partire dal documento ricevuto come parametro
+     * Crea un nuovo documento di tipo Model a partire dal documento ricevuto come parametro.
+     * La copia usa lo stesso tipo di memorizzazione delle forme del documento da copiare
+     * (vedi SequenzaForme.copia).
      * 
      * @param copy il documento di cui fare la copia 
      */
     public Model(Model copy){
         // Imposto la dimensione del documento come quella del documento da copiare
-        this.height=copy.height;
-        this.width=copy.width;
-        // Creo l'array delle forme e vi copio una alla volta le forme del documento da copiare
-        forme=new ArrayList<Forma>();
-        for(int i=0;i<copy.forme.size();i++){
-            // Ottengo una forma dal documento da copiare
-            Forma c=copy.forme.get(i);
-            // Creo una copia della forma
-            Forma f=new Forma(c.getTipo(),c.getX(),c.getY(),c.getWidth(),c.getHeight(),c.getColore());
-            // Aggiungo la copia della forma all'array delle forme
-            this.forme.add(f);
-        }
+        // e copio la sequenza delle forme
+        this(copy.width, copy.height, copy.forme.copia());
     }
 
     
@@ -92,7 +138,7 @@ public class Model extends Observable implements Serializable{
     
     /**
      * Restituisce il numero di forme contenute nel documento, 
-     * cioe' la dimensione dell'ArrayList contenente le forme.
+     * cioe' la dimensione della sequenza contenente le forme.
      * 
      * @return il numero di forme contenute nel documento
      */
@@ -101,12 +147,13 @@ public class Model extends Observable implements Serializable{
     }    
     
     /**
-     * Restituisce un riferimento alla forma il cui indice viene passato come parametro.
-     * Le forme sono contenute in un oggetto di tipo ArrayList.
+     * Restituisce la forma il cui indice viene passato come parametro.
+     * Con la memorizzazione predefinita la forma viene creata a partire dagli array
+     * del documento: modificarla non ha effetto sul documento (per spostarla si usa spostaForma).
      * 
      * @param index l'indice della forma da restituire
      * 
-     * @return un riferimento alla forma di indice index o null se non esiste
+     * @return la forma di indice index o null se non esiste
      */
     public Forma getForma(int index){
         try{
@@ -126,13 +173,102 @@ public class Model extends Observable implements Serializable{
      */
     @Override
     public String toString(){
-        String descrizione="";
+        // Preparo un'unica stringa di dimensione sufficiente per tutte le righe
+        StringBuilder descrizione=new StringBuilder((int)Math.min((long)forme.size()*LUNGHEZZA_RIGA, Integer.MAX_VALUE-8));
+        descrivi(descrizione, 0, forme.size());
+        return descrizione.toString();
+    }     
+    
+    /**
+     * Aggiunge alla stringa le descrizioni delle forme con indice compreso tra da (incluso) 
+     * e a (escluso), una per riga, nello stesso formato di toString.
+     * 
+     * @param descrizione la stringa a cui aggiungere le descrizioni
+     * @param da l'indice della prima forma da descrivere
+     * @param a l'indice successivo all'ultima forma da descrivere
+     */
+    void descrivi(StringBuilder descrizione, int da, int a){
         // Aggiungo alla stringa le descrizioni delle forme contenute nel documento 
-        for(int i=0;i<forme.size();i++){
-            descrizione+=i+": "+forme.get(i).toString()+"\n";
+        for(int i=da;i<a;i++){
+            descrizione.append(i).append(": ").append(forme.get(i)).append('\n');
         }
-        return descrizione;
-    }     
+    }
+    
+
+    /**
+     * Restituisce l'indice della forma in primo piano che contiene il punto (x,y).
+     * Tra le forme che contengono il punto viene scelta quella disegnata per ultima,
+     * cioe' quella con l'indice piu' alto. Vengono controllate solo le forme
+     * che l'indice spaziale associa alla zona del punto.
+     * 
+     * @param x la coordinata x del punto da controllare
+     * @param y la coordinata y del punto da controllare
+     * 
+     * @return l'indice della forma in primo piano nel punto (x,y) o -1 se il punto non e' contenuto in nessuna forma
+     * 
+     * @see IndiceSpaziale
+     */
+    public int cercaForma(int x, int y){
+        IndiceSpaziale ind=getIndice();
+        int cella=ind.cella(x, y);
+        // Parto dall'ultima forma disegnata tra quelle vicine al punto
+        for(int k=ind.nCandidati(cella)-1;k>=0;k--){
+            int i=ind.candidato(cella, k);
+            // Controllo il punto sui campi della forma, senza ottenere la forma
+            if(Forma.contiene(forme.getTipo(i), forme.getX(i), forme.getY(i), forme.getWidth(i), forme.getHeight(i), x, y)) return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * Restituisce gli indici, in ordine di disegno, delle forme il cui rettangolo 
+     * interseca l'area specificata (bordi compresi).
+     * Se l'area e' piccola rispetto al documento uso l'indice spaziale, 
+     * altrimenti controllo tutte le forme.
+     * 
+     * @param area l'area del documento da controllare
+     * 
+     * @return gli indici delle forme che intersecano l'area, in ordine crescente
+     */
+    public int[] cercaForme(Rectangle area){
+        int x2=area.x+area.width, y2=area.y+area.height;
+        int[] candidati;
+        int n;
+        // Uso l'indice solo se l'area copre al massimo un quarto del documento
+        if((long)area.width*area.height*4 <= (long)width*height){
+            candidati=getIndice().cerca(area.x, area.y, area.width, area.height);
+            n=candidati.length;
+        }
+        else{
+            candidati=null;
+            n=forme.size();
+        }
+        int[] trovati=new int[n];
+        int m=0;
+        for(int k=0;k<n;k++){
+            int i=candidati!=null ? candidati[k] : k;
+            int fx=forme.getX(i), fy=forme.getY(i);
+            if(fx>x2 || fy>y2 || fx+forme.getWidth(i)<area.x || fy+forme.getHeight(i)<area.y) continue;
+            trovati[m++]=i;
+        }
+        return m==n ? trovati : Arrays.copyOf(trovati, m);
+    }
+    
+    /**
+     * Restituisce l'indice spaziale delle forme, ricostruendolo se necessario.
+     * 
+     * @return l'indice spaziale aggiornato
+     */
+    private IndiceSpaziale getIndice(){
+        if(indice==null){
+            indice=new IndiceSpaziale(width, height);
+            // Uso solo il rettangolo che contiene ogni forma, senza ottenere le forme
+            for(int i=0;i<forme.size();i++){
+                indice.inserisci(i, forme.getX(i), forme.getY(i), forme.getWidth(i), forme.getHeight(i));
+            }
+        }
+        return indice;
+    }
     
 
     /***********************************************************************************/
@@ -146,9 +282,34 @@ public class Model extends Observable implements Serializable{
      */
     public void add(Forma f){
         forme.add(f);
+        if(indice!=null) indice.inserisci(forme.size()-1, f);
+        // In una transazione l'aggiunta in fondo viene solo registrata
+        if(transazione!=null) transazione.aggiunta(forme.size()-1, f);
         // Notifico le viste della modifica
-        setChanged();
-        notifyObservers();
+        else notifica(new EventoModifica(EventoModifica.Tipo.INSERIMENTO, forme.size()-1, forme.size()-1, f, f.getBounds()));
+    }
+
+    /**
+     * Aggiunge in fondo al documento le forme dell'elenco, nell'ordine dell'elenco,
+     * notificando le viste con un unico evento (INSERIMENTO dall'indice della prima forma
+     * a quello dell'ultima, con l'area che contiene tutte le forme inserite).
+     * 
+     * @param nuove le forme da aggiungere
+     */
+    public void addAll(List<Forma> nuove){
+        if(nuove.isEmpty()) return;
+        int primo=forme.size();
+        Rectangle area=null;
+        for(Forma f : nuove){
+            forme.add(f);
+            if(indice!=null) indice.inserisci(forme.size()-1, f);
+            if(transazione!=null) transazione.aggiunta(forme.size()-1, f);
+            else if(area==null) area=f.getBounds();
+            else area.add(f.getBounds());
+        }
+        if(transazione!=null) return;
+        // Notifico le viste della modifica con un solo evento
+        notifica(new EventoModifica(EventoModifica.Tipo.INSERIMENTO, primo, forme.size()-1, nuove.get(nuove.size()-1), area));
     }
 
     /**
@@ -160,25 +321,31 @@ public class Model extends Observable implements Serializable{
      * @param f la forma da aggiungere
      */
     public void add(int index, Forma f){
+        registraAggiunte();
         forme.add(index,f);
+        // Gli indici delle forme successive cambiano: l'indice spaziale verra' ricostruito
+        if(index!=forme.size()-1) indice=null;
+        else if(indice!=null) indice.inserisci(index, f);
         // Notifico le viste della modifica
-        setChanged();
-        notifyObservers();
+        notifica(new EventoModifica(EventoModifica.Tipo.INSERIMENTO, index, index, f, f.getBounds()));
     }
         
     
     /**
      * Elimina la forma il cui indice viene passato come parametro.
-     * Le forme sono contenute in un oggetto di tipo ArrayList.
      * 
      * @param index l'indice della forma da eliminare
      */
     public void elimina(int index){
+        registraAggiunte();
         try{
-            forme.remove(index);
+            Forma f=forme.remove(index);
+            // Se non ho eliminato l'ultima forma gli indici delle successive cambiano:
+            // l'indice spaziale verra' ricostruito
+            if(index!=forme.size()) indice=null;
+            else if(indice!=null) indice.rimuovi(index, f);
             // Notifico le viste della modifica
-            setChanged();
-            notifyObservers();
+            notifica(new EventoModifica(EventoModifica.Tipo.ELIMINAZIONE, index, index, f, f.getBounds()));
         }catch(IndexOutOfBoundsException e){}        
     }
 
@@ -189,9 +356,392 @@ public class Model extends Observable implements Serializable{
      * @param posizione la posizione in cui spostare la forma
      */
     public void spostaForma(int index, Point posizione) {
-        getForma(index).sposta(posizione.x, posizione.y); 
+        registraAggiunte();
+        Forma f=getForma(index);
+        Rectangle vecchia=f.getBounds();
+        if(indice!=null) indice.rimuovi(index, f);
+        f=forme.sposta(index, posizione.x, posizione.y); 
+        if(indice!=null) indice.inserisci(index, f);
+        // Notifico le viste della modifica, indicando la vecchia e la nuova posizione della forma
+        notifica(new EventoModifica(EventoModifica.Tipo.SPOSTAMENTO, index, index, f, vecchia, f.getBounds()));
+    }    
+
+    /**
+     * Sposta la forma il cui indice viene passato come parametro in un'altra posizione
+     * dell'array delle forme, facendo scorrere le forme intermedie.
+     * La posizione nell'array determina l'ordine di disegno: la forma di indice 0 
+     * e' sullo sfondo, l'ultima e' in primo piano.
+     * 
+     * @param index l'indice della forma da spostare
+     * @param nuovoIndice la nuova posizione della forma nell'array delle forme
+     */
+    public void riordina(int index, int nuovoIndice) {
+        // Controllo gli indici prima di modificare la sequenza
+        if(index<0 || index>=forme.size() || nuovoIndice<0 || nuovoIndice>=forme.size()) return;
+        registraAggiunte();
+        Forma f=forme.remove(index);
+        forme.add(nuovoIndice, f);
+        // Gli indici delle forme intermedie cambiano: l'indice spaziale verra' ricostruito
+        if(index!=nuovoIndice) indice=null;
         // Notifico le viste della modifica
+        notifica(new EventoModifica(EventoModifica.Tipo.RIORDINO, index, nuovoIndice, f, f.getBounds()));
+    }
+    
+
+    /***********************************************************************************/
+    /************************** Operazioni su piu' forme *******************************/
+    /***********************************************************************************/    
+    
+    /**
+     * Sposta di (dx,dy) pixel le forme di indici specificati, notificando le viste con un unico evento.
+     * 
+     * @param indici gli indici delle forme da spostare, in ordine crescente e senza ripetizioni
+     * @param dx lo spostamento orizzontale
+     * @param dy lo spostamento verticale
+     */
+    public void spostaForme(int[] indici, int dx, int dy){
+        controllaIndici(indici, forme.size());
+        if(indici.length==0 || (dx==0 && dy==0)) return;
+        registraAggiunte();
+        // Se sposto molte forme conviene ricostruire l'indice spaziale alla prossima ricerca
+        if(indici.length>forme.size()/4) indice=null;
+        List<EventoModifica> modifiche=new ArrayList<EventoModifica>(indici.length);
+        for(int i : indici){
+            Forma f=forme.get(i);
+            Rectangle vecchia=f.getBounds();
+            if(indice!=null) indice.rimuovi(i, f);
+            f=forme.sposta(i, f.getX()+dx, f.getY()+dy);
+            if(indice!=null) indice.inserisci(i, f);
+            modifiche.add(new EventoModifica(EventoModifica.Tipo.SPOSTAMENTO, i, i, f, vecchia, f.getBounds()));
+        }
+        notifica(modifiche);
+    }
+    
+    /**
+     * Elimina le forme di indici specificati, notificando le viste con un unico evento
+     * (le eliminazioni elementari partono dall'indice piu' alto).
+     * 
+     * @param indici gli indici delle forme da eliminare, in ordine crescente e senza ripetizioni
+     * 
+     * @return le forme eliminate, nell'ordine degli indici (per ripristinarle con inserisciForme)
+     */
+    public Forma[] eliminaForme(int[] indici){
+        controllaIndici(indici, forme.size());
+        registraAggiunte();
+        Forma[] eliminate=forme.remove(indici);
+        if(indici.length>0) indice=null;
+        List<EventoModifica> modifiche=new ArrayList<EventoModifica>(indici.length);
+        for(int k=indici.length-1;k>=0;k--){
+            modifiche.add(new EventoModifica(EventoModifica.Tipo.ELIMINAZIONE, indici[k], indici[k], eliminate[k], eliminate[k].getBounds()));
+        }
+        notifica(modifiche);
+        return eliminate;
+    }
+    
+    /**
+     * Inserisce le forme in modo che, al termine, occupino le posizioni specificate
+     * (l'operazione inversa di eliminaForme), notificando le viste con un unico evento.
+     * 
+     * @param indici le posizioni delle forme dopo l'inserimento, in ordine crescente e senza ripetizioni
+     * @param nuove le forme da inserire, nell'ordine delle posizioni
+     */
+    public void inserisciForme(int[] indici, Forma[] nuove){
+        if(nuove.length!=indici.length) throw new IllegalArgumentException("Il numero di forme e di indici e' diverso");
+        controllaIndici(indici, forme.size()+indici.length);
+        registraAggiunte();
+        forme.add(indici, nuove);
+        if(indici.length>0) indice=null;
+        List<EventoModifica> modifiche=new ArrayList<EventoModifica>(indici.length);
+        for(int k=0;k<indici.length;k++){
+            modifiche.add(new EventoModifica(EventoModifica.Tipo.INSERIMENTO, indici[k], indici[k], nuove[k], nuove[k].getBounds()));
+        }
+        notifica(modifiche);
+    }
+    
+    /**
+     * Porta in primo piano (in fondo all'array delle forme) o sullo sfondo (in testa all'array)
+     * le forme di indici specificati, mantenendo il loro ordine relativo,
+     * e notifica le viste con un unico evento.
+     * 
+     * @param indici gli indici delle forme da spostare, in ordine crescente e senza ripetizioni
+     * @param primoPiano true per portare le forme in primo piano, false per portarle sullo sfondo
+     */
+    public void riordina(int[] indici, boolean primoPiano){
+        controllaIndici(indici, forme.size());
+        if(indici.length==0) return;
+        registraAggiunte();
+        int n=forme.size(), k=indici.length;
+        forme.add(posizioniRiordino(n, k, primoPiano), forme.remove(indici));
+        indice=null;
+        // Modifiche elementari equivalenti: ogni forma, in ordine, va nella sua posizione finale
+        List<EventoModifica> modifiche=new ArrayList<EventoModifica>(k);
+        for(int j=0;j<k;j++){
+            int da=primoPiano ? indici[j]-j : indici[j];
+            int a=primoPiano ? n-1 : j;
+            Forma f=forme.get(primoPiano ? n-k+j : j);
+            modifiche.add(new EventoModifica(EventoModifica.Tipo.RIORDINO, da, a, f, f.getBounds()));
+        }
+        notifica(modifiche);
+    }
+    
+    /**
+     * Annulla riordina(indici, primoPiano): riporta nelle posizioni originali le forme
+     * portate in primo piano o sullo sfondo, notificando le viste con un unico evento.
+     * 
+     * @param indici le posizioni originali delle forme, in ordine crescente e senza ripetizioni
+     * @param primoPiano true se le forme erano state portate in primo piano, false se sullo sfondo
+     */
+    public void ripristinaOrdine(int[] indici, boolean primoPiano){
+        controllaIndici(indici, forme.size());
+        if(indici.length==0) return;
+        registraAggiunte();
+        int n=forme.size(), k=indici.length;
+        forme.add(indici, forme.remove(posizioniRiordino(n, k, primoPiano)));
+        indice=null;
+        // Modifiche elementari equivalenti (per lo sfondo partendo dall'ultima forma)
+        List<EventoModifica> modifiche=new ArrayList<EventoModifica>(k);
+        for(int m=0;m<k;m++){
+            int j=primoPiano ? m : k-1-m;
+            Forma f=forme.get(indici[j]);
+            modifiche.add(new EventoModifica(EventoModifica.Tipo.RIORDINO, primoPiano ? n-k+j : j, indici[j], f, f.getBounds()));
+        }
+        notifica(modifiche);
+    }
+    
+    /** Restituisce le k posizioni occupate dalle forme portate in primo piano (le ultime) o sullo sfondo (le prime). */
+    private static int[] posizioniRiordino(int n, int k, boolean primoPiano){
+        int[] posizioni=new int[k];
+        for(int j=0;j<k;j++) posizioni[j]=primoPiano ? n-k+j : j;
+        return posizioni;
+    }
+    
+    /**
+     * Controlla che gli indici siano in ordine crescente, senza ripetizioni e compresi tra 0 e max (escluso).
+     * 
+     * @param indici gli indici da controllare
+     * @param max il limite superiore (escluso) degli indici
+     */
+    private static void controllaIndici(int[] indici, int max){
+        for(int k=0;k<indici.length;k++){
+            if(indici[k]<0 || indici[k]>=max) throw new IndexOutOfBoundsException("Index: "+indici[k]+", Size: "+max);
+            if(k>0 && indici[k]<=indici[k-1]) throw new IllegalArgumentException("Indici non in ordine crescente");
+        }
+    }
+    
+    /**
+     * Notifica le viste di una serie di modifiche con un unico evento
+     * (di tipo MULTIPLA se le modifiche sono piu' di una).
+     * 
+     * @param modifiche le modifiche elementari, nell'ordine in cui sono state applicate
+     */
+    private void notifica(List<EventoModifica> modifiche){
+        if(transazione!=null) transazione.modifiche.addAll(modifiche);
+        else if(modifiche.size()==1) notifica(modifiche.get(0));
+        else if(!modifiche.isEmpty()) notifica(new EventoModifica(modifiche));
+    }
+    
+    /**
+     * Notifica le viste di una modifica del documento.
+     * 
+     * @param evento la descrizione della modifica
+     */
+    private void notifica(EventoModifica evento){
+        // In una transazione la modifica viene notificata alla conferma
+        if(transazione!=null){
+            transazione.modifiche.add(evento);
+            return;
+        }
+        Metriche.NOTIFICHE.incrementa();
+        Metriche.FORME.imposta(nForme());
         setChanged();
-        notifyObservers();   
-    }    
-  }
\ No newline at end of file
+        notifyObservers(evento);
+    }
+  
+    
+    /***********************************************************************************/
+    /********************************** Transazioni ************************************/
+    /***********************************************************************************/    
+    
+    /**
+     * Inizia una transazione: le modifiche successive vengono applicate subito al documento
+     * (e sono visibili a chi lo legge) ma le viste vengono notificate solo alla conferma, con un unico evento.
+     * Le transazioni non possono essere annidate.
+     * 
+     * @throws IllegalStateException se c'e' gia' una transazione in corso
+     */
+    public void iniziaModifiche(){
+        if(transazione!=null) throw new IllegalStateException("Transazione gia' in corso");
+        transazione=new Transazione();
+    }
+    
+    /**
+     * Indica se c'e' una transazione in corso.
+     * 
+     * @return true se c'e' una transazione in corso
+     */
+    public boolean transazioneInCorso(){
+        return transazione!=null;
+    }
+    
+    /**
+     * Conferma la transazione in corso, notificando le viste con un unico evento: INSERIMENTO
+     * se sono state solo aggiunte forme in fondo al documento, MULTIPLA (con le modifiche
+     * elementari in ordine) negli altri casi. Se non ci sono state modifiche non viene notificato nulla.
+     * 
+     * @throws IllegalStateException se non c'e' una transazione in corso
+     */
+    public void confermaModifiche(){
+        if(transazione==null) throw new IllegalStateException("Nessuna transazione in corso");
+        Transazione t=transazione;
+        if(t.primaAggiunta>=0 && t.modifiche.isEmpty()){
+            // Solo forme aggiunte in fondo: un unico evento come per addAll
+            transazione=null;
+            int ultima=forme.size()-1;
+            notifica(new EventoModifica(EventoModifica.Tipo.INSERIMENTO, t.primaAggiunta, ultima, forme.get(ultima), t.area()));
+            return;
+        }
+        registraAggiunte();
+        transazione=null;
+        notifica(t.modifiche);
+    }
+    
+    /**
+     * Annulla la transazione in corso: le modifiche vengono annullate sul documento,
+     * dall'ultima alla prima, senza notificare le viste (che non le avevano ancora ricevute).
+     * 
+     * @throws IllegalStateException se non c'e' una transazione in corso
+     */
+    public void annullaModifiche(){
+        if(transazione==null) throw new IllegalStateException("Nessuna transazione in corso");
+        Transazione t=transazione;
+        transazione=null;
+        // Tolgo le forme aggiunte in fondo dopo l'ultima modifica registrata
+        if(t.primaAggiunta>=0){
+            while(forme.size()>t.primaAggiunta) forme.remove(forme.size()-1);
+        }
+        // Eseguo l'operazione inversa di ogni modifica, partendo dall'ultima
+        for(int k=t.modifiche.size()-1;k>=0;k--){
+            EventoModifica m=t.modifiche.get(k);
+            switch(m.getTipo()){
+                case INSERIMENTO:
+                    for(int i=m.getNuovoIndice();i>=m.getIndice();i--) forme.remove(i);
+                    break;
+                case ELIMINAZIONE:
+                    forme.add(m.getIndice(), m.getForma());
+                    break;
+                case SPOSTAMENTO:
+                    // La prima area e' la vecchia posizione della forma
+                    Rectangle vecchia=m.getAree()[0];
+                    forme.sposta(m.getIndice(), vecchia.x, vecchia.y);
+                    break;
+                default:
+                    forme.add(m.getIndice(), forme.remove(m.getNuovoIndice()));
+            }
+        }
+        // Gli indici delle forme possono essere cambiati: l'indice spaziale verra' ricostruito
+        indice=null;
+    }
+    
+    /**
+     * Esegue le modifiche in una transazione: se terminano normalmente la transazione viene confermata,
+     * se lanciano un'eccezione viene annullata (e l'eccezione viene rilanciata).
+     * 
+     * @param modifiche le modifiche da eseguire sul documento
+     */
+    public void eseguiModifiche(Runnable modifiche){
+        iniziaModifiche();
+        try{
+            modifiche.run();
+        }catch(RuntimeException e){
+            annullaModifiche();
+            throw e;
+        }catch(Error e){
+            annullaModifiche();
+            throw e;
+        }
+        confermaModifiche();
+    }
+    
+    /**
+     * In una transazione, registra come modifiche elementari le forme aggiunte in fondo al documento
+     * e non ancora registrate. Va chiamato prima di ogni modifica diversa da un'aggiunta in fondo,
+     * che potrebbe cambiare gli indici o le posizioni delle forme aggiunte.
+     */
+    private void registraAggiunte(){
+        if(transazione==null || transazione.primaAggiunta<0) return;
+        for(int i=transazione.primaAggiunta;i<forme.size();i++){
+            Forma f=forme.get(i);
+            transazione.modifiche.add(new EventoModifica(EventoModifica.Tipo.INSERIMENTO, i, i, f, f.getBounds()));
+        }
+        transazione.primaAggiunta=-1;
+    }
+    
+    
+    /**
+     * Le modifiche di una transazione in corso. Le forme aggiunte in fondo al documento
+     * vengono solo contate (indice della prima e rettangolo che le contiene): diventano modifiche
+     * elementari solo se la transazione contiene anche altre modifiche.
+     */
+    private static final class Transazione{
+        /** Le modifiche elementari, nell'ordine in cui sono state applicate (senza le ultime forme aggiunte in fondo). */
+        final List<EventoModifica> modifiche=new ArrayList<EventoModifica>();
+        /** L'indice della prima delle forme aggiunte in fondo e non ancora registrate (-1 se non ce ne sono). */
+        int primaAggiunta=-1;
+        /** Il rettangolo che contiene le forme aggiunte in fondo durante la transazione. */
+        private int x1=Integer.MAX_VALUE, y1=Integer.MAX_VALUE, x2=Integer.MIN_VALUE, y2=Integer.MIN_VALUE;
+        
+        /** Registra la forma appena aggiunta in fondo al documento, con indice i. */
+        void aggiunta(int i, Forma f){
+            if(primaAggiunta<0) primaAggiunta=i;
+            x1=Math.min(x1, f.getX());
+            y1=Math.min(y1, f.getY());
+            x2=Math.max(x2, f.getX()+f.getWidth());
+            y2=Math.max(y2, f.getY()+f.getHeight());
+        }
+        
+        /** Restituisce il rettangolo che contiene le forme aggiunte in fondo. */
+        Rectangle area(){
+            return new Rectangle(x1, y1, x2-x1, y2-y1);
+        }
+    }
+    
+    
+    /***********************************************************************************/
+    /********************** Salvataggio e lettura da file ******************************/
+    /***********************************************************************************/    
+    
+    /**
+     * Scrive il documento nel flusso: le forme vengono scritte come ArrayList.
+     * 
+     * @param out il flusso in cui scrivere il documento
+     * @throws IOException in caso di errore di scrittura
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException{
+        ArrayList<Forma> elenco=new ArrayList<Forma>(forme.size());
+        for(int i=0;i<forme.size();i++) elenco.add(forme.get(i));
+        ObjectOutputStream.PutField campi=out.putFields();
+        campi.put("height", height);
+        campi.put("width", width);
+        campi.put("forme", elenco);
+        out.writeFields();
+    }
+    
+    /**
+     * Legge il documento dal flusso, memorizzando le forme lette nella sequenza predefinita.
+     * 
+     * @param in il flusso da cui leggere il documento
+     * @throws IOException in caso di errore di lettura
+     * @throws ClassNotFoundException se il flusso contiene classi sconosciute
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+        ObjectInputStream.GetField campi=in.readFields();
+        height=campi.get("height", 0);
+        width=campi.get("width", 0);
+        ArrayList<Forma> elenco=(ArrayList<Forma>)campi.get("forme", null);
+        forme=new SequenzaFormeCompatta(elenco!=null ? elenco.size() : 0);
+        if(elenco!=null){
+            for(int i=0;i<elenco.size();i++) forme.add(elenco.get(i));
+        }
+    }
+}
\ No newline at end of file
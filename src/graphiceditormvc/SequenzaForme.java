@@ -0,0 +1,162 @@
+package graphiceditormvc;
+
+/**
+ * La sequenza ordinata delle forme di un documento di tipo Model.
+ * L'ordine delle forme e' l'ordine di disegno: la forma di indice 0 e' sullo sfondo,
+ * l'ultima e' in primo piano.
+ * <p>
+ * Il Model accede alle forme solo attraverso questa interfaccia, in modo da poter
+ * scegliere come memorizzarle:
+ * <ul>
+ * <li>SequenzaFormeCompatta: array paralleli di tipi primitivi (la memorizzazione predefinita),
+ * che occupano una frazione della memoria di un oggetto per forma;
+ * <li>SequenzaFormeMappata: i record di un file .drw mappato in memoria, decodificati
+ * solo quando vengono richiesti.
+ * </ul>
+ * I metodi getTipo, getX, getY, getWidth e getHeight permettono di conoscere il tipo e il rettangolo
+ * che contiene una forma senza doverla ottenere con get (che in alcune memorizzazioni crea un nuovo oggetto).
+ * Le forme restituite da get non devono essere modificate direttamente:
+ * per spostare una forma si usa il metodo sposta della sequenza.
+ *
+ * @see Model
+ *
+ * @author mauropamiro
+ */
+interface SequenzaForme {
+
+    /**
+     * Restituisce il numero di forme della sequenza.
+     *
+     * @return il numero di forme
+     */
+    int size();
+
+    /**
+     * Restituisce la forma di indice specificato.
+     *
+     * @param index l'indice della forma
+     *
+     * @return la forma di indice index
+     *
+     * @throws IndexOutOfBoundsException se l'indice non e' valido
+     */
+    Forma get(int index);
+
+    /**
+     * Restituisce il tipo della forma di indice specificato.
+     *
+     * @param index l'indice della forma
+     *
+     * @return il tipo della forma
+     */
+    TipoForma getTipo(int index);
+
+    /**
+     * Restituisce la coordinata x del vertice in alto a sinistra del rettangolo 
+     * che contiene la forma di indice specificato.
+     *
+     * @param index l'indice della forma
+     *
+     * @return la coordinata x della forma
+     */
+    int getX(int index);
+
+    /**
+     * Restituisce la coordinata y del vertice in alto a sinistra del rettangolo 
+     * che contiene la forma di indice specificato.
+     *
+     * @param index l'indice della forma
+     *
+     * @return la coordinata y della forma
+     */
+    int getY(int index);
+
+    /**
+     * Restituisce la larghezza del rettangolo che contiene la forma di indice specificato.
+     *
+     * @param index l'indice della forma
+     *
+     * @return la larghezza della forma
+     */
+    int getWidth(int index);
+
+    /**
+     * Restituisce l'altezza del rettangolo che contiene la forma di indice specificato.
+     *
+     * @param index l'indice della forma
+     *
+     * @return l'altezza della forma
+     */
+    int getHeight(int index);
+
+    /**
+     * Aggiunge una forma in fondo alla sequenza.
+     *
+     * @param f la forma da aggiungere
+     */
+    void add(Forma f);
+
+    /**
+     * Inserisce una forma nella posizione index, spostando di una posizione le forme successive.
+     *
+     * @param index la posizione in cui inserire la forma
+     * @param f la forma da inserire
+     *
+     * @throws IndexOutOfBoundsException se l'indice non e' valido
+     */
+    void add(int index, Forma f);
+
+    /**
+     * Elimina la forma di indice specificato.
+     *
+     * @param index l'indice della forma da eliminare
+     *
+     * @return la forma eliminata
+     *
+     * @throws IndexOutOfBoundsException se l'indice non e' valido
+     */
+    Forma remove(int index);
+
+    /**
+     * Elimina le forme di indici specificati, con un solo passaggio sulla sequenza.
+     *
+     * @param indici gli indici delle forme da eliminare, in ordine crescente e senza ripetizioni
+     *
+     * @return le forme eliminate, nell'ordine degli indici
+     *
+     * @throws IndexOutOfBoundsException se un indice non e' valido
+     */
+    Forma[] remove(int[] indici);
+
+    /**
+     * Inserisce le forme in modo che, al termine, occupino le posizioni specificate;
+     * le altre forme mantengono il loro ordine. E' l'operazione inversa di remove(int[]).
+     *
+     * @param indici le posizioni delle forme dopo l'inserimento, in ordine crescente e senza ripetizioni
+     * @param forme le forme da inserire, nell'ordine delle posizioni
+     *
+     * @throws IndexOutOfBoundsException se una posizione non e' valida
+     */
+    void add(int[] indici, Forma[] forme);
+
+    /**
+     * Sposta nel punto (x,y) la forma di indice specificato.
+     *
+     * @param index l'indice della forma da spostare
+     * @param x la nuova coordinata x del vertice in alto a sinistra del rettangolo che contiene la forma
+     * @param y la nuova coordinata y del vertice in alto a sinistra del rettangolo che contiene la forma
+     *
+     * @return la forma nella nuova posizione (non necessariamente lo stesso oggetto di prima)
+     *
+     * @throws IndexOutOfBoundsException se l'indice non e' valido
+     */
+    Forma sposta(int index, int x, int y);
+
+    /**
+     * Crea una copia indipendente della sequenza: le modifiche alla copia
+     * non hanno effetto sull'originale e viceversa.
+     *
+     * @return la copia della sequenza
+     */
+    SequenzaForme copia();
+}
@@ -0,0 +1,222 @@
+package graphiceditormvc;
+
+import java.util.Arrays;
+
+/**
+ * Sequenza di forme memorizzata in array paralleli di tipi primitivi
+ * (memorizzazione predefinita del Model).
+ * Per ogni forma vengono memorizzati solo il tipo (un byte), le coordinate,
+ * le dimensioni e il colore ARGB (cinque int): 21 byte per forma, senza nessun oggetto.
+ * Le forme vengono create solo quando vengono richieste con get.
+ * <p>
+ * I cicli che esaminano tutte le forme (ad esempio per cercare quelle visibili)
+ * leggono gli array in sequenza con i metodi getTipo, getX, getY, getWidth e getHeight,
+ * senza creare oggetti.
+ *
+ * @see SequenzaForme
+ *
+ * @author mauropamiro
+ */
+class SequenzaFormeCompatta implements SequenzaForme {
+    /** I tipi di forma, nell'ordine dei valori memorizzati nell'array tipi. */
+    private static final TipoForma[] TIPI = TipoForma.values();
+    /** La capacita' iniziale degli array. */
+    private static final int CAPACITA_INIZIALE = 16;
+
+    /** Il numero di forme della sequenza. */
+    private int n;
+    /** Il tipo di ogni forma (ordinale di TipoForma). */
+    private byte[] tipi;
+    /** La coordinata x di ogni forma. */
+    private int[] x;
+    /** La coordinata y di ogni forma. */
+    private int[] y;
+    /** La larghezza di ogni forma. */
+    private int[] width;
+    /** L'altezza di ogni forma. */
+    private int[] height;
+    /** Il colore ARGB di ogni forma. */
+    private int[] argb;
+
+
+    /** Crea una sequenza vuota. */
+    SequenzaFormeCompatta() {
+        this(CAPACITA_INIZIALE);
+    }
+
+    /**
+     * Crea una sequenza vuota in grado di contenere il numero di forme specificato
+     * senza dover ingrandire gli array.
+     *
+     * @param capacita il numero di forme previsto
+     */
+    SequenzaFormeCompatta(int capacita) {
+        capacita = Math.max(capacita, 1);
+        tipi = new byte[capacita];
+        x = new int[capacita];
+        y = new int[capacita];
+        width = new int[capacita];
+        height = new int[capacita];
+        argb = new int[capacita];
+    }
+
+    /** Controlla che l'indice sia compreso tra 0 e max (escluso). */
+    private static void controllaIndice(int index, int max) {
+        if (index < 0 || index >= max) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + max);
+        }
+    }
+
+    /** Ingrandisce gli array, se necessario, per contenere almeno minimo forme. */
+    private void garantisciCapacita(int minimo) {
+        if (minimo <= x.length) return;
+        int capacita = Math.max(minimo, x.length + (x.length >> 1));
+        tipi = Arrays.copyOf(tipi, capacita);
+        x = Arrays.copyOf(x, capacita);
+        y = Arrays.copyOf(y, capacita);
+        width = Arrays.copyOf(width, capacita);
+        height = Arrays.copyOf(height, capacita);
+        argb = Arrays.copyOf(argb, capacita);
+    }
+
+    /** Scrive i campi della forma nella posizione index degli array. */
+    private void scrivi(int index, Forma f) {
+        tipi[index] = (byte) f.getTipo().ordinal();
+        x[index] = f.getX();
+        y[index] = f.getY();
+        width[index] = f.getWidth();
+        height[index] = f.getHeight();
+        argb[index] = f.getColore().getRGB();
+    }
+
+    /** Sposta di una posizione (verso destra se delta e' 1, verso sinistra se e' -1) le forme da index in poi. */
+    private void scorri(int index, int delta) {
+        copia(index, index + delta, n - index);
+    }
+
+    /** Copia quante forme dalla posizione da alla posizione a (le due parti possono sovrapporsi). */
+    private void copia(int da, int a, int quante) {
+        if (quante <= 0 || da == a) return;
+        System.arraycopy(tipi, da, tipi, a, quante);
+        System.arraycopy(x, da, x, a, quante);
+        System.arraycopy(y, da, y, a, quante);
+        System.arraycopy(width, da, width, a, quante);
+        System.arraycopy(height, da, height, a, quante);
+        System.arraycopy(argb, da, argb, a, quante);
+    }
+
+    @Override
+    public int size() {
+        return n;
+    }
+
+    @Override
+    public Forma get(int index) {
+        controllaIndice(index, n);
+        return new Forma(TIPI[tipi[index]], x[index], y[index], width[index], height[index], TavolozzaColori.colore(argb[index]));
+    }
+
+    @Override
+    public TipoForma getTipo(int index) {
+        controllaIndice(index, n);
+        return TIPI[tipi[index]];
+    }
+
+    @Override
+    public int getX(int index) {
+        controllaIndice(index, n);
+        return x[index];
+    }
+
+    @Override
+    public int getY(int index) {
+        controllaIndice(index, n);
+        return y[index];
+    }
+
+    @Override
+    public int getWidth(int index) {
+        controllaIndice(index, n);
+        return width[index];
+    }
+
+    @Override
+    public int getHeight(int index) {
+        controllaIndice(index, n);
+        return height[index];
+    }
+
+    @Override
+    public void add(Forma f) {
+        garantisciCapacita(n + 1);
+        scrivi(n, f);
+        n++;
+    }
+
+    @Override
+    public void add(int index, Forma f) {
+        controllaIndice(index, n + 1);
+        garantisciCapacita(n + 1);
+        scorri(index, 1);
+        scrivi(index, f);
+        n++;
+    }
+
+    @Override
+    public Forma remove(int index) {
+        Forma f = get(index);
+        scorri(index + 1, -1);
+        n--;
+        return f;
+    }
+
+    @Override
+    public Forma[] remove(int[] indici) {
+        Forma[] eliminate = new Forma[indici.length];
+        for (int k = 0; k < indici.length; k++) eliminate[k] = get(indici[k]);
+        // Sposto verso sinistra ogni tratto di forme compreso tra due forme eliminate
+        for (int k = 0; k < indici.length; k++) {
+            int da = indici[k] + 1;
+            int fine = k + 1 < indici.length ? indici[k + 1] : n;
+            copia(da, da - k - 1, fine - da);
+        }
+        n -= indici.length;
+        return eliminate;
+    }
+
+    @Override
+    public void add(int[] indici, Forma[] forme) {
+        int totale = n + indici.length;
+        if (indici.length > 0) controllaIndice(indici[indici.length - 1], totale);
+        garantisciCapacita(totale);
+        // Parto dall'ultima forma inserita: sposto verso destra le forme che la seguono e la scrivo
+        for (int k = indici.length - 1; k >= 0; k--) {
+            controllaIndice(indici[k], totale);
+            int fine = k + 1 < indici.length ? indici[k + 1] : totale;
+            copia(indici[k] - k, indici[k] + 1, fine - indici[k] - 1);
+            scrivi(indici[k], forme[k]);
+        }
+        n = totale;
+    }
+
+    @Override
+    public Forma sposta(int index, int x, int y) {
+        controllaIndice(index, n);
+        this.x[index] = x;
+        this.y[index] = y;
+        return get(index);
+    }
+
+    @Override
+    public SequenzaForme copia() {
+        SequenzaFormeCompatta copia = new SequenzaFormeCompatta(0);
+        copia.n = n;
+        copia.tipi = Arrays.copyOf(tipi, Math.max(n, 1));
+        copia.x = Arrays.copyOf(x, Math.max(n, 1));
+        copia.y = Arrays.copyOf(y, Math.max(n, 1));
+        copia.width = Arrays.copyOf(width, Math.max(n, 1));
+        copia.height = Arrays.copyOf(height, Math.max(n, 1));
+        copia.argb = Arrays.copyOf(argb, Math.max(n, 1));
+        return copia;
+    }
+}
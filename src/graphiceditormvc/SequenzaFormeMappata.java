@@ -0,0 +1,135 @@
+package graphiceditormvc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sequenza di forme letta da un file .drw mappato in memoria (vedi FormatoDrw.mappa).
+ * I record del file non vengono letti all'apertura: una forma viene decodificata
+ * solo quando viene richiesta con get, mentre i metodi getX, getY, getWidth e getHeight
+ * (e getTipo) leggono direttamente i campi del record, senza creare oggetti.
+ * Il sistema operativo carica in memoria solo le parti del file effettivamente lette.
+ * <p>
+ * Il file mappato e' in sola lettura: alla prima modifica le forme vengono copiate
+ * in una SequenzaFormeCompatta, che viene usata da quel momento in poi.
+ *
+ * @see FormatoDrw
+ * @see SequenzaForme
+ *
+ * @author mauropamiro
+ */
+class SequenzaFormeMappata implements SequenzaForme {
+    /** I record delle forme (il primo record inizia alla posizione 0). */
+    private final ByteBuffer record;
+    /** Il numero di forme del file. */
+    private final int n;
+    /** La sequenza modificabile usata dopo la prima modifica (null fino ad allora). */
+    private SequenzaForme modificata;
+
+
+    /**
+     * Crea una sequenza che legge le forme dai record ricevuti come parametro.
+     *
+     * @param record i record delle forme, a partire dalla posizione 0
+     * @param n il numero di forme
+     */
+    SequenzaFormeMappata(ByteBuffer record, int n) {
+        this.record = record;
+        this.n = n;
+    }
+
+    /** Restituisce la posizione nel buffer del record di indice specificato, controllando l'indice. */
+    private int posizione(int index) {
+        if (index < 0 || index >= n) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + n);
+        }
+        return index * FormatoDrw.DIMENSIONE_RECORD;
+    }
+
+    /** Restituisce la sequenza modificabile, copiandovi le forme alla prima modifica. */
+    private SequenzaForme modificabile() {
+        if (modificata == null) {
+            SequenzaFormeCompatta copia = new SequenzaFormeCompatta(n);
+            for (int i = 0; i < n; i++) copia.add(get(i));
+            modificata = copia;
+        }
+        return modificata;
+    }
+
+    @Override
+    public int size() {
+        return modificata != null ? modificata.size() : n;
+    }
+
+    @Override
+    public Forma get(int index) {
+        if (modificata != null) return modificata.get(index);
+        return FormatoDrw.leggiRecord(record, posizione(index));
+    }
+
+    @Override
+    public TipoForma getTipo(int index) {
+        if (modificata != null) return modificata.getTipo(index);
+        return FormatoDrw.leggiTipo(record, posizione(index));
+    }
+
+    @Override
+    public int getX(int index) {
+        if (modificata != null) return modificata.getX(index);
+        return record.getInt(posizione(index) + 1);
+    }
+
+    @Override
+    public int getY(int index) {
+        if (modificata != null) return modificata.getY(index);
+        return record.getInt(posizione(index) + 5);
+    }
+
+    @Override
+    public int getWidth(int index) {
+        if (modificata != null) return modificata.getWidth(index);
+        return record.getInt(posizione(index) + 9);
+    }
+
+    @Override
+    public int getHeight(int index) {
+        if (modificata != null) return modificata.getHeight(index);
+        return record.getInt(posizione(index) + 13);
+    }
+
+    @Override
+    public void add(Forma f) {
+        modificabile().add(f);
+    }
+
+    @Override
+    public void add(int index, Forma f) {
+        modificabile().add(index, f);
+    }
+
+    @Override
+    public Forma remove(int index) {
+        return modificabile().remove(index);
+    }
+
+    @Override
+    public Forma[] remove(int[] indici) {
+        return modificabile().remove(indici);
+    }
+
+    @Override
+    public void add(int[] indici, Forma[] forme) {
+        modificabile().add(indici, forme);
+    }
+
+    @Override
+    public Forma sposta(int index, int x, int y) {
+        return modificabile().sposta(index, x, y);
+    }
+
+    @Override
+    public SequenzaForme copia() {
+        // Finche' non ci sono modifiche la copia condivide il file mappato
+        if (modificata != null) return modificata.copia();
+        return new SequenzaFormeMappata(record, n);
+    }
+}
@@ -0,0 +1,77 @@
+package graphiceditormvc;
+
+import java.awt.Color;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tavolozza condivisa dei colori usati dalle forme.
+ * Le forme con lo stesso colore (stesso valore ARGB) condividono un unico oggetto Color,
+ * invece di avere ciascuna la propria copia: in un documento con molte forme e pochi colori
+ * questo evita un oggetto Color per ogni forma.
+ * <p>
+ * La tavolozza e' usata dal costruttore di Forma, dalla lettura delle forme dai file
+ * e dalle sequenze che creano le forme a partire dai valori ARGB.
+ * Per non crescere senza limiti (ad esempio con documenti che usano moltissimi colori diversi)
+ * la tavolozza memorizza al massimo MAX_COLORI colori: gli altri vengono usati senza condividerli.
+ * <p>
+ * I metodi possono essere chiamati da piu' thread contemporaneamente.
+ *
+ * @see Forma
+ *
+ * @author mauropamiro
+ */
+final class TavolozzaColori {
+    /** Il numero massimo di colori memorizzati nella tavolozza. */
+    static final int MAX_COLORI = 4096;
+    /** I colori della tavolozza, per valore ARGB. */
+    private static final ConcurrentHashMap<Integer, Color> COLORI = new ConcurrentHashMap<Integer, Color>();
+
+    private TavolozzaColori() {
+    }
+
+    /**
+     * Restituisce il colore della tavolozza con il valore ARGB specificato,
+     * aggiungendolo alla tavolozza se non e' ancora presente.
+     *
+     * @param argb il valore ARGB del colore
+     *
+     * @return il colore condiviso
+     */
+    static Color colore(int argb) {
+        Color c = COLORI.get(argb);
+        if (c != null) return c;
+        return aggiungi(argb, new Color(argb, true));
+    }
+
+    /**
+     * Restituisce il colore della tavolozza uguale al colore ricevuto come parametro,
+     * aggiungendolo alla tavolozza se non e' ancora presente.
+     *
+     * @param colore il colore da cercare (puo' essere null)
+     *
+     * @return il colore condiviso (null se colore e' null)
+     */
+    static Color interna(Color colore) {
+        if (colore == null) return null;
+        Color c = COLORI.get(colore.getRGB());
+        if (c != null) return c;
+        // Memorizzo solo oggetti di classe Color (le sottoclassi potrebbero essere modificabili)
+        return aggiungi(colore.getRGB(), colore.getClass() == Color.class ? colore : new Color(colore.getRGB(), true));
+    }
+
+    /** Aggiunge il colore alla tavolozza, se c'e' posto, e restituisce il colore da usare. */
+    private static Color aggiungi(int argb, Color colore) {
+        if (COLORI.size() >= MAX_COLORI) return colore;
+        Color precedente = COLORI.putIfAbsent(argb, colore);
+        return precedente != null ? precedente : colore;
+    }
+
+    /**
+     * Restituisce il numero di colori memorizzati nella tavolozza.
+     *
+     * @return il numero di colori
+     */
+    static int nColori() {
+        return COLORI.size();
+    }
+}
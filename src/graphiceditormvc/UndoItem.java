@@ -1,26 +1,193 @@
 package graphiceditormvc;
 
+import java.awt.Point;
+
 /**
  * Rappresenta un elemento della lista degli annullamenti (menu Modifica->Annulla).
- * Ogni elemento della lista di annullamenti e' composto dal documento così come era 
- * prima della modifica da annullare e dalla descrizione dell'operazione da annullare.
- * 
+ * Ogni elemento della lista di annullamenti descrive una singola operazione eseguita
+ * sul documento (inserimento, eliminazione, spostamento o riordino di una forma)
+ * con i dati necessari per annullarla o ripristinarla, senza dover copiare l'intero documento.
+ * Un'operazione su piu' forme selezionate (indici diverso da null) viene annullata o ripristinata
+ * con un'unica operazione del documento (vedi Model.spostaForme, eliminaForme, inserisciForme e riordina).
+ *
+ * @see EventoModifica.Tipo
+ *
  * @author mauropamiro
  */
 public class UndoItem{
     /** una stringa che rappresenta l'operazione annullata o da ripristinare. */
     String descrizione;
-    /** una copia del documento prima dell'operazione da annullare o dopo l'operazione da ripristinare. */
-    Model documento;
+    /** il tipo di operazione. */
+    EventoModifica.Tipo tipo;
+    /** l'indice della forma su cui e' stata eseguita l'operazione (per un riordino, l'indice prima dell'operazione). */
+    int indice;
+    /** per un riordino, l'indice della forma dopo l'operazione. */
+    int nuovoIndice;
+    /** la forma inserita o eliminata (null per gli altri tipi di operazione). */
+    Forma forma;
+    /** per uno spostamento, la posizione della forma prima dell'operazione. */
+    Point vecchiaPosizione;
+    /** per uno spostamento, la posizione della forma dopo l'operazione. */
+    Point nuovaPosizione;
+    /** per un'operazione su piu' forme, gli indici delle forme in ordine crescente (null per le altre operazioni). */
+    int[] indici;
+    /** per l'inserimento o l'eliminazione di piu' forme, le forme nell'ordine degli indici. */
+    Forma[] forme;
+    /** per lo spostamento di piu' forme, lo spostamento orizzontale. */
+    int dx;
+    /** per lo spostamento di piu' forme, lo spostamento verticale. */
+    int dy;
+    /** per il riordino di piu' forme, true se sono state portate in primo piano, false se sullo sfondo. */
+    boolean primoPiano;
 
     /**
-     * Cre un elemento della lista degli annullamenti.
-     * 
+     * Crea un elemento della lista degli annullamenti per un inserimento, un'eliminazione o un riordino.
+     *
      * @param descrizione   descrizione dell'operazione da annullare
-     * @param documento     il documento così come era prima della modifica da annullare
+     * @param tipo          il tipo di operazione (INSERIMENTO, ELIMINAZIONE o RIORDINO)
+     * @param indice        l'indice della forma (per un riordino, l'indice prima dell'operazione)
+     * @param nuovoIndice   per un riordino, l'indice della forma dopo l'operazione, altrimenti uguale a indice
+     * @param forma         la forma inserita o eliminata
      */
-    public UndoItem(String descrizione, Model documento) {
+    public UndoItem(String descrizione, EventoModifica.Tipo tipo, int indice, int nuovoIndice, Forma forma) {
         this.descrizione = descrizione;
-        this.documento = documento;
+        this.tipo = tipo;
+        this.indice = indice;
+        this.nuovoIndice = nuovoIndice;
+        this.forma = forma;
+    }
+
+    /**
+     * Crea un elemento della lista degli annullamenti per lo spostamento di una forma.
+     *
+     * @param descrizione       descrizione dell'operazione da annullare
+     * @param indice            l'indice della forma spostata
+     * @param vecchiaPosizione  la posizione della forma prima dello spostamento
+     * @param nuovaPosizione    la posizione della forma dopo lo spostamento
+     */
+    public UndoItem(String descrizione, int indice, Point vecchiaPosizione, Point nuovaPosizione) {
+        this(descrizione, EventoModifica.Tipo.SPOSTAMENTO, indice, indice, null);
+        this.vecchiaPosizione = vecchiaPosizione;
+        this.nuovaPosizione = nuovaPosizione;
+    }
+
+    /**
+     * Crea un elemento della lista degli annullamenti per l'inserimento o l'eliminazione di piu' forme.
+     *
+     * @param descrizione   descrizione dell'operazione da annullare
+     * @param tipo          il tipo di operazione (INSERIMENTO o ELIMINAZIONE)
+     * @param indici        gli indici delle forme in ordine crescente (per un inserimento, le posizioni dopo l'operazione)
+     * @param forme         le forme inserite o eliminate, nell'ordine degli indici
+     */
+    public UndoItem(String descrizione, EventoModifica.Tipo tipo, int[] indici, Forma[] forme) {
+        this(descrizione, tipo, indici[0], indici[indici.length - 1], null);
+        this.indici = indici;
+        this.forme = forme;
+    }
+
+    /**
+     * Crea un elemento della lista degli annullamenti per lo spostamento di piu' forme.
+     *
+     * @param descrizione   descrizione dell'operazione da annullare
+     * @param indici        gli indici delle forme spostate, in ordine crescente
+     * @param dx            lo spostamento orizzontale
+     * @param dy            lo spostamento verticale
+     */
+    public UndoItem(String descrizione, int[] indici, int dx, int dy) {
+        this(descrizione, EventoModifica.Tipo.SPOSTAMENTO, indici[0], indici[indici.length - 1], null);
+        this.indici = indici;
+        this.dx = dx;
+        this.dy = dy;
+    }
+
+    /**
+     * Crea un elemento della lista degli annullamenti per il riordino di piu' forme.
+     *
+     * @param descrizione   descrizione dell'operazione da annullare
+     * @param indici        gli indici delle forme prima del riordino, in ordine crescente
+     * @param primoPiano    true se le forme sono state portate in primo piano, false se sullo sfondo
+     */
+    public UndoItem(String descrizione, int[] indici, boolean primoPiano) {
+        this(descrizione, EventoModifica.Tipo.RIORDINO, indici[0], indici[indici.length - 1], null);
+        this.indici = indici;
+        this.primoPiano = primoPiano;
+    }
+
+    /**
+     * Annulla l'operazione sul documento, eseguendo l'operazione inversa.
+     *
+     * @param documento il documento su cui era stata eseguita l'operazione
+     */
+    public void annulla(Model documento) {
+        if (indici != null) {
+            switch (tipo) {
+                case INSERIMENTO:
+                    documento.eliminaForme(indici);
+                    break;
+                case ELIMINAZIONE:
+                    documento.inserisciForme(indici, forme);
+                    break;
+                case SPOSTAMENTO:
+                    documento.spostaForme(indici, -dx, -dy);
+                    break;
+                case RIORDINO:
+                    documento.ripristinaOrdine(indici, primoPiano);
+                    break;
+            }
+            return;
+        }
+        switch (tipo) {
+            case INSERIMENTO:
+                documento.elimina(indice);
+                break;
+            case ELIMINAZIONE:
+                documento.add(indice, forma);
+                break;
+            case SPOSTAMENTO:
+                documento.spostaForma(indice, vecchiaPosizione);
+                break;
+            case RIORDINO:
+                documento.riordina(nuovoIndice, indice);
+                break;
+        }
+    }
+
+    /**
+     * Ripristina sul documento l'operazione annullata in precedenza.
+     *
+     * @param documento il documento su cui era stata annullata l'operazione
+     */
+    public void ripristina(Model documento) {
+        if (indici != null) {
+            switch (tipo) {
+                case INSERIMENTO:
+                    documento.inserisciForme(indici, forme);
+                    break;
+                case ELIMINAZIONE:
+                    documento.eliminaForme(indici);
+                    break;
+                case SPOSTAMENTO:
+                    documento.spostaForme(indici, dx, dy);
+                    break;
+                case RIORDINO:
+                    documento.riordina(indici, primoPiano);
+                    break;
+            }
+            return;
+        }
+        switch (tipo) {
+            case INSERIMENTO:
+                documento.add(indice, forma);
+                break;
+            case ELIMINAZIONE:
+                documento.elimina(indice);
+                break;
+            case SPOSTAMENTO:
+                documento.spostaForma(indice, nuovaPosizione);
+                break;
+            case RIORDINO:
+                documento.riordina(indice, nuovoIndice);
+                break;
+        }
     }
 }
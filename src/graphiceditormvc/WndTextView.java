@@ -4,14 +4,36 @@ import java.awt.Frame;
 import java.awt.Point;
 import java.util.Observable;
 import java.util.Observer;
+import javax.swing.AbstractListModel;
 import javax.swing.JDialog;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
 
 /**
  * Una finestra di dialogo in cui viene visualizzata una rappresentazione testuale del documento
+ * (una riga per ogni forma).
+ * <p>
+ * Le righe sono mostrate in una JList il cui modello (ModelloElenco) legge le forme dal documento
+ * solo quando la lista le richiede: vengono descritte solo le righe visibili, qualunque sia 
+ * il numero di forme del documento. Tutte le righe hanno la stessa altezza, per cui la lista
+ * non deve misurarle.
+ * <p>
+ * Quando il documento notifica una modifica (EventoModifica) la lista viene informata solo
+ * delle righe coinvolte; la selezione di una riga viene comunicata agli ascoltatori registrati
+ * con addListSelectionListener (il Controller, che seleziona la forma corrispondente).
+ * 
+ * @see EventoModifica
  * 
  * @author mauropamiro
  */
 public class WndTextView extends JDialog implements Observer{
+    /** Riga usata per calcolare l'altezza e la larghezza delle righe della lista. */
+    private static final String RIGA_ESEMPIO = "000000: TRIANGOLO (0000,0000) [W:000,H:000]->java.awt.Color[r=255,g=255,b=255]";
+    
+    /** Il modello della lista delle forme. */
+    private final ModelloElenco elenco = new ModelloElenco();
+    /** Vale true mentre la lista viene aggiornata a seguito di una modifica del documento. */
+    private boolean aggiornamento;
     
     /**
      * Costruttore: crea la finestra
@@ -21,6 +43,8 @@ public class WndTextView extends JDialog implements Observer{
     public WndTextView(Frame main) {
         super(main, false);
         initComponents();
+        lstForme.setModel(elenco);
+        lstForme.setPrototypeCellValue(RIGA_ESEMPIO);
         // La finestra viene visualizzata alla destra della finestra principale
         setLocation(new Point(main.getX()+main.getWidth()*3/4,main.getY()+50));
     }
@@ -29,12 +53,141 @@ public class WndTextView extends JDialog implements Observer{
      * Aggiorna la vista testuale del documento.
      * 
      * @param o il Model che ha richiesto l'aggiornamento
-     * @param arg eventuali parametri (non utilizzati in questo caso)
+     * @param arg la descrizione della modifica (EventoModifica) o null per aggiornare tutte le righe
      */
     @Override
     public void update(Observable o, Object arg) {
-        String testo=((Model)o).toString();
-        txtArea.setText(testo);   
+        aggiornamento=true;
+        try{
+            elenco.aggiorna((Model)o, arg instanceof EventoModifica ? (EventoModifica)arg : null);
+        }
+        finally{
+            aggiornamento=false;
+        }
+    }
+    
+    /**
+     * Seleziona nella lista la riga della forma di indice specificato e la rende visibile.
+     * 
+     * @param indice l'indice della forma o -1 per annullare la selezione
+     */
+    public void selezionaRiga(int indice){
+        if(indice<0 || indice>=elenco.getSize()){
+            lstForme.clearSelection();
+        }
+        else if(lstForme.getSelectedIndex()!=indice){
+            lstForme.setSelectedIndex(indice);
+            lstForme.ensureIndexIsVisible(indice);
+        }
+    }
+    
+    /**
+     * Restituisce l'indice della forma selezionata nella lista o -1 se nessuna riga e' selezionata.
+     * 
+     * @return l'indice della forma selezionata nella lista
+     */
+    public int getRigaSelezionata(){
+        return lstForme.getSelectedIndex();
+    }
+    
+    /**
+     * Registra un ascoltatore che viene informato quando l'utente seleziona una riga della lista.
+     * Le variazioni della selezione dovute alle modifiche del documento non vengono comunicate.
+     * 
+     * @param l l'ascoltatore da registrare
+     */
+    public void addListSelectionListener(final ListSelectionListener l){
+        lstForme.addListSelectionListener(new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent e) {
+                if(!aggiornamento && !e.getValueIsAdjusting()) l.valueChanged(e);
+            }
+        });
+    }
+    
+    
+    /**
+     * Il modello della lista: una riga per ogni forma del documento, 
+     * descritta solo quando la lista la richiede.
+     */
+    private static class ModelloElenco extends AbstractListModel{
+        /** Il documento visualizzato (null se non e' ancora stato ricevuto). */
+        private Model documento;
+        /** Il numero di righe comunicato alla lista. */
+        private int righe;
+        
+        @Override
+        public int getSize() {
+            return righe;
+        }
+
+        @Override
+        public Object getElementAt(int index) {
+            return index+": "+documento.getForma(index);
+        }
+        
+        /**
+         * Aggiorna le righe coinvolte dalla modifica del documento.
+         * 
+         * @param documento il documento modificato
+         * @param evento la modifica subita dal documento o null per aggiornare tutte le righe
+         */
+        void aggiorna(Model documento, EventoModifica evento){
+            int n=documento.nForme();
+            // Numero di righe previsto prima della modifica
+            int prima=n;
+            if(evento!=null && evento.getTipo()==EventoModifica.Tipo.INSERIMENTO) prima=n-(evento.getNuovoIndice()-evento.getIndice()+1);
+            else if(evento!=null && evento.getTipo()==EventoModifica.Tipo.ELIMINAZIONE) prima=n+1;
+            else if(evento!=null && evento.getTipo()==EventoModifica.Tipo.MULTIPLA) prima=n-differenza(evento);
+            if(evento==null || documento!=this.documento || righe!=prima){
+                // Aggiorno tutte le righe
+                this.documento=documento;
+                if(righe>0) fireIntervalRemoved(this, 0, righe-1);
+                righe=n;
+                if(righe>0) fireIntervalAdded(this, 0, righe-1);
+                return;
+            }
+            int indice=evento.getIndice();
+            switch(evento.getTipo()){
+                case INSERIMENTO:
+                    righe=n;
+                    fireIntervalAdded(this, indice, evento.getNuovoIndice());
+                    // Le righe successive hanno un nuovo indice
+                    if(evento.getNuovoIndice()+1<n) fireContentsChanged(this, evento.getNuovoIndice()+1, n-1);
+                    break;
+                case ELIMINAZIONE:
+                    righe=n;
+                    fireIntervalRemoved(this, indice, indice);
+                    if(indice<n) fireContentsChanged(this, indice, n-1);
+                    break;
+                case SPOSTAMENTO:
+                    fireContentsChanged(this, indice, indice);
+                    break;
+                case MULTIPLA:
+                    // Cambiano le righe tra il primo e l'ultimo indice coinvolto o, se cambia il numero di forme, tutte quelle successive al primo
+                    if(prima==n){
+                        fireContentsChanged(this, indice, evento.getNuovoIndice());
+                    }else{
+                        righe=n;
+                        if(indice<prima) fireIntervalRemoved(this, indice, prima-1);
+                        if(indice<n) fireIntervalAdded(this, indice, n-1);
+                    }
+                    break;
+                default:
+                    // Riordino: cambiano le righe comprese tra la vecchia e la nuova posizione
+                    fireContentsChanged(this, Math.min(indice, evento.getNuovoIndice()), Math.max(indice, evento.getNuovoIndice()));
+            }
+        }
+        
+        /** Restituisce la variazione del numero di forme prodotta da un evento MULTIPLA. */
+        private int differenza(EventoModifica evento){
+            int d=0;
+            for(EventoModifica m : evento.getModifiche()){
+                if(m.getTipo()==EventoModifica.Tipo.INSERIMENTO) d+=m.getNuovoIndice()-m.getIndice()+1;
+                else if(m.getTipo()==EventoModifica.Tipo.ELIMINAZIONE) d--;
+            }
+            return d;
+        }
     }
     
     /**
@@ -46,16 +199,15 @@ public class WndTextView extends JDialog implements Observer{
     private void initComponents() {
 
         jScrollPane1 = new javax.swing.JScrollPane();
-        txtArea = new javax.swing.JTextArea();
+        lstForme = new javax.swing.JList();
 
         setTitle("Elenco Forme");
         setAlwaysOnTop(true);
         setMinimumSize(new java.awt.Dimension(300, 400));
         setResizable(false);
 
-        txtArea.setColumns(20);
-        txtArea.setRows(5);
-        jScrollPane1.setViewportView(txtArea);
+        lstForme.setSelectionMode(javax.swing.ListSelectionModel.SINGLE_SELECTION);
+        jScrollPane1.setViewportView(lstForme);
 
         getContentPane().add(jScrollPane1, java.awt.BorderLayout.CENTER);
 
@@ -64,6 +216,6 @@ public class WndTextView extends JDialog implements Observer{
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JScrollPane jScrollPane1;
-    private javax.swing.JTextArea txtArea;
+    private javax.swing.JList lstForme;
     // End of variables declaration//GEN-END:variables
 }
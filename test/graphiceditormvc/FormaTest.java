@@ -0,0 +1,109 @@
+package graphiceditormvc;
+
+import java.awt.Color;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.Ellipse2D;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Controlla che Forma.contiene dia sempre lo stesso risultato dei metodi contains
+ * delle classi AWT usate per disegnare le forme (Rectangle, Ellipse2D.Float e Polygon),
+ * su punti casuali e su casi limite: punti sul bordo, dimensioni nulle o negative,
+ * coordinate vicine ai limiti degli interi (overflow) e oltre la precisione dei float.
+ *
+ * @author mauropamiro
+ */
+public class FormaTest {
+    /** Il numero di combinazioni casuali controllate per ogni tipo di forma. */
+    private static final int CASI = 200000;
+
+    /** Valori di coordinate e dimensioni che mettono alla prova i controlli di overflow e gli arrotondamenti. */
+    private static final int[] LIMITI = {
+        0, 1, -1, 2, -2, 3, 49, 50, 51, 1 << 24, (1 << 24) + 1, -(1 << 24) - 1,
+        Integer.MAX_VALUE, Integer.MAX_VALUE - 1, Integer.MIN_VALUE, Integer.MIN_VALUE + 1,
+        Integer.MAX_VALUE / 2, Integer.MAX_VALUE / 2 + 1, Integer.MIN_VALUE / 2
+    };
+
+    @Test
+    public void quadratoComeRectangle() {
+        controlla(TipoForma.QUADRATO);
+    }
+
+    @Test
+    public void cerchioComeEllipse2D() {
+        controlla(TipoForma.CERCHIO);
+    }
+
+    @Test
+    public void triangoloComePolygon() {
+        controlla(TipoForma.TRIANGOLO);
+    }
+
+    @Test
+    public void metodoDellaFormaComeMetodoStatico() {
+        Random caso = new Random(7);
+        for (int i = 0; i < CASI; i++) {
+            TipoForma tipo = TipoForma.values()[caso.nextInt(TipoForma.values().length)];
+            int x = caso.nextInt(200) - 100, y = caso.nextInt(200) - 100;
+            int w = caso.nextInt(120) - 20, h = caso.nextInt(120) - 20;
+            int px = caso.nextInt(300) - 150, py = caso.nextInt(300) - 150;
+            Forma f = new Forma(tipo, x, y, w, h, Color.BLACK);
+            assertEquals(descrizione(tipo, x, y, w, h, px, py), Forma.contiene(tipo, x, y, w, h, px, py), f.contiene(px, py));
+        }
+    }
+
+    /** Confronta Forma.contiene con la classe AWT su punti casuali, sul bordo e sui casi limite. */
+    private static void controlla(TipoForma tipo) {
+        Random caso = new Random(tipo.ordinal());
+        // Forme piccole (anche con dimensioni nulle o negative) e punti in tutto il rettangolo che le contiene e attorno
+        for (int i = 0; i < CASI; i++) {
+            int x = caso.nextInt(200) - 100, y = caso.nextInt(200) - 100;
+            int w = caso.nextInt(120) - 20, h = caso.nextInt(120) - 20;
+            int px = x + caso.nextInt(Math.abs(w) + 11) - 5, py = y + caso.nextInt(Math.abs(h) + 11) - 5;
+            confronta(tipo, x, y, w, h, px, py);
+        }
+        // Punti sul bordo e appena fuori dal rettangolo che contiene la forma
+        for (int i = 0; i < CASI / 10; i++) {
+            int x = caso.nextInt(200) - 100, y = caso.nextInt(200) - 100;
+            int w = caso.nextInt(101), h = caso.nextInt(101);
+            int[] xs = {x - 1, x, x + 1, x + w / 2, x + w - 1, x + w, x + w + 1};
+            int[] ys = {y - 1, y, y + 1, y + h / 2, y + h - 1, y + h, y + h + 1};
+            for (int px : xs) {
+                for (int py : ys) confronta(tipo, x, y, w, h, px, py);
+            }
+        }
+        // Combinazioni di valori limite per posizione, dimensioni e punto
+        for (int i = 0; i < CASI; i++) {
+            int x = limite(caso), y = limite(caso), w = limite(caso), h = limite(caso);
+            int px = caso.nextBoolean() ? limite(caso) : x + limite(caso);
+            int py = caso.nextBoolean() ? limite(caso) : y + limite(caso);
+            confronta(tipo, x, y, w, h, px, py);
+        }
+    }
+
+    /** Restituisce un valore limite, eventualmente spostato di poco. */
+    private static int limite(Random caso) {
+        return LIMITI[caso.nextInt(LIMITI.length)] + caso.nextInt(3) - 1;
+    }
+
+    /** Controlla che Forma.contiene e la classe AWT diano lo stesso risultato per il punto specificato. */
+    private static void confronta(TipoForma tipo, int x, int y, int w, int h, int px, int py) {
+        assertEquals(descrizione(tipo, x, y, w, h, px, py), awt(tipo, x, y, w, h, px, py), Forma.contiene(tipo, x, y, w, h, px, py));
+    }
+
+    /** Il risultato del metodo contains della forma AWT usata per disegnare (vedi GraphicView.disegnaForma). */
+    private static boolean awt(TipoForma tipo, int x, int y, int w, int h, int px, int py) {
+        if (tipo == TipoForma.QUADRATO) return new Rectangle(x, y, w, h).contains(px, py);
+        if (tipo == TipoForma.CERCHIO) return new Ellipse2D.Float(x, y, w, h).contains(px, py);
+        int[] xPoints = {x + w / 2, x + w, x};
+        int[] yPoints = {y, y + h, y + h};
+        return new Polygon(xPoints, yPoints, 3).contains(px, py);
+    }
+
+    private static String descrizione(TipoForma tipo, int x, int y, int w, int h, int px, int py) {
+        return tipo + " x=" + x + " y=" + y + " w=" + w + " h=" + h + " punto=(" + px + "," + py + ")";
+    }
+}